@@ -25,8 +25,10 @@
  */
 package com.illogica.oct.engine;
 
+import com.illogica.oct.octree.LocationalCode;
 import com.illogica.oct.octree.Octant;
 import com.illogica.oct.octree.Octinfo;
+import com.illogica.oct.octree.Octree;
 import com.jme3.asset.AssetManager;
 import com.jme3.material.Material;
 import com.jme3.math.ColorRGBA;
@@ -34,10 +36,15 @@ import com.jme3.math.Vector3f;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Mesh;
 import com.jme3.scene.Node;
+import com.jme3.scene.VertexBuffer;
 import com.jme3.scene.debug.WireBox;
 import com.jme3.scene.shape.Box;
 import com.jme3.scene.shape.Line;
+import com.jme3.util.BufferUtils;
 import com.jme3.util.TangentBinormalGenerator;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Collection;
 
 /**
  *
@@ -80,6 +87,47 @@ public class GeometryGenerators {
         return geom;
     }
     
+    /**
+     * Merges the cubes of many nodes in a single mesh, slightly bigger than
+     * the nodes like getCubeByOctinfo()
+     * @param tree
+     * @param codes the locational codes of the nodes
+     * @param mat
+     * @return a single geometry, even for tens of thousands of cubes
+     */
+    public static Geometry getCubesByCodes(Octree tree, Collection<Long> codes, Material mat) {
+        FloatBuffer pos = BufferUtils.createFloatBuffer(8 * 3 * codes.size());
+        IntBuffer ind = BufferUtils.createIntBuffer(CUBE_INDICES.length * codes.size());
+        int c = 0;
+        for (long code : codes) {
+            Octinfo oi = LocationalCode.toOctinfo(tree, code);
+            float s = oi.size / 1.99f;
+            for (int i = 0; i < 8; i++) {
+                pos.put(oi.originX + ((i & 4) == 0 ? -s : s));
+                pos.put(oi.originY + ((i & 2) == 0 ? -s : s));
+                pos.put(oi.originZ + ((i & 1) == 0 ? -s : s));
+            }
+            for (int i : CUBE_INDICES) {
+                ind.put(8 * c + i);
+            }
+            c++;
+        }
+        Mesh mesh = new Mesh();
+        mesh.setBuffer(VertexBuffer.Type.Position, 3, pos);
+        mesh.setBuffer(VertexBuffer.Type.Index, 3, ind);
+        mesh.updateBound();
+        Geometry geom = new Geometry("Boxes", mesh);
+        geom.setMaterial(mat);
+        return geom;
+    }
+    
+    //the 12 triangles of a cube whose corner i is at (x, y, z) = bits (4, 2, 1)
+    private static final int CUBE_INDICES[] = {
+        0, 1, 3,  0, 3, 2,  4, 6, 7,  4, 7, 5,
+        0, 4, 5,  0, 5, 1,  2, 3, 7,  2, 7, 6,
+        0, 2, 6,  0, 6, 4,  1, 5, 7,  1, 7, 3
+    };
+    
     /*public static Spatial quadBasedCube(Octant n){
         //see if n.hasVertices(), then do this:
         float s = n.getEdgeSize()/2;
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.engine;
+
+
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import java.util.Arrays;
+
+/**
+ * A low resolution depth buffer filled on the CPU with large boxes, used to
+ * find the batches hidden behind them before they reach the render queue.
+ * 
+ * Occluders are written with the depth of their farthest corner and occludees
+ * are tested with the depth of their nearest one, so a box is never reported
+ * as hidden while part of it could be seen.
+ * @author Loris
+ */
+public class OcclusionBuffer {
+    
+    private final int width, height;
+    private final float depth[];
+    private Camera cam;
+    
+    private final Vector3f corners[] = new Vector3f[8];
+    private final Vector3f screen[] = new Vector3f[8];
+    private final Vector3f tmp = new Vector3f();
+    
+    //the outline of a projected box, counterclockwise
+    private final Vector3f sorted[] = new Vector3f[8];
+    private final Vector3f hull[] = new Vector3f[16];
+    
+    public OcclusionBuffer(int width, int height){
+        this.width = width;
+        this.height = height;
+        this.depth = new float[width * height];
+        for(int i=0; i<8; i++){
+            corners[i] = new Vector3f();
+            screen[i] = new Vector3f();
+        }
+    }
+    
+    /**
+     * Empties the buffer, to be filled from the given point of view
+     * @param cam 
+     */
+    public void clear(Camera cam){
+        this.cam = cam;
+        Arrays.fill(depth, 1f);
+    }
+    
+    /**
+     * Rasterizes a solid box
+     * @param min
+     * @param max 
+     */
+    public void addOccluder(Vector3f min, Vector3f max){
+        if(!project(min, max)){
+            return; //crosses the near plane
+        }
+        float far = 0f;
+        for(int i=0; i<8; i++){
+            far = Math.max(far, screen[i].z);
+        }
+        rasterize(outline(), far);
+    }
+    
+    /**
+     * @param min
+     * @param max
+     * @return true if the box is completely behind the occluders
+     */
+    public boolean isOccluded(Vector3f min, Vector3f max){
+        if(!project(min, max)){
+            return false;
+        }
+        float near = 1f;
+        float x0 = Float.MAX_VALUE, y0 = Float.MAX_VALUE;
+        float x1 = -Float.MAX_VALUE, y1 = -Float.MAX_VALUE;
+        for(int i=0; i<8; i++){
+            near = Math.min(near, screen[i].z);
+            x0 = Math.min(x0, screen[i].x);
+            y0 = Math.min(y0, screen[i].y);
+            x1 = Math.max(x1, screen[i].x);
+            y1 = Math.max(y1, screen[i].y);
+        }
+        //every pixel touched by the rectangle, not only the covered centers
+        int px0 = Math.max(0, (int) Math.floor(x0));
+        int py0 = Math.max(0, (int) Math.floor(y0));
+        int px1 = Math.min(width - 1, (int) Math.floor(x1));
+        int py1 = Math.min(height - 1, (int) Math.floor(y1));
+        if(px0 > px1 || py0 > py1){
+            return false; //off screen, left to the frustum test
+        }
+        for(int y=py0; y<=py1; y++){
+            for(int x=px0; x<=px1; x++){
+                if(depth[y * width + x] >= near){
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Projects the corners of a box in buffer coordinates
+     * @return false if a corner is behind the near plane
+     */
+    private boolean project(Vector3f min, Vector3f max){
+        float sx = (float) width / cam.getWidth();
+        float sy = (float) height / cam.getHeight();
+        for(int i=0; i<8; i++){
+            Vector3f c = corners[i];
+            c.set((i & 4) == 0 ? min.x : max.x,
+                  (i & 2) == 0 ? min.y : max.y,
+                  (i & 1) == 0 ? min.z : max.z);
+            if(tmp.set(c).subtractLocal(cam.getLocation()).dot(cam.getDirection()) < cam.getFrustumNear()){
+                return false;
+            }
+            cam.getScreenCoordinates(c, screen[i]);
+            screen[i].x *= sx;
+            screen[i].y *= sy;
+        }
+        return true;
+    }
+    
+    /**
+     * Computes the convex hull of the projected corners, the outline of the
+     * box on the screen
+     * @return the number of hull points
+     */
+    private int outline(){
+        //insertion sort by x, then y
+        for(int i=0; i<8; i++){
+            Vector3f p = screen[i];
+            int j = i;
+            while(j > 0 && (sorted[j - 1].x > p.x || (sorted[j - 1].x == p.x && sorted[j - 1].y > p.y))){
+                sorted[j] = sorted[j - 1];
+                j--;
+            }
+            sorted[j] = p;
+        }
+        //monotone chain, lower then upper half
+        int n = 0;
+        for(int i=0; i<8; i++){
+            while(n >= 2 && edge(hull[n - 2], hull[n - 1], sorted[i].x, sorted[i].y) <= 0f){
+                n--;
+            }
+            hull[n++] = sorted[i];
+        }
+        for(int i=6, lower=n + 1; i>=0; i--){
+            while(n >= lower && edge(hull[n - 2], hull[n - 1], sorted[i].x, sorted[i].y) <= 0f){
+                n--;
+            }
+            hull[n++] = sorted[i];
+        }
+        return n - 1; //the last point is the first one again
+    }
+    
+    /**
+     * Writes z in the pixels completely inside the outline, so a pixel only
+     * partly covered never hides what is behind it
+     * @param n the number of outline points
+     */
+    private void rasterize(int n, float z){
+        if(n < 3){
+            return;
+        }
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for(int i=0; i<n; i++){
+            minX = Math.min(minX, hull[i].x);
+            minY = Math.min(minY, hull[i].y);
+            maxX = Math.max(maxX, hull[i].x);
+            maxY = Math.max(maxY, hull[i].y);
+        }
+        int x0 = Math.max(0, (int) Math.ceil(minX));
+        int y0 = Math.max(0, (int) Math.ceil(minY));
+        int x1 = Math.min(width, (int) Math.floor(maxX)) - 1;
+        int y1 = Math.min(height, (int) Math.floor(maxY)) - 1;
+        for(int y=y0; y<=y1; y++){
+            for(int x=x0; x<=x1; x++){
+                if(covers(n, x, y)){
+                    int i = y * width + x;
+                    if(z < depth[i]){
+                        depth[i] = z;
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return true if the four corners of the pixel are inside the outline
+     */
+    private boolean covers(int n, int x, int y){
+        for(int i=0; i<n; i++){
+            Vector3f a = hull[i];
+            Vector3f b = hull[i + 1 == n ? 0 : i + 1];
+            if(edge(a, b, x, y) < 0f || edge(a, b, x + 1, y) < 0f
+                    || edge(a, b, x, y + 1) < 0f || edge(a, b, x + 1, y + 1) < 0f){
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static float edge(Vector3f a, Vector3f b, float x, float y){
+        return (b.x - a.x) * (y - a.y) - (b.y - a.y) * (x - a.x);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.engine;
+
+import java.util.Random;
+
+/**
+ * 2D simplex noise, after Stefan Gustavson's public domain implementation.
+ * The permutation table is shuffled with a seed, so the same seed always
+ * gives the same terrain.
+ * @author Loris
+ */
+public class SimplexNoise {
+    
+    private static final float F2 = 0.5f * ((float)Math.sqrt(3) - 1f);
+    private static final float G2 = (3f - (float)Math.sqrt(3)) / 6f;
+    
+    private static final int GRAD[][] = {
+        {1, 1}, {-1, 1}, {1, -1}, {-1, -1},
+        {1, 0}, {-1, 0}, {0, 1}, {0, -1}
+    };
+    
+    private final short perm[] = new short[512];
+    
+    public SimplexNoise(long seed){
+        short p[] = new short[256];
+        for(short i=0; i<256; i++){
+            p[i] = i;
+        }
+        Random r = new Random(seed);
+        for(int i=255; i>0; i--){
+            int j = r.nextInt(i + 1);
+            short t = p[i];
+            p[i] = p[j];
+            p[j] = t;
+        }
+        for(int i=0; i<512; i++){
+            perm[i] = p[i & 255];
+        }
+    }
+    
+    /**
+     * @param x
+     * @param y
+     * @return the noise value, in [-1, 1]
+     */
+    public float noise(float x, float y){
+        //skew the input space to find the simplex cell
+        float s = (x + y) * F2;
+        int i = fastFloor(x + s);
+        int j = fastFloor(y + s);
+        float t = (i + j) * G2;
+        float x0 = x - (i - t);
+        float y0 = y - (j - t);
+        
+        //lower or upper triangle of the cell
+        int i1 = x0 > y0 ? 1 : 0;
+        int j1 = 1 - i1;
+        
+        float x1 = x0 - i1 + G2;
+        float y1 = y0 - j1 + G2;
+        float x2 = x0 - 1f + 2f * G2;
+        float y2 = y0 - 1f + 2f * G2;
+        
+        int ii = i & 255;
+        int jj = j & 255;
+        return 70f * (corner(perm[ii + perm[jj]], x0, y0)
+                + corner(perm[ii + i1 + perm[jj + j1]], x1, y1)
+                + corner(perm[ii + 1 + perm[jj + 1]], x2, y2));
+    }
+    
+    /**
+     * Fractal noise: octaves of noise, each one with double frequency and
+     * half amplitude
+     * @param x
+     * @param y
+     * @param octaves
+     * @return the noise value, in [-1, 1]
+     */
+    public float fractal(float x, float y, int octaves){
+        float sum = 0;
+        float amplitude = 1f;
+        float total = 0;
+        for(int i=0; i<octaves; i++){
+            sum += noise(x, y) * amplitude;
+            total += amplitude;
+            x *= 2f;
+            y *= 2f;
+            amplitude *= 0.5f;
+        }
+        return sum / total;
+    }
+    
+    private static float corner(int hash, float x, float y){
+        float t = 0.5f - x * x - y * y;
+        if(t < 0){
+            return 0;
+        }
+        int g[] = GRAD[hash & 7];
+        t *= t;
+        return t * t * (g[0] * x + g[1] * y);
+    }
+    
+    private static int fastFloor(float x){
+        int i = (int)x;
+        return x < i ? i - 1 : i;
+    }
+}
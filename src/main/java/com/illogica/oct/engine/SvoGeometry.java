@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.engine;
+
+import com.illogica.oct.octree.SparseVoxelOctree;
+import com.illogica.oct.states.Materials;
+import com.jme3.asset.AssetManager;
+import com.jme3.material.Material;
+import com.jme3.material.RenderState;
+import com.jme3.math.ColorRGBA;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.shape.Box;
+import com.jme3.texture.Image;
+import com.jme3.texture.Texture;
+import com.jme3.texture.Texture2D;
+import com.jme3.texture.image.ColorSpace;
+import com.jme3.util.BufferUtils;
+import java.nio.ByteBuffer;
+
+/**
+ * A box around the octree, raymarched by the Shaders/Svo material through a
+ * SparseVoxelOctree uploaded as an integer texture. The memory used on the
+ * GPU grows with the number of nodes, not with the number of triangles.
+ * @author Loris
+ */
+public class SvoGeometry {
+    
+    public static final int TEXTURE_WIDTH = 2048;
+    public static final int PALETTE_SIZE = 256; //material ids are taken modulo this
+    
+    /**
+     * @param assetManager
+     * @param svo
+     * @param materials where the colors of the materials are taken from
+     * @return the geometry, to be attached at the root of the scene
+     */
+    public static Geometry create(AssetManager assetManager, SparseVoxelOctree svo, Materials materials){
+        Material mat = new Material(assetManager, "Shaders/Svo/Svo.j3md");
+        mat.setTexture("Palette", createPalette(materials));
+        mat.setInt("Width", TEXTURE_WIDTH);
+        mat.getAdditionalRenderState().setFaceCullMode(RenderState.FaceCullMode.Front); //works from inside too
+        
+        Geometry g = new Geometry("Svo", new Box(0.5f, 0.5f, 0.5f));
+        g.setMaterial(mat);
+        update(g, svo);
+        return g;
+    }
+    
+    /**
+     * Uploads a new version of the tree
+     * @param g a geometry made by create()
+     * @param svo 
+     */
+    public static void update(Geometry g, SparseVoxelOctree svo){
+        Material mat = g.getMaterial();
+        mat.setTexture("Nodes", createNodesTexture(svo.toBuffer()));
+        mat.setInt("MaterialsOffset", svo.getMaterialsOffset());
+        mat.setVector3("RootOrigin", svo.getRootOrigin());
+        mat.setFloat("RootSize", svo.getRootSize());
+        g.setLocalTranslation(svo.getRootOrigin());
+        g.setLocalScale(svo.getRootSize());
+    }
+    
+    private static Texture2D createNodesTexture(int[] buffer){
+        int height = Math.max(1, (buffer.length + TEXTURE_WIDTH - 1) / TEXTURE_WIDTH);
+        ByteBuffer data = BufferUtils.createByteBuffer(TEXTURE_WIDTH * height * 4);
+        data.asIntBuffer().put(buffer);
+        Texture2D tex = new Texture2D(new Image(Image.Format.R32UI, TEXTURE_WIDTH, height, data, ColorSpace.Linear));
+        tex.setMagFilter(Texture.MagFilter.Nearest);
+        tex.setMinFilter(Texture.MinFilter.NearestNoMipMaps);
+        return tex;
+    }
+    
+    private static Texture2D createPalette(Materials materials){
+        ByteBuffer data = BufferUtils.createByteBuffer(PALETTE_SIZE * 4);
+        for(int i=0; i<PALETTE_SIZE; i++){
+            ColorRGBA c = materials.getColor(i);
+            data.put((byte)(c.r * 255)).put((byte)(c.g * 255)).put((byte)(c.b * 255)).put((byte)(c.a * 255));
+        }
+        data.flip();
+        Texture2D tex = new Texture2D(new Image(Image.Format.RGBA8, PALETTE_SIZE, 1, data, ColorSpace.Linear));
+        tex.setMagFilter(Texture.MagFilter.Nearest);
+        tex.setMinFilter(Texture.MinFilter.NearestNoMipMaps);
+        return tex;
+    }
+}
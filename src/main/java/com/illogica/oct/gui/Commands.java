@@ -31,14 +31,34 @@ package com.illogica.oct.gui;
  */
 public interface Commands {
     
+    public void autosave(String directory); //saves the octree to a directory, loading the one found there
     public void clear();
+    public void clearBox(float[] box); //empties a box
     public int connect();
     public int connect(String host);
     public int connect(String host, int port);
+    public void culling(); //toggles frustum and occlusion culling of the meshes
+    public void fillBox(float[] box); //fills a box with the current material
+    public void importModel(String path); //voxelizes a model into the octree
+    public void instancing(); //toggles the instanced cubes, for sparse scenes
+    public void light(int level); //puts a voxel light at the camera, 0 removes it
+    public void paintBox(float[] box); //paints the solid octants inside a box
+    public void physics(); //toggles the collision shapes of the octree
     public void quit(); //quit the application
+    public void raymarch(); //toggles the raymarched view of the octree
+    public void redo();
+    public void saveJournal(String path); //saves the edits for JournalReplay
+    public void selectBox(float[] box); //selects the solid octants inside a box
+    public void selectScreen(float[] rect); //selects the solid octants seen through a screen rectangle
+    public void selectSphere(float[] sphere); //selects the solid octants inside a sphere
+    public void setLodThreshold(float threshold); //0 draws every leaf
     public void setMaterial(int material);
     public void setMoveSpeed(float speed);
     public int start(); //starts a server
+    public void stats(); //counts the leaves of each material
+    public void terrain(long seed); //replaces the octree with a random terrain
     public void stop(); //stops a server
+    public void undo();
+    public void voxelLighting(); //toggles the light baked into the meshes
     
 }
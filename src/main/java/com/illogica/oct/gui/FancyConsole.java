@@ -25,17 +25,21 @@
  */
 package com.illogica.oct.gui;
 
+import com.illogica.oct.server.ReplicationClient;
 import com.illogica.oct.server.Server;
 import com.illogica.oct.states.Engine;
 import com.illogica.oct.states.KeysSelect;
+import com.illogica.oct.states.OctreePhysics;
+import com.illogica.oct.states.Renderer;
 import com.jme3.app.SimpleApplication;
-import com.jme3.network.Client;
-import com.jme3.network.Network;
+import com.jme3.asset.AssetNotFoundException;
+import com.jme3.math.Vector3f;
 import de.lessvoid.nifty.Nifty;
 import de.lessvoid.nifty.controls.Console;
 import de.lessvoid.nifty.controls.ConsoleCommands;
 import de.lessvoid.nifty.controls.ConsoleCommands.ConsoleCommand;
 import java.io.IOException;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -50,7 +54,7 @@ public class FancyConsole implements Commands {
     private Console console;
     private Nifty nifty;
     private SimpleApplication app;
-    private Client client;
+    private ReplicationClient client;
     private Server server;
 
     public FancyConsole(Console console, Nifty nifty, SimpleApplication app) {
@@ -59,16 +63,39 @@ public class FancyConsole implements Commands {
         this.app = app;
         ConsoleCommands consoleCommands = new ConsoleCommands(nifty, console);
 
+        AutosaveCommand autosaveCommand = new AutosaveCommand();
+        consoleCommands.registerCommand("autosave", autosaveCommand);
+        consoleCommands.registerCommand("autosave directory", autosaveCommand);
         consoleCommands.registerCommand("clear", new ClearCommand());
+        consoleCommands.registerCommand("clearbox x1 y1 z1 x2 y2 z2", new BoxCommand(BoxCommand.CLEAR));
         ConnectCommand connectCommand = new ConnectCommand();
         consoleCommands.registerCommand("connect", connectCommand);
         consoleCommands.registerCommand("connect address", connectCommand);
         consoleCommands.registerCommand("connect address port", connectCommand);
+        consoleCommands.registerCommand("culling", new CullingCommand());
+        consoleCommands.registerCommand("fillbox x1 y1 z1 x2 y2 z2", new BoxCommand(BoxCommand.FILL));
+        consoleCommands.registerCommand("import model_path", new ImportCommand());
+        consoleCommands.registerCommand("paintbox x1 y1 z1 x2 y2 z2", new BoxCommand(BoxCommand.PAINT));
+        consoleCommands.registerCommand("instancing", new InstancingCommand());
+        consoleCommands.registerCommand("light level", new LightCommand());
+        consoleCommands.registerCommand("lod threshold", new LodCommand());
+        consoleCommands.registerCommand("physics", new PhysicsCommand());
         consoleCommands.registerCommand("quit", new QuitCommand());
+        consoleCommands.registerCommand("raymarch", new RaymarchCommand());
+        consoleCommands.registerCommand("redo", new RedoCommand());
+        consoleCommands.registerCommand("savejournal file_path", new SaveJournalCommand());
+        consoleCommands.registerCommand("selectbox x1 y1 z1 x2 y2 z2", new BoxCommand(BoxCommand.SELECT));
+        consoleCommands.registerCommand("selectscreen x1 y1 x2 y2", new SelectScreenCommand());
+        consoleCommands.registerCommand("selectsphere x y z radius", new SelectSphereCommand());
         consoleCommands.registerCommand("setmat mat_id", new SetMaterialCommand());
         consoleCommands.registerCommand("setmovespeed speed", new SetMoveSpeedCommand());
         consoleCommands.registerCommand("start", new StartCommand());
+        consoleCommands.registerCommand("stats", new StatsCommand());
         consoleCommands.registerCommand("stop", new StopCommand());
+        consoleCommands.registerCommand("terrain", new TerrainCommand());
+        consoleCommands.registerCommand("terrain seed", new TerrainCommand());
+        consoleCommands.registerCommand("undo", new UndoCommand());
+        consoleCommands.registerCommand("voxellighting", new VoxelLightingCommand());
 
         // finally enable command completion
         consoleCommands.enableCommandCompletion(true);
@@ -83,60 +110,115 @@ public class FancyConsole implements Commands {
         console.outputError(line);
     }
 
+    /**
+     * Starts saving the octree to a directory, or stops saving
+     * @param directory the directory, or null to stop
+     */
+    @Override
+    public void autosave(String directory) {
+        Engine engine = app.getStateManager().getState(Engine.class);
+        if (directory == null) {
+            engine.stopAutosave();
+            console.output("Autosave stopped");
+            return;
+        }
+        try {
+            engine.startAutosave(directory);
+        } catch (IOException ex) {
+            Logger.getLogger(FancyConsole.class.getName()).log(Level.SEVERE, null, ex);
+            console.output("Can't read the octree saved in " + directory);
+            return;
+        }
+        exitConsole();
+    }
+
     @Override
     public void clear() {
         console.clear();
     }
 
     @Override
-    public int connect() {
+    public void clearBox(float[] box) {
+        app.getStateManager().getState(Engine.class).clearBox(new Vector3f(box[0], box[1], box[2]), new Vector3f(box[3], box[4], box[5]));
+        exitConsole();
+    }
+
+    @Override
+    public void fillBox(float[] box) {
+        app.getStateManager().getState(Engine.class).fillBox(new Vector3f(box[0], box[1], box[2]), new Vector3f(box[3], box[4], box[5]));
+        exitConsole();
+    }
+
+    @Override
+    public void importModel(String path) {
         try {
-            client = Network.connectToServer("127.0.0.1", Server.PORT);
-        } catch (IOException ex) {
-            Logger.getLogger(FancyConsole.class.getName()).log(Level.SEVERE, null, ex);
-            return -1;
+            app.getStateManager().getState(Engine.class).importModel(path);
+        } catch (AssetNotFoundException ex) {
+            console.output("Model not found: " + path);
+            return;
         }
-        client.start();
-        return 0;
+        exitConsole();
+    }
+
+    @Override
+    public void paintBox(float[] box) {
+        app.getStateManager().getState(Engine.class).paintBox(new Vector3f(box[0], box[1], box[2]), new Vector3f(box[3], box[4], box[5]));
+        exitConsole();
+    }
+
+    @Override
+    public int connect() {
+        return connect("127.0.0.1", Server.PORT);
     }
 
     @Override
     public int connect(String host) {
-        try {
-            client = Network.connectToServer(host, Server.PORT);
-        } catch (IOException ex) {
-            Logger.getLogger(FancyConsole.class.getName()).log(Level.SEVERE, null, ex);
-            return -1;
-        }
-        client.start();
-        return 0;
+        return connect(host, Server.PORT);
     }
 
     @Override
     public int connect(String host, int port) {
         try {
-            client = Network.connectToServer(host, port);
+            client = ReplicationClient.connect(host, port, app.getCamera().getLocation());
         } catch (IOException ex) {
             Logger.getLogger(FancyConsole.class.getName()).log(Level.SEVERE, null, ex);
             return -1;
         }
-        client.start();
+        app.getStateManager().getState(Engine.class).setReplicationClient(client);
         return 0;
     }
 
     @Override
     public void quit() {
         if (client != null) {
+            app.getStateManager().getState(Engine.class).setReplicationClient(null);
             client.close();
         }
         stop();
         app.stop();
     }
 
+    /**
+     * Starts a server sharing the local octree, and connects to it so that
+     * local edits are replicated too.
+     * @return the server id
+     */
     @Override
     public int start() {
         server = new Server();
-        return server.start();
+        server.setSnapshotProvider(app.getStateManager().getState(Engine.class));
+        int id = server.start();
+        if (id < 0) {
+            return id;
+        }
+        try {
+            client = ReplicationClient.connect("127.0.0.1", Server.PORT);
+        } catch (IOException ex) {
+            Logger.getLogger(FancyConsole.class.getName()).log(Level.SEVERE, null, ex);
+            return id;
+        }
+        app.getStateManager().getState(Engine.class).setReplicationClient(client);
+        return id;
     }
 
     @Override
@@ -146,12 +228,132 @@ public class FancyConsole implements Commands {
         }
     }
 
+    @Override
+    public void undo() {
+        app.getStateManager().getState(Engine.class).undo();
+        exitConsole();
+    }
+
+    @Override
+    public void culling() {
+        Renderer renderer = app.getStateManager().getState(Renderer.class);
+        renderer.setCulling(!renderer.isCulling());
+        exitConsole();
+    }
+
+    @Override
+    public void instancing() {
+        Renderer renderer = app.getStateManager().getState(Renderer.class);
+        renderer.setInstancing(!renderer.isInstancing());
+        exitConsole();
+    }
+
+    @Override
+    public void physics() {
+        OctreePhysics physics = app.getStateManager().getState(OctreePhysics.class);
+        if (physics == null) {
+            physics = new OctreePhysics();
+            app.getStateManager().attach(physics);
+            physics.setDebugEnabled(true);
+        } else {
+            app.getStateManager().detach(physics);
+        }
+        exitConsole();
+    }
+
+    @Override
+    public void raymarch() {
+        Renderer renderer = app.getStateManager().getState(Renderer.class);
+        renderer.setRaymarching(!renderer.isRaymarching());
+        exitConsole();
+    }
+
+    @Override
+    public void redo() {
+        app.getStateManager().getState(Engine.class).redo();
+        exitConsole();
+    }
+
+    @Override
+    public void saveJournal(String path) {
+        try {
+            app.getStateManager().getState(Engine.class).saveJournal(path);
+        } catch (IOException ex) {
+            Logger.getLogger(FancyConsole.class.getName()).log(Level.SEVERE, null, ex);
+            console.output("Can't save the journal to " + path);
+            return;
+        }
+        console.output("Journal saved to " + path);
+    }
+
+    @Override
+    public void selectBox(float[] box) {
+        app.getStateManager().getState(Engine.class).selectBox(new Vector3f(box[0], box[1], box[2]), new Vector3f(box[3], box[4], box[5]));
+        exitConsole();
+    }
+
+    @Override
+    public void selectScreen(float[] rect) {
+        app.getStateManager().getState(Engine.class).selectScreen(rect[0], rect[1], rect[2], rect[3]);
+        exitConsole();
+    }
+
+    @Override
+    public void selectSphere(float[] sphere) {
+        app.getStateManager().getState(Engine.class).selectSphere(new Vector3f(sphere[0], sphere[1], sphere[2]), sphere[3]);
+        exitConsole();
+    }
+
+    @Override
+    public void terrain(long seed) {
+        app.getStateManager().getState(Engine.class).generateTerrain(seed);
+        exitConsole();
+    }
+
     @Override
     public void setMoveSpeed(float speed) {
         app.getFlyByCamera().setMoveSpeed(speed);
         exitConsole();
     }
 
+    @Override
+    public void stats() {
+        long total = 0;
+        for (Map.Entry<Integer, Long> e : app.getStateManager().getState(Engine.class).countLeavesByMaterial().entrySet()) {
+            console.output("Material " + e.getKey() + ": " + e.getValue() + " leaves");
+            total += e.getValue();
+        }
+        console.output(total + " leaves");
+    }
+
+    @Override
+    public void light(int level) {
+        Renderer renderer = app.getStateManager().getState(Renderer.class);
+        if (!renderer.isVoxelLighting()) {
+            console.output("Voxel lighting is off");
+            return;
+        }
+        if (level > 0) {
+            renderer.addPointLight(app.getCamera().getLocation(), level);
+        } else {
+            renderer.removePointLights(app.getCamera().getLocation());
+        }
+        exitConsole();
+    }
+
+    @Override
+    public void voxelLighting() {
+        Renderer renderer = app.getStateManager().getState(Renderer.class);
+        renderer.setVoxelLighting(!renderer.isVoxelLighting());
+        exitConsole();
+    }
+
+    @Override
+    public void setLodThreshold(float threshold) {
+        app.getStateManager().getState(Renderer.class).setLodThreshold(threshold);
+        exitConsole();
+    }
+
     @Override
     public void setMaterial(int material) {
         app.getStateManager().getState(Engine.class).setMaterial(material);
@@ -162,6 +364,14 @@ public class FancyConsole implements Commands {
      * *****
      * COMMANDS THAT CAN BE EXECUTED ON THIS CONSOLE
      */
+    class AutosaveCommand implements ConsoleCommand {
+
+        @Override
+        public void execute(String... strings) {
+            autosave(strings.length > 1 ? strings[1] : null);
+        }
+    }
+
     class ClearCommand implements ConsoleCommand {
 
         @Override
@@ -170,6 +380,51 @@ public class FancyConsole implements Commands {
         }
     }
 
+    class BoxCommand implements ConsoleCommand {
+        
+        static final int FILL = 0;
+        static final int CLEAR = 1;
+        static final int PAINT = 2;
+        static final int SELECT = 3;
+        
+        private final int operation;
+        
+        BoxCommand(int operation){
+            this.operation = operation;
+        }
+
+        @Override
+        public void execute(String... strings) {
+            if (strings.length < 7) {
+                console.output("Missing box corners: x1 y1 z1 x2 y2 z2");
+                return;
+            }
+            float[] box = new float[6];
+            try{
+                for (int i = 0; i < 6; i++) {
+                    box[i] = Float.parseFloat(strings[i + 1]);
+                }
+            } catch (NumberFormatException e){
+                console.output("Box corners must be numbers");
+                return;
+            }
+            //make sure the first corner is the lower one
+            for (int i = 0; i < 3; i++) {
+                if (box[i] > box[i + 3]) {
+                    float t = box[i];
+                    box[i] = box[i + 3];
+                    box[i + 3] = t;
+                }
+            }
+            switch (operation) {
+                case FILL: fillBox(box); break;
+                case CLEAR: clearBox(box); break;
+                case PAINT: paintBox(box); break;
+                case SELECT: selectBox(box); break;
+            }
+        }
+    }
+
     class ConnectCommand implements ConsoleCommand {
 
         @Override
@@ -183,12 +438,81 @@ public class FancyConsole implements Commands {
                     console.output("error");
                 }
             } else if (args.length > 2) {
-                if (connect(args[1], Integer.parseInt(args[2])) != 0);
-                console.output("error");
+                if (connect(args[1], Integer.parseInt(args[2])) != 0) {
+                    console.output("error");
+                }
+            }
+        }
+    }
+
+    class CullingCommand implements ConsoleCommand {
+
+        @Override
+        public void execute(String... strings) {
+            culling();
+        }
+    }
+
+    class ImportCommand implements ConsoleCommand {
+
+        @Override
+        public void execute(String... strings) {
+            if (strings.length == 1) {
+                console.output("Missing model path");
+                return;
+            }
+            importModel(strings[1]);
+        }
+    }
+
+    class InstancingCommand implements ConsoleCommand {
+
+        @Override
+        public void execute(String... strings) {
+            instancing();
+        }
+    }
+
+    class LightCommand implements ConsoleCommand {
+
+        @Override
+        public void execute(String... strings) {
+            if (strings.length == 1) {
+                console.output("Missing light level, 0 removes the lights here");
+                return;
+            }
+            try{
+                light(Integer.parseInt(strings[1]));
+            } catch (NumberFormatException e){
+                console.output("Light level must be a number.");
             }
         }
     }
 
+    class LodCommand implements ConsoleCommand {
+
+        @Override
+        public void execute(String... strings) {
+            if (strings.length == 1) {
+                console.output("Missing threshold value");
+                return;
+            }
+            try{
+                setLodThreshold(Float.parseFloat(strings[1]));
+            } catch (NumberFormatException e){
+                console.output("Threshold value must be a number.");
+            }
+        }
+    }
+
+    class PhysicsCommand implements ConsoleCommand {
+
+        @Override
+        public void execute(String... strings) {
+            physics();
+        }
+    }
+
     class QuitCommand implements ConsoleCommand {
 
         @Override
@@ -197,6 +521,76 @@ public class FancyConsole implements Commands {
         }
     }
     
+    class RaymarchCommand implements ConsoleCommand {
+
+        @Override
+        public void execute(String... strings) {
+            raymarch();
+        }
+    }
+
+    class RedoCommand implements ConsoleCommand {
+
+        @Override
+        public void execute(String... strings) {
+            redo();
+        }
+    }
+
+    class SaveJournalCommand implements ConsoleCommand {
+
+        @Override
+        public void execute(String... strings) {
+            if (strings.length == 1) {
+                console.output("Missing file path");
+                return;
+            }
+            saveJournal(strings[1]);
+        }
+    }
+
+    class SelectScreenCommand implements ConsoleCommand {
+
+        @Override
+        public void execute(String... strings) {
+            if (strings.length < 5) {
+                console.output("Missing rectangle corners: x1 y1 x2 y2");
+                return;
+            }
+            float[] rect = new float[4];
+            try{
+                for (int i = 0; i < 4; i++) {
+                    rect[i] = Float.parseFloat(strings[i + 1]);
+                }
+            } catch (NumberFormatException e){
+                console.output("Rectangle corners must be numbers");
+                return;
+            }
+            selectScreen(rect);
+        }
+    }
+
+    class SelectSphereCommand implements ConsoleCommand {
+
+        @Override
+        public void execute(String... strings) {
+            if (strings.length < 5) {
+                console.output("Missing sphere: x y z radius");
+                return;
+            }
+            float[] sphere = new float[4];
+            try{
+                for (int i = 0; i < 4; i++) {
+                    sphere[i] = Float.parseFloat(strings[i + 1]);
+                }
+            } catch (NumberFormatException e){
+                console.output("Sphere center and radius must be numbers");
+                return;
+            }
+            selectSphere(sphere);
+        }
+    }
+
     class SetMaterialCommand implements ConsoleCommand {
 
         @Override
@@ -249,6 +643,14 @@ public class FancyConsole implements Commands {
         }
     }
 
+    class StatsCommand implements ConsoleCommand {
+
+        @Override
+        public void execute(String... strings) {
+            stats();
+        }
+    }
+
     class StopCommand implements ConsoleCommand {
 
         @Override
@@ -256,6 +658,39 @@ public class FancyConsole implements Commands {
             stop();
         }
     }
+
+    class TerrainCommand implements ConsoleCommand {
+
+        @Override
+        public void execute(String... strings) {
+            long seed = System.currentTimeMillis();
+            if (strings.length > 1) {
+                try{
+                    seed = Long.parseLong(strings[1]);
+                } catch (NumberFormatException e){
+                    console.output("Seed must be an Integer number");
+                    return;
+                }
+            }
+            terrain(seed);
+        }
+    }
+
+    class UndoCommand implements ConsoleCommand {
+
+        @Override
+        public void execute(String... strings) {
+            undo();
+        }
+    }
+
+    class VoxelLightingCommand implements ConsoleCommand {
+
+        @Override
+        public void execute(String... strings) {
+            voxelLighting();
+        }
+    }
 }
 
 class ConsoleUninitializedException extends RuntimeException {
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.octree;
+
+import com.illogica.oct.states.Materials;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+
+/**
+ * Per vertex ambient occlusion baked from the occupancy of the octree. For
+ * every vertex of a face, the three cells around it in front of the face (the
+ * two sides and the corner, as big as the octant) are sampled: a vertex in a
+ * concave corner gets darker. The result is stored in OctantData.colorArray
+ * as a gray vertex color, so it costs nothing at draw time.
+ * 
+ * When the tree is lit by a VoxelLighting, the color is also multiplied by
+ * the light of the air cells in front of the vertex.
+ * @author Loris
+ */
+public final class AmbientOcclusion {
+    
+    //brightness for 0, 1, 2 and 3 free cells around a vertex
+    private static final float LEVELS[] = {0.5f, 0.65f, 0.82f, 1f};
+    //brightness of the darkest cells, and color of the point lights
+    private static final float MIN_LIGHT = 0.08f;
+    private static final float BLOCK_COLOR[] = {1f, 0.85f, 0.6f};
+    
+    private AmbientOcclusion(){
+    }
+    
+    /**
+     * Fills o.data.colorArray. o.data.compileArrays() must have been called.
+     * @param tree the tree o belongs to
+     * @param o
+     */
+    public static void bake(Octree tree, Octant o){
+        bake(tree, o, false);
+    }
+    
+    /**
+     * Same as bake(tree, o), adding the light stored in the leaves
+     * @param tree
+     * @param o
+     * @param lit true if the tree is lit by a VoxelLighting
+     */
+    public static void bake(Octree tree, Octant o, boolean lit){
+        OctantData data = o.data;
+        float pos[] = data.posArray;
+        float norm[] = data.normArray;
+        int vertices = pos.length / 3;
+        if(data.colorArray == null || data.colorArray.length != vertices * 4){
+            data.colorArray = new float[vertices * 4];
+        }
+        float h = o.getEdgeSize() / 2f;
+        Vector3f c = o.getOrigin();
+        Octant cells[] = new Octant[4];
+        
+        for(int v=0; v<vertices; v++){
+            float x = pos[v * 3], y = pos[v * 3 + 1], z = pos[v * 3 + 2];
+            float nx = norm[v * 3], ny = norm[v * 3 + 1], nz = norm[v * 3 + 2];
+            
+            //the two directions along the face going from its center to the vertex
+            float ux = 0f, uy = 0f, uz = 0f, wx = 0f, wy = 0f, wz = 0f;
+            if(FastMath.abs(nx) > 0.5f){
+                uy = Math.signum(y - c.y);
+                wz = Math.signum(z - c.z);
+            } else if(FastMath.abs(ny) > 0.5f){
+                ux = Math.signum(x - c.x);
+                wz = Math.signum(z - c.z);
+            } else {
+                ux = Math.signum(x - c.x);
+                wy = Math.signum(y - c.y);
+            }
+            
+            //centers of the cells in front of the face, around the vertex
+            float fx = x + nx * h, fy = y + ny * h, fz = z + nz * h;
+            cells[0] = tree.getLeaf(fx - (ux + wx) * h, fy - (uy + wy) * h, fz - (uz + wz) * h); //in front of the face
+            cells[1] = tree.getLeaf(fx + (ux - wx) * h, fy + (uy - wy) * h, fz + (uz - wz) * h);
+            cells[2] = tree.getLeaf(fx + (wx - ux) * h, fy + (wy - uy) * h, fz + (wz - uz) * h);
+            cells[3] = tree.getLeaf(fx + (ux + wx) * h, fy + (uy + wy) * h, fz + (uz + wz) * h);
+            boolean side1 = isSolid(cells[1]);
+            boolean side2 = isSolid(cells[2]);
+            boolean corner = isSolid(cells[3]);
+            
+            int free;
+            if(side1 && side2){
+                free = 0;
+            } else {
+                free = 3 - (side1 ? 1 : 0) - (side2 ? 1 : 0) - (corner ? 1 : 0);
+            }
+            float b = LEVELS[free];
+            float r = 1f, g = 1f, bl = 1f;
+            if(lit){
+                //average of the air cells, the hidden faces stay dark
+                r = g = bl = 0f;
+                int air = 0;
+                for(Octant cell : cells){
+                    if(cell == null || isSolid(cell)){
+                        continue;
+                    }
+                    float sky = VoxelLighting.getSkyLight(cell) / (float) VoxelLighting.MAX_LEVEL;
+                    float block = VoxelLighting.getBlockLight(cell) / (float) VoxelLighting.MAX_LEVEL;
+                    r += Math.max(sky, block * BLOCK_COLOR[0]);
+                    g += Math.max(sky, block * BLOCK_COLOR[1]);
+                    bl += Math.max(sky, block * BLOCK_COLOR[2]);
+                    air++;
+                }
+                if(air > 0){
+                    r /= air;
+                    g /= air;
+                    bl /= air;
+                }
+                r = MIN_LIGHT + (1f - MIN_LIGHT) * r;
+                g = MIN_LIGHT + (1f - MIN_LIGHT) * g;
+                bl = MIN_LIGHT + (1f - MIN_LIGHT) * bl;
+            }
+            data.colorArray[v * 4] = b * r;
+            data.colorArray[v * 4 + 1] = b * g;
+            data.colorArray[v * 4 + 2] = b * bl;
+            data.colorArray[v * 4 + 3] = 1f;
+        }
+    }
+    
+    private static boolean isSolid(Octant leaf){
+        return leaf != null && leaf.getMaterialType() != Materials.MAT_AIR;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.octree;
+
+import com.jme3.math.Vector3f;
+
+/**
+ * A primitive solid used in the boolean operations of the Octree. Shapes only
+ * have to tell where a cube is relative to them, so the octree recursion can
+ * stop as soon as a cube is completely inside or outside the shape.
+ * @author Loris
+ */
+public abstract class CsgShape {
+    
+    public static final int OUTSIDE = 0;
+    public static final int INSIDE = 1;
+    public static final int INTERSECTS = 2;
+    
+    /**
+     * @param center the center of the cube
+     * @param halfSize half the edge size of the cube
+     * @return OUTSIDE, INSIDE or INTERSECTS
+     */
+    public abstract int classify(Vector3f center, float halfSize);
+    
+    public abstract boolean contains(Vector3f point);
+    
+    public static CsgShape sphere(Vector3f center, float radius){
+        return new Sphere(center, radius);
+    }
+    
+    public static CsgShape box(Vector3f min, Vector3f max){
+        return new Box(min, max);
+    }
+    
+    /**
+     * @param center the center of the cylinder
+     * @param radius
+     * @param height the cylinder axis is parallel to the Y axis
+     * @return the shape
+     */
+    public static CsgShape cylinder(Vector3f center, float radius, float height){
+        return new Cylinder(center, radius, height);
+    }
+    
+    private static float sq(float f){
+        return f * f;
+    }
+    
+    /**
+     * @return the distance between v and the nearest point of the segment
+     * [c - h, c + h], on one axis
+     */
+    private static float nearest(float v, float c, float h){
+        return Math.max(Math.abs(v - c) - h, 0f);
+    }
+    
+    /**
+     * @return the distance between v and the farthest point of the segment
+     * [c - h, c + h], on one axis
+     */
+    private static float farthest(float v, float c, float h){
+        return Math.abs(v - c) + h;
+    }
+    
+    private static class Sphere extends CsgShape {
+        
+        final Vector3f center;
+        final float radius;
+        
+        Sphere(Vector3f center, float radius){
+            this.center = new Vector3f(center);
+            this.radius = radius;
+        }
+
+        @Override
+        public int classify(Vector3f c, float h) {
+            float r2 = radius * radius;
+            float near = sq(nearest(center.x, c.x, h)) + sq(nearest(center.y, c.y, h)) + sq(nearest(center.z, c.z, h));
+            if(near >= r2){
+                return OUTSIDE;
+            }
+            float far = sq(farthest(center.x, c.x, h)) + sq(farthest(center.y, c.y, h)) + sq(farthest(center.z, c.z, h));
+            return far <= r2 ? INSIDE : INTERSECTS;
+        }
+
+        @Override
+        public boolean contains(Vector3f point) {
+            return point.distanceSquared(center) <= radius * radius;
+        }
+    }
+    
+    private static class Box extends CsgShape {
+        
+        final Vector3f min;
+        final Vector3f max;
+        
+        Box(Vector3f min, Vector3f max){
+            this.min = new Vector3f(min);
+            this.max = new Vector3f(max);
+        }
+
+        @Override
+        public int classify(Vector3f c, float h) {
+            if(c.x + h <= min.x || c.x - h >= max.x
+                    || c.y + h <= min.y || c.y - h >= max.y
+                    || c.z + h <= min.z || c.z - h >= max.z){
+                return OUTSIDE;
+            }
+            if(c.x - h >= min.x && c.x + h <= max.x
+                    && c.y - h >= min.y && c.y + h <= max.y
+                    && c.z - h >= min.z && c.z + h <= max.z){
+                return INSIDE;
+            }
+            return INTERSECTS;
+        }
+
+        @Override
+        public boolean contains(Vector3f p) {
+            return p.x >= min.x && p.x <= max.x
+                    && p.y >= min.y && p.y <= max.y
+                    && p.z >= min.z && p.z <= max.z;
+        }
+    }
+    
+    private static class Cylinder extends CsgShape {
+        
+        final Vector3f center;
+        final float radius;
+        final float halfHeight;
+        
+        Cylinder(Vector3f center, float radius, float height){
+            this.center = new Vector3f(center);
+            this.radius = radius;
+            this.halfHeight = height / 2f;
+        }
+
+        @Override
+        public int classify(Vector3f c, float h) {
+            float dy = Math.abs(c.y - center.y);
+            if(dy - h >= halfHeight){
+                return OUTSIDE;
+            }
+            float r2 = radius * radius;
+            float near = sq(nearest(center.x, c.x, h)) + sq(nearest(center.z, c.z, h));
+            if(near >= r2){
+                return OUTSIDE;
+            }
+            float far = sq(farthest(center.x, c.x, h)) + sq(farthest(center.z, c.z, h));
+            return far <= r2 && dy + h <= halfHeight ? INSIDE : INTERSECTS;
+        }
+
+        @Override
+        public boolean contains(Vector3f p) {
+            return Math.abs(p.y - center.y) <= halfHeight
+                    && sq(p.x - center.x) + sq(p.z - center.z) <= radius * radius;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.octree;
+
+import com.jme3.math.Vector3f;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A log of the last edits of an octree, for undo and redo.
+ * 
+ * Every entry is a group of EditOperations together with its inverse: for
+ * each operation, a RESTORE of the smallest existing subtree containing
+ * everything the operation can change, captured before the operation is
+ * applied. The entries are kept in a ring buffer, the oldest ones are
+ * dropped when it's full.
+ * 
+ * The log can be saved to a file together with the octree as it was before
+ * the oldest entry, so that the editing session can be replayed on a
+ * headless tree, see Recording and JournalReplay.
+ * @author Loris
+ */
+public class EditJournal {
+    
+    public static final int DEFAULT_CAPACITY = 256;
+    
+    private static final int FILE_MAGIC = 0x4F43544C; //OCTL
+    
+    private final Entry[] entries;
+    private int first = 0; //index of the oldest entry
+    private int size = 0;
+    private int cursor = 0; //entries before the cursor are applied, the others can be redone
+    
+    private EditOperation changeInverse; //between beginChange() and endChange()
+    
+    public EditJournal(){
+        this(DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * @param capacity the number of edits that can be undone
+     */
+    public EditJournal(int capacity){
+        this.entries = new Entry[capacity];
+    }
+    
+    /**
+     * Records some edits that are about to be applied to a tree. Must be
+     * called before applying them, with the tree in the state they will be
+     * applied to. The edits that can be redone are discarded.
+     * @param tree
+     * @param ops 
+     */
+    public void record(Octree tree, final EditOperation... ops){
+        EditOperation[] inverse = tree.readLocked(new OctreeReader<EditOperation[]>() {
+            @Override
+            public EditOperation[] read(Octree t) {
+                //all the inverses restore the state before the first edit,
+                //so they are applied in reverse order
+                EditOperation[] result = new EditOperation[ops.length];
+                for(int i=0; i<ops.length; i++){
+                    result[ops.length - 1 - i] = capture(t, region(t, ops[i]));
+                }
+                return result;
+            }
+        });
+        push(new Entry(ops, inverse));
+    }
+    
+    /**
+     * Starts recording a change that is not made of EditOperations, like an
+     * import. The subtree at code is captured before and after the change.
+     * @param tree
+     * @param code the code of a subtree containing the whole change
+     */
+    public void beginChange(Octree tree, final long code){
+        changeInverse = tree.readLocked(new OctreeReader<EditOperation>() {
+            @Override
+            public EditOperation read(Octree t) {
+                return capture(t, code);
+            }
+        });
+    }
+    
+    public void endChange(Octree tree){
+        EditOperation forward = tree.readLocked(new OctreeReader<EditOperation>() {
+            @Override
+            public EditOperation read(Octree t) {
+                return capture(t, changeInverse.getCode());
+            }
+        });
+        push(new Entry(new EditOperation[]{forward}, new EditOperation[]{changeInverse}));
+        changeInverse = null;
+    }
+    
+    private void push(Entry e){
+        size = cursor; //forget the edits that could be redone
+        if(size == entries.length){
+            first = (first + 1) % entries.length;
+            size--;
+        }
+        entries[(first + size) % entries.length] = e;
+        size++;
+        cursor = size;
+    }
+    
+    public boolean canUndo(){
+        return cursor > 0;
+    }
+    
+    public boolean canRedo(){
+        return cursor < size;
+    }
+    
+    /**
+     * Moves back by one entry. The caller applies the returned operations,
+     * without recording them.
+     * @return the inverse of the last applied entry, or null
+     */
+    public EditOperation[] undo(){
+        if(!canUndo()){
+            return null;
+        }
+        cursor--;
+        return entries[(first + cursor) % entries.length].inverse;
+    }
+    
+    /**
+     * Moves forward by one entry, see undo()
+     * @return the operations of the last undone entry, or null
+     */
+    public EditOperation[] redo(){
+        if(!canRedo()){
+            return null;
+        }
+        cursor++;
+        return entries[(first + cursor - 1) % entries.length].forward;
+    }
+    
+    public void clear(){
+        for(int i=0; i<entries.length; i++){
+            entries[i] = null;
+        }
+        first = 0;
+        size = 0;
+        cursor = 0;
+    }
+    
+    /**
+     * The code of the node containing everything an operation can change
+     */
+    private static long region(Octree tree, EditOperation op){
+        if(!op.isBoxOperation()){
+            return op.getCode();
+        }
+        //descend while a child contains the whole box. Octants deeper than
+        //the operation depth can stick out of the box, so stop there.
+        float[] box = op.getBox();
+        Vector3f origin = new Vector3f(tree.getRoot().getOrigin());
+        Vector3f childOrigin = new Vector3f();
+        float size = tree.getRoot().getEdgeSize();
+        long code = LocationalCode.ROOT;
+        for(int d=0; d<op.getDepth(); d++){
+            float half = size / 4f; //half the edge of a child
+            int found = -1;
+            for(int i=0; i<8 && found < 0; i++){
+                childOrigin.set(origin);
+                LocationalCode.offsetToChild(childOrigin, i + 1, half);
+                if(box[0] >= childOrigin.x - half && box[3] <= childOrigin.x + half
+                        && box[1] >= childOrigin.y - half && box[4] <= childOrigin.y + half
+                        && box[2] >= childOrigin.z - half && box[5] <= childOrigin.z + half){
+                    found = i;
+                }
+            }
+            if(found < 0){
+                break;
+            }
+            code = LocationalCode.child(code, found);
+            LocationalCode.offsetToChild(origin, found + 1, half);
+            size /= 2f;
+        }
+        return code;
+    }
+    
+    /**
+     * Encodes the deepest existing octant on the path to code. The edits
+     * on code can subdivide it, or merge it with its ancestors, but they
+     * can't change anything outside of it.
+     */
+    private static EditOperation capture(Octree tree, long code){
+        Octant o = tree.getRoot();
+        long existing = LocationalCode.ROOT;
+        int depth = LocationalCode.depth(code);
+        for(int i=1; i<=depth && o.hasChildren(); i++){
+            int index = LocationalCode.childIndexAt(code, i);
+            o = o.getChildren()[index];
+            existing = LocationalCode.child(existing, index);
+        }
+        return EditOperation.restore(existing, SubtreeCodec.encode(o));
+    }
+    
+    /**
+     * Saves the applied entries, together with the tree as it was before
+     * them. The edits that can be redone are not saved.
+     * @param tree the tree the entries were applied to, in its current state
+     * @param file
+     * @throws IOException 
+     */
+    public void save(Octree tree, File file) throws IOException {
+        Octant root = tree.getRoot();
+        
+        //rewind a copy of the tree to the state before the oldest entry
+        Octree base = new Octree();
+        base.setAutoMerge(tree.isAutoMerge());
+        base.generateRoot(root.getEdgeSize(), new Vector3f(root.getOrigin()));
+        base.restoreSubtree(LocationalCode.ROOT, SubtreeCodec.encode(root));
+        for(int i=cursor-1; i>=0; i--){
+            for(EditOperation op : entries[(first + i) % entries.length].inverse){
+                op.apply(base);
+            }
+        }
+        
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeBoolean(base.isAutoMerge());
+            out.writeFloat(root.getEdgeSize());
+            out.writeFloat(root.getOrigin().x);
+            out.writeFloat(root.getOrigin().y);
+            out.writeFloat(root.getOrigin().z);
+            byte[] data = SubtreeCodec.encode(base.getRoot());
+            out.writeInt(data.length);
+            out.write(data);
+            out.writeInt(cursor);
+            for(int i=0; i<cursor; i++){
+                EditOperation[] ops = entries[(first + i) % entries.length].forward;
+                out.writeInt(ops.length);
+                for(EditOperation op : ops){
+                    op.write(out);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Loads a journal saved with save()
+     * @param file
+     * @return the recorded session
+     * @throws IOException 
+     */
+    public static Recording load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if(in.readInt() != FILE_MAGIC){
+                throw new IOException("Not an edit journal: " + file);
+            }
+            boolean autoMerge = in.readBoolean();
+            float rootSize = in.readFloat();
+            Vector3f rootOrigin = new Vector3f(in.readFloat(), in.readFloat(), in.readFloat());
+            byte[] base = new byte[in.readInt()];
+            in.readFully(base);
+            int count = in.readInt();
+            List<EditOperation[]> edits = new ArrayList<EditOperation[]>(count);
+            for(int i=0; i<count; i++){
+                EditOperation[] ops = new EditOperation[in.readInt()];
+                for(int j=0; j<ops.length; j++){
+                    ops[j] = EditOperation.read(in);
+                }
+                edits.add(ops);
+            }
+            return new Recording(autoMerge, rootSize, rootOrigin, base, edits);
+        } finally {
+            in.close();
+        }
+    }
+    
+    private static class Entry {
+        final EditOperation[] forward;
+        final EditOperation[] inverse;
+        
+        Entry(EditOperation[] forward, EditOperation[] inverse){
+            this.forward = forward;
+            this.inverse = inverse;
+        }
+    }
+    
+    /**
+     * An editing session loaded from a file: the starting tree and the edits
+     * applied to it
+     */
+    public static class Recording {
+        
+        private final boolean autoMerge;
+        private final float rootSize;
+        private final Vector3f rootOrigin;
+        private final byte[] base;
+        private final List<EditOperation[]> edits;
+        
+        Recording(boolean autoMerge, float rootSize, Vector3f rootOrigin, byte[] base, List<EditOperation[]> edits){
+            this.autoMerge = autoMerge;
+            this.rootSize = rootSize;
+            this.rootOrigin = rootOrigin;
+            this.base = base;
+            this.edits = edits;
+        }
+        
+        /**
+         * @return a new headless tree in the state before the first edit
+         */
+        public Octree createTree(){
+            Octree tree = new Octree();
+            tree.setAutoMerge(autoMerge);
+            tree.generateRoot(rootSize, new Vector3f(rootOrigin));
+            tree.restoreSubtree(LocationalCode.ROOT, base);
+            return tree;
+        }
+        
+        /**
+         * Applies all the edits to a tree made by createTree()
+         * @param tree
+         * @return the number of applied operations
+         */
+        public int replay(Octree tree){
+            int applied = 0;
+            tree.beginBatch();
+            try {
+                for(EditOperation[] ops : edits){
+                    for(EditOperation op : ops){
+                        op.apply(tree);
+                        applied++;
+                    }
+                }
+            } finally {
+                tree.endBatch();
+            }
+            return applied;
+        }
+
+        public List<EditOperation[]> getEdits() {
+            return edits;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.octree;
+
+import com.illogica.oct.states.Materials;
+import com.jme3.math.Vector3f;
+import com.jme3.network.serializing.Serializable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single, self contained edit of the octree. Operations address nodes by
+ * their locational code, so they can be sent over the network or stored and
+ * applied to any octree with the same root.
+ * @author Loris
+ */
+@Serializable
+public class EditOperation {
+    
+    public static final byte CREATE = 0; //create the octant and set its material
+    public static final byte DELETE = 1;
+    public static final byte SET_MATERIAL = 2;
+    public static final byte SUBDIVIDE = 3;
+    public static final byte FILL_BOX = 4; //box operations are addressed by the root
+    public static final byte CLEAR_BOX = 5;
+    public static final byte PAINT_BOX = 6;
+    public static final byte RESTORE = 7; //replaces a subtree with an encoded one
+    
+    private byte type;
+    private long code;
+    private int material;
+    private byte depth; //box operations only
+    private float[] box; //box operations only: min x,y,z and max x,y,z
+    private byte[] subtree; //restore only, encoded with the SubtreeCodec
+    
+    /**
+     * Serialization only. Do not use.
+     */
+    public EditOperation(){
+    }
+    
+    public EditOperation(byte type, long code, int material){
+        this.type = type;
+        this.code = code;
+        this.material = material;
+    }
+    
+    public static EditOperation create(long code, int material){
+        return new EditOperation(CREATE, code, material);
+    }
+    
+    public static EditOperation delete(long code){
+        return new EditOperation(DELETE, code, 0);
+    }
+    
+    public static EditOperation setMaterial(long code, int material){
+        return new EditOperation(SET_MATERIAL, code, material);
+    }
+    
+    public static EditOperation subdivide(long code){
+        return new EditOperation(SUBDIVIDE, code, 0);
+    }
+    
+    /**
+     * @param type one of FILL_BOX, CLEAR_BOX, PAINT_BOX
+     * @param min
+     * @param max
+     * @param depth
+     * @param material
+     * @return an operation on all the octants inside the box
+     */
+    public static EditOperation box(byte type, Vector3f min, Vector3f max, byte depth, int material){
+        EditOperation op = new EditOperation(type, LocationalCode.ROOT, material);
+        op.depth = depth;
+        op.box = new float[]{min.x, min.y, min.z, max.x, max.y, max.z};
+        return op;
+    }
+    
+    /**
+     * @param code
+     * @param subtree a subtree encoded with the SubtreeCodec
+     * @return an operation replacing the subtree at code
+     */
+    public static EditOperation restore(long code, byte[] subtree){
+        EditOperation op = new EditOperation(RESTORE, code, 0);
+        op.subtree = subtree;
+        return op;
+    }
+    
+    /**
+     * Splits a restore bigger than maxBytes in a restore of its top node,
+     * with the children that have children of their own left as air leaves,
+     * followed by the restores of those children, split again if needed.
+     * Other operations are added as they are.
+     * @param maxBytes
+     * @param out receives the operations, in the order they must be applied
+     */
+    public void split(int maxBytes, List<EditOperation> out){
+        SubtreeCodec reader = type == RESTORE ? new SubtreeCodec(subtree, 0) : null;
+        if(reader == null || subtree.length <= maxBytes || !reader.peekInternal()){
+            out.add(this);
+            return;
+        }
+        ByteArrayOutputStream top = new ByteArrayOutputStream();
+        SubtreeCodec.writeInternal(top);
+        int start[] = new int[8];
+        int end[] = new int[8];
+        reader.enterInternal();
+        for(int i=0; i<8; i++){
+            start[i] = reader.position();
+            if(reader.peekInternal()){
+                SubtreeCodec.writeLeaf(top, Materials.MAT_AIR);
+                end[i] = reader.skip();
+            } else {
+                SubtreeCodec.writeLeaf(top, reader.readLeaf());
+            }
+        }
+        out.add(restore(code, top.toByteArray()));
+        for(int i=0; i<8; i++){
+            if(end[i] > 0){
+                restore(LocationalCode.child(code, i), Arrays.copyOfRange(subtree, start[i], end[i])).split(maxBytes, out);
+            }
+        }
+    }
+    
+    public boolean isBoxOperation(){
+        return type == FILL_BOX || type == CLEAR_BOX || type == PAINT_BOX;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public long getCode() {
+        return code;
+    }
+
+    public int getMaterial() {
+        return material;
+    }
+
+    public byte getDepth() {
+        return depth;
+    }
+
+    public float[] getBox() {
+        return box;
+    }
+
+    public byte[] getSubtree() {
+        return subtree;
+    }
+    
+    /**
+     * Applies this operation to an octree
+     * @param tree
+     * @return the octant affected by the operation, or null if the operation
+     * could not be applied
+     */
+    public Octant apply(OctreeEditor tree){
+        Octant o;
+        switch(type){
+            case CREATE:
+                o = tree.createOctant(code);
+                return tree.changeOctantMaterial(o, material);
+            case DELETE:
+                o = tree.getOctant(code);
+                //If the Octant is small and does not exist yet, we create its tree
+                if(o == null)
+                    o = tree.createOctant(code);
+                return tree.deleteOctant(o);
+            case SET_MATERIAL:
+                o = tree.getOctant(code);
+                if(o == null){
+                    Logger.getLogger(EditOperation.class.getName()).log(Level.FINE, "Can''t apply material, non existent octant for code {0}", Long.toOctalString(code));
+                    return null;
+                }
+                return tree.changeOctantMaterial(o, material);
+            case SUBDIVIDE:
+                o = tree.getOctant(code);
+                if(o == null || o.hasChildren())
+                    return o;
+                return tree.subdivideOctant(o);
+            case FILL_BOX:
+                tree.fillBox(boxMin(), boxMax(), depth, material);
+                return tree.getOctant(LocationalCode.ROOT);
+            case CLEAR_BOX:
+                tree.clearBox(boxMin(), boxMax(), depth);
+                return tree.getOctant(LocationalCode.ROOT);
+            case PAINT_BOX:
+                tree.paintBox(boxMin(), boxMax(), depth, material);
+                return tree.getOctant(LocationalCode.ROOT);
+            case RESTORE:
+                return tree.restoreSubtree(code, subtree);
+            default:
+                throw new IllegalStateException("Unknown edit operation type " + type);
+        }
+    }
+
+    /**
+     * @return an upper bound of the bytes taken by this operation once
+     * serialized in a network message
+     */
+    public int getSerializedSize(){
+        int size = 24;
+        if(box != null){
+            size += 30;
+        }
+        if(subtree != null){
+            size += subtree.length + 8;
+        }
+        return size;
+    }
+
+    /**
+     * Writes this operation in a compact binary form, see read()
+     * @param out
+     * @throws IOException 
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(type);
+        out.writeLong(code);
+        out.writeInt(material);
+        if(isBoxOperation()){
+            out.writeByte(depth);
+            for(int i=0; i<6; i++){
+                out.writeFloat(box[i]);
+            }
+        } else if(type == RESTORE){
+            out.writeInt(subtree.length);
+            out.write(subtree);
+        }
+    }
+    
+    public static EditOperation read(DataInput in) throws IOException {
+        EditOperation op = new EditOperation(in.readByte(), in.readLong(), in.readInt());
+        if(op.isBoxOperation()){
+            op.depth = in.readByte();
+            op.box = new float[6];
+            for(int i=0; i<6; i++){
+                op.box[i] = in.readFloat();
+            }
+        } else if(op.type == RESTORE){
+            op.subtree = new byte[in.readInt()];
+            in.readFully(op.subtree);
+        }
+        return op;
+    }
+
+    private Vector3f boxMin(){
+        return new Vector3f(box[0], box[1], box[2]);
+    }
+    
+    private Vector3f boxMax(){
+        return new Vector3f(box[3], box[4], box[5]);
+    }
+
+    @Override
+    public String toString() {
+        return "EditOperation type:" + type + ", code:" + Long.toOctalString(code) + ", material:" + material;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.octree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Replays a saved EditJournal on a headless tree as fast as possible, to
+ * measure the cost of realistic editing sessions. Every run must give the
+ * same tree, its checksum is printed so that it can be compared between
+ * versions of the editor.
+ * 
+ * Usage: JournalReplay journal_file [runs]
+ * @author Loris
+ */
+public class JournalReplay {
+    
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1){
+            System.out.println("Usage: JournalReplay journal_file [runs]");
+            return;
+        }
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        EditJournal.Recording recording = EditJournal.load(new File(args[0]));
+        
+        long checksum = -1;
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        int applied = 0;
+        for(int i=0; i<runs; i++){
+            Octree tree = recording.createTree();
+            long start = System.nanoTime();
+            applied = recording.replay(tree);
+            long elapsed = System.nanoTime() - start;
+            best = Math.min(best, elapsed);
+            total += elapsed;
+            
+            CRC32 crc = new CRC32();
+            byte[] encoded = SubtreeCodec.encode(tree.getRoot());
+            crc.update(encoded, 0, encoded.length);
+            if(checksum >= 0 && crc.getValue() != checksum){
+                System.out.println("JournalReplay: run " + i + " gave a different tree!");
+            }
+            checksum = crc.getValue();
+        }
+        
+        System.out.println("JournalReplay: " + recording.getEdits().size() + " entries, " + applied + " operations");
+        System.out.println("JournalReplay: best " + (best / 1000) + "us, avg " + (total / runs / 1000) + "us, "
+                + String.format("%.0f", applied / (best / 1e9)) + " operations/s");
+        System.out.println("JournalReplay: result checksum " + Long.toHexString(checksum));
+    }
+}
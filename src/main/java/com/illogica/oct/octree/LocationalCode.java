@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.octree;
+
+import com.jme3.math.Vector3f;
+
+/**
+ * Locational codes are a compact way to address a node of the octree.
+ * A code is a long made of a leading sentinel bit followed by 3 bits for each
+ * level of the path from the root to the node. The 3 bits are the index of the
+ * child in the parent's children array (octant type - 1).
+ * 
+ * The root is 1, the first child of the root is 0b1000, and so on.
+ * With 64 bits we can address nodes up to depth 21, which is way more than
+ * the SelectionManager.MAX_DEPTH.
+ * @author Loris
+ */
+public final class LocationalCode {
+    
+    public static final long ROOT = 1L;
+    public static final int MAX_DEPTH = 21;
+    
+    private LocationalCode(){
+    }
+    
+    /**
+     * @param code
+     * @return the depth of the node addressed by the code
+     */
+    public static int depth(long code){
+        return (63 - Long.numberOfLeadingZeros(code)) / 3;
+    }
+    
+    /**
+     * @param code
+     * @param childIndex the index in the children array, 0 to 7
+     * @return the code of a child of the node
+     */
+    public static long child(long code, int childIndex){
+        return (code << 3) | childIndex;
+    }
+    
+    public static long parent(long code){
+        return code >>> 3;
+    }
+    
+    /**
+     * @param code
+     * @param level a level between 1 and depth(code)
+     * @return the child index taken at the given level of the path
+     */
+    public static int childIndexAt(long code, int level){
+        return (int)((code >>> (3 * (depth(code) - level))) & 7);
+    }
+    
+    /**
+     * @param ancestor
+     * @param code
+     * @return true if code is ancestor itself or one of its descendants
+     */
+    public static boolean isDescendant(long ancestor, long code){
+        int d = depth(code) - depth(ancestor);
+        return d >= 0 && (code >>> (3 * d)) == ancestor;
+    }
+    
+    /**
+     * Computes the code of an existing octant walking up to the root
+     * @param o
+     * @return the locational code of o
+     */
+    public static long of(Octant o){
+        long code = 0;
+        int shift = 0;
+        Octant current = o;
+        while(current.getParent() != null){
+            code |= ((long)(current.getType() - 1)) << shift;
+            shift += 3;
+            current = current.getParent();
+        }
+        return code | (ROOT << shift);
+    }
+    
+    /**
+     * Computes the code of the node described by an Octinfo. The node does not
+     * need to exist in the tree.
+     * @param tree
+     * @param oi
+     * @return the locational code
+     */
+    public static long of(Octree tree, Octinfo oi){
+        Vector3f target = oi.origin();
+        Vector3f origin = new Vector3f(tree.getRoot().getOrigin());
+        float size = tree.getRoot().getEdgeSize();
+        long code = ROOT;
+        for(int i=0; i<oi.depth; i++){
+            byte type = Octree.getOctantTypeForPoint(origin, target);
+            code = child(code, type - 1);
+            size /= 2f;
+            offsetToChild(origin, type, size / 2f);
+        }
+        return code;
+    }
+    
+    /**
+     * Rebuilds the spatial information of the node addressed by code
+     * @param tree
+     * @param code
+     * @return an Octinfo with origin, size and depth of the node
+     */
+    public static Octinfo toOctinfo(Octree tree, long code){
+        return toOctinfo(tree.getRoot().getOrigin(), tree.getRoot().getEdgeSize(), code);
+    }
+    
+    /**
+     * Same as above, for when only the root characteristics are known
+     * @param rootOrigin
+     * @param rootSize
+     * @param code
+     * @return an Octinfo with origin, size and depth of the node
+     */
+    public static Octinfo toOctinfo(Vector3f rootOrigin, float rootSize, long code){
+        int depth = depth(code);
+        Vector3f origin = new Vector3f(rootOrigin);
+        float size = rootSize;
+        for(int i=1; i<=depth; i++){
+            size /= 2f;
+            offsetToChild(origin, childIndexAt(code, i) + 1, size / 2f);
+        }
+        return new Octinfo(origin, size, (byte)depth);
+    }
+    
+    /**
+     * Moves origin from the center of a node to the center of one of its
+     * children
+     * @param origin the parent origin, modified in place
+     * @param type the octant type of the child (1 to 8)
+     * @param halfSize half the edge size of the child
+     */
+    static void offsetToChild(Vector3f origin, int type, float halfSize){
+        switch(type){
+            case Octree.TYPE_1: origin.addLocal(halfSize, halfSize, halfSize); break;
+            case Octree.TYPE_2: origin.addLocal(halfSize, halfSize, -halfSize); break;
+            case Octree.TYPE_3: origin.addLocal(-halfSize, halfSize, -halfSize); break;
+            case Octree.TYPE_4: origin.addLocal(-halfSize, halfSize, halfSize); break;
+            case Octree.TYPE_5: origin.addLocal(halfSize, -halfSize, halfSize); break;
+            case Octree.TYPE_6: origin.addLocal(halfSize, -halfSize, -halfSize); break;
+            case Octree.TYPE_7: origin.addLocal(-halfSize, -halfSize, -halfSize); break;
+            case Octree.TYPE_8: origin.addLocal(-halfSize, -halfSize, halfSize); break;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.octree;
+
+import com.illogica.oct.states.Materials;
+import com.jme3.math.Transform;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.SceneGraphVisitorAdapter;
+import com.jme3.scene.Spatial;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Converts triangle meshes into octants. The triangles are collected in world
+ * space, then every child of the root is voxelized on its own thread: each
+ * octant only tests the triangles that touched its parent, so empty space is
+ * pruned as soon as no triangle is left. The threads don't touch the Octree,
+ * they write their subtree with the SubtreeCodec and the result is applied
+ * to the tree in a single batch.
+ * 
+ * Only the surface of the meshes is voxelized. The octants crossed by a
+ * triangle take the material of its geometry, the others are left untouched.
+ * @author Loris
+ */
+public class MeshVoxelizer {
+    
+    //the boxes are slightly enlarged, so triangles lying exactly on the
+    //border of two octants mark both of them
+    private static final float EPSILON = 1e-4f;
+    
+    private final byte depth;
+    private int defaultMaterial = Materials.MAT_SOLID_GRAY;
+    private final HashMap<String, Integer> materials = new HashMap<String, Integer>();
+    
+    private float[] vertices = new float[9 * 1024]; //3 vertices per triangle
+    private int[] triangleMaterials = new int[1024];
+    private int triangleCount = 0;
+    
+    /**
+     * @param depth the depth of the octants created along the surface
+     */
+    public MeshVoxelizer(byte depth){
+        this.depth = depth;
+    }
+    
+    public void setDefaultMaterial(int materialId){
+        this.defaultMaterial = materialId;
+    }
+    
+    /**
+     * Geometries with the given name, or using a jME material with the given
+     * name, are voxelized with materialId instead of the default material
+     * @param name
+     * @param materialId 
+     */
+    public void setMaterial(String name, int materialId){
+        materials.put(name, materialId);
+    }
+    
+    public int getTriangleCount(){
+        return triangleCount;
+    }
+    
+    /**
+     * Adds all the geometries of a spatial, using their world transforms
+     * @param spatial 
+     */
+    public void addSpatial(Spatial spatial){
+        spatial.depthFirstTraversal(new SceneGraphVisitorAdapter() {
+            @Override
+            public void visit(Geometry geom) {
+                addMesh(geom.getMesh(), geom.getWorldTransform(), materialFor(geom));
+            }
+        });
+    }
+    
+    /**
+     * Adds the triangles of a mesh
+     * @param mesh
+     * @param transform the transform from mesh to octree coordinates, can be null
+     * @param materialId 
+     */
+    public void addMesh(Mesh mesh, Transform transform, int materialId){
+        Vector3f v1 = new Vector3f();
+        Vector3f v2 = new Vector3f();
+        Vector3f v3 = new Vector3f();
+        int count = mesh.getTriangleCount();
+        ensureCapacity(triangleCount + count);
+        for(int i=0; i<count; i++){
+            mesh.getTriangle(i, v1, v2, v3);
+            if(transform != null){
+                transform.transformVector(v1, v1);
+                transform.transformVector(v2, v2);
+                transform.transformVector(v3, v3);
+            }
+            int t = triangleCount * 9;
+            vertices[t] = v1.x; vertices[t + 1] = v1.y; vertices[t + 2] = v1.z;
+            vertices[t + 3] = v2.x; vertices[t + 4] = v2.y; vertices[t + 5] = v2.z;
+            vertices[t + 6] = v3.x; vertices[t + 7] = v3.y; vertices[t + 8] = v3.z;
+            triangleMaterials[triangleCount] = materialId;
+            triangleCount++;
+        }
+    }
+    
+    private int materialFor(Geometry geom){
+        Integer m = materials.get(geom.getName());
+        if(m == null && geom.getMaterial() != null && geom.getMaterial().getName() != null){
+            m = materials.get(geom.getMaterial().getName());
+        }
+        return m != null ? m : defaultMaterial;
+    }
+    
+    private void ensureCapacity(int triangles){
+        if(triangles > triangleMaterials.length){
+            int size = Math.max(triangles, triangleMaterials.length * 2);
+            float[] v = new float[size * 9];
+            System.arraycopy(vertices, 0, v, 0, triangleCount * 9);
+            vertices = v;
+            int[] m = new int[size];
+            System.arraycopy(triangleMaterials, 0, m, 0, triangleCount);
+            triangleMaterials = m;
+        }
+    }
+    
+    /**
+     * Voxelizes the triangles added so far into the tree. Must be called from
+     * the thread owning the tree, which is blocked until the work is done.
+     * @param tree 
+     */
+    public void voxelize(Octree tree){
+        long start = System.nanoTime();
+        final Octant root = tree.getRoot();
+        if(triangleCount == 0 || depth <= root.getDepth()){
+            return;
+        }
+        
+        final int[] all = new int[triangleCount];
+        for(int i=0; i<triangleCount; i++){
+            all[i] = i;
+        }
+        
+        //build one plan per root child, in parallel
+        byte[][] plans = new byte[8][];
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+            for(int i=0; i<8; i++){
+                final Vector3f center = root.getOrigin().clone();
+                final float half = root.getEdgeSize() / 4f;
+                LocationalCode.offsetToChild(center, i + 1, half);
+                futures.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        build(all, all.length, center.x, center.y, center.z, half, root.getDepth() + 1, out);
+                        return out.toByteArray();
+                    }
+                }));
+            }
+            for(int i=0; i<8; i++){
+                plans[i] = futures.get(i).get();
+            }
+        } catch (InterruptedException ex) {
+            Logger.getLogger(MeshVoxelizer.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        } catch (ExecutionException ex) {
+            Logger.getLogger(MeshVoxelizer.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        } finally {
+            executor.shutdown();
+        }
+        long built = System.nanoTime();
+        
+        tree.beginBatch();
+        try {
+            if(!root.hasChildren()){
+                root.subdivide();
+            }
+            Octant children[] = root.getChildren();
+            for(int i=0; i<8; i++){
+                apply(new SubtreeCodec(plans[i], 0), children[i], tree.isAutoMerge());
+            }
+            if(tree.isAutoMerge() && root.canCollapse()){
+                root.collapse();
+            }
+        } finally {
+            tree.endBatch();
+        }
+        Logger.getLogger(MeshVoxelizer.class.getName()).log(Level.FINE, "{0} triangles, built in {1}ms, applied in {2}ms",
+                new Object[]{triangleCount, (built - start) / 1000000, (System.nanoTime() - built) / 1000000});
+    }
+    
+    /**
+     * Writes the plan of an octant. Only the triangles in tris[0..count)
+     * can touch it.
+     */
+    private void build(int[] tris, int count, float cx, float cy, float cz, float half, int d, ByteArrayOutputStream out){
+        int[] inside = new int[count];
+        int n = 0;
+        float h = half * (1f + EPSILON);
+        for(int i=0; i<count; i++){
+            if(overlaps(tris[i], cx, cy, cz, h)){
+                inside[n++] = tris[i];
+            }
+        }
+        if(n == 0){
+            SubtreeCodec.writeLeaf(out, Materials.MAT_AIR);
+            return;
+        }
+        if(d >= depth){
+            //the first triangle added wins, so the result doesn't depend on threads
+            SubtreeCodec.writeLeaf(out, triangleMaterials[inside[0]]);
+            return;
+        }
+        SubtreeCodec.writeInternal(out);
+        float q = half / 2f;
+        for(int type=Octree.TYPE_1; type<=Octree.TYPE_8; type++){
+            float x = cx, y = cy, z = cz;
+            switch(type){
+                case Octree.TYPE_1: x += q; y += q; z += q; break;
+                case Octree.TYPE_2: x += q; y += q; z -= q; break;
+                case Octree.TYPE_3: x -= q; y += q; z -= q; break;
+                case Octree.TYPE_4: x -= q; y += q; z += q; break;
+                case Octree.TYPE_5: x += q; y -= q; z += q; break;
+                case Octree.TYPE_6: x += q; y -= q; z -= q; break;
+                case Octree.TYPE_7: x -= q; y -= q; z -= q; break;
+                case Octree.TYPE_8: x -= q; y -= q; z += q; break;
+            }
+            build(inside, n, x, y, z, q, d + 1, out);
+        }
+    }
+    
+    /**
+     * Writes the plan into the tree. Air leaves of the plan leave the tree
+     * untouched.
+     */
+    private static void apply(SubtreeCodec plan, Octant target, boolean merge){
+        if(plan.peekInternal()){
+            plan.enterInternal();
+            if(!target.hasChildren()){
+                target.subdivide();
+            }
+            for(Octant c : target.getChildren()){
+                apply(plan, c, merge);
+            }
+            if(merge && target.canCollapse()){
+                target.collapse();
+            }
+        } else {
+            int material = plan.readLeaf();
+            if(material == Materials.MAT_AIR){
+                return;
+            }
+            if(target.hasChildren()){
+                target.deleteChildren();
+            }
+            if(target.getMaterialType() != material){
+                target.setMaterialType(material);
+            }
+        }
+    }
+    
+    /**
+     * Triangle/box overlap test with the separating axis theorem
+     * (Akenine-Möller): the 3 box normals, the triangle normal and the 9
+     * cross products of the edges.
+     */
+    private boolean overlaps(int triangle, float cx, float cy, float cz, float h){
+        int t = triangle * 9;
+        float[] v = vertices;
+        float v0x = v[t] - cx, v0y = v[t + 1] - cy, v0z = v[t + 2] - cz;
+        float v1x = v[t + 3] - cx, v1y = v[t + 4] - cy, v1z = v[t + 5] - cz;
+        float v2x = v[t + 6] - cx, v2y = v[t + 7] - cy, v2z = v[t + 8] - cz;
+        
+        //box normals, the bounding boxes must overlap
+        if(min(v0x, v1x, v2x) > h || max(v0x, v1x, v2x) < -h) return false;
+        if(min(v0y, v1y, v2y) > h || max(v0y, v1y, v2y) < -h) return false;
+        if(min(v0z, v1z, v2z) > h || max(v0z, v1z, v2z) < -h) return false;
+        
+        float e0x = v1x - v0x, e0y = v1y - v0y, e0z = v1z - v0z;
+        float e1x = v2x - v1x, e1y = v2y - v1y, e1z = v2z - v1z;
+        float e2x = v0x - v2x, e2y = v0y - v2y, e2z = v0z - v2z;
+        
+        //triangle normal
+        float nx = e0y * e1z - e0z * e1y;
+        float ny = e0z * e1x - e0x * e1z;
+        float nz = e0x * e1y - e0y * e1x;
+        float d = nx * v0x + ny * v0y + nz * v0z;
+        float r = h * (Math.abs(nx) + Math.abs(ny) + Math.abs(nz));
+        if(d > r || d < -r) return false;
+        
+        //edges crossed with the x axis
+        if(separated(e0z, -e0y, v0y, v0z, v2y, v2z, e0y, e0z, h)) return false;
+        if(separated(e1z, -e1y, v0y, v0z, v1y, v1z, e1y, e1z, h)) return false;
+        if(separated(e2z, -e2y, v0y, v0z, v1y, v1z, e2y, e2z, h)) return false;
+        //edges crossed with the y axis
+        if(separated(e0x, -e0z, v0z, v0x, v2z, v2x, e0z, e0x, h)) return false;
+        if(separated(e1x, -e1z, v0z, v0x, v1z, v1x, e1z, e1x, h)) return false;
+        if(separated(e2x, -e2z, v0z, v0x, v1z, v1x, e2z, e2x, h)) return false;
+        //edges crossed with the z axis
+        if(separated(e0y, -e0x, v0x, v0y, v2x, v2y, e0x, e0y, h)) return false;
+        if(separated(e1y, -e1x, v0x, v0y, v1x, v1y, e1x, e1y, h)) return false;
+        if(separated(e2y, -e2x, v0x, v0y, v1x, v1y, e2x, e2y, h)) return false;
+        return true;
+    }
+    
+    /**
+     * Tests the axis (a, b) in the plane of two coordinates, projecting the
+     * two vertices that can give different results. The third vertex always
+     * projects like one of them.
+     */
+    private static boolean separated(float a, float b, float p1, float q1, float p2, float q2, float ep, float eq, float h){
+        float s1 = a * p1 + b * q1;
+        float s2 = a * p2 + b * q2;
+        float r = h * (Math.abs(ep) + Math.abs(eq));
+        return Math.min(s1, s2) > r || Math.max(s1, s2) < -r;
+    }
+    
+    private static float min(float a, float b, float c){
+        return Math.min(a, Math.min(b, c));
+    }
+    
+    private static float max(float a, float b, float c){
+        return Math.max(a, Math.max(b, c));
+    }
+}
@@ -76,8 +76,6 @@ import java.io.IOException;
  */
 public class Octant implements Savable, Comparable {
 
-    private static int ID = 0; //thought about long, but int should be enough
-
     //Physical characteristics of this node
     private Vector3f origin;
     private float edgeSize;
@@ -90,9 +88,15 @@ public class Octant implements Savable, Comparable {
     
 
     //Tree data structure stuff
+    private Octree tree;
     private Octant parent;
     private Octant children[];
     private byte depth; //128 levels of depth are waayyyy more than enough
+    
+    //Change tracking: the tree version of the last change of this octant
+    //(material or children), and the latest of all the changes in its subtree
+    private long stamp;
+    private long subtreeStamp;
     //maybe I could save some byte implementing the getDepth()
     //function as an actual recursive search for the node depth
 
@@ -100,15 +104,19 @@ public class Octant implements Savable, Comparable {
      * Private constructor. To create an Octant object you must call
      * createOctant
      *
+     * @param tree the tree this octant belongs to
      * @param parent
      * @param size dimension of the cube edge
      * @param origin
      * @param depth
      * @param octantType
      */
-    private Octant(Octant parent, float size, Vector3f origin, byte depth, byte octantType) {
+    private Octant(Octree tree, Octant parent, float size, Vector3f origin, byte depth, byte octantType) {
         this.data = new OctantData(this);
-        this.id = ID++;
+        this.id = tree.nextOctantId();
+        this.tree = tree;
+        this.stamp = tree.getVersion();
+        this.subtreeStamp = stamp;
         this.parent = parent;
         this.edgeSize = size;
         this.origin = origin;
@@ -119,12 +127,12 @@ public class Octant implements Savable, Comparable {
         } else {
             this.data.materialType = Materials.MAT_AIR; //material for the root octant
         }
-        System.out.println("Octant: Created node with id " + id + " and material " + data.materialType);
     }
 
     /**
      * Official method to call when you need to generate an Octant
      *
+     * @param tree
      * @param parent
      * @param size
      * @param origin
@@ -132,10 +140,11 @@ public class Octant implements Savable, Comparable {
      * @param octantType
      * @return
      */
-    public static Octant createOctant(Octant parent, float size, Vector3f origin, byte depth, byte octantType) {
-        Octant o = new Octant(parent, size, origin, depth, octantType);
-        if (Octree.getListener() != null) {
-            Octree.getListener().onOctantGenerated(o);
+    public static Octant createOctant(Octree tree, Octant parent, float size, Vector3f origin, byte depth, byte octantType) {
+        Octant o = new Octant(tree, parent, size, origin, depth, octantType);
+        OctreeListener listener = tree.getListener();
+        if (listener != null) {
+            listener.onOctantGenerated(o);
         }
         return o;
     }
@@ -152,6 +161,51 @@ public class Octant implements Savable, Comparable {
         return id;
     }
 
+    /**
+     * @return the tree this octant belongs to
+     */
+    public Octree getTree() {
+        return tree;
+    }
+    
+    /**
+     * @return the tree version of the last change of this octant
+     */
+    public long getStamp() {
+        return stamp;
+    }
+    
+    /**
+     * @return the tree version of the last change in the subtree of this octant
+     */
+    public long getSubtreeStamp() {
+        return subtreeStamp;
+    }
+    
+    /**
+     * Marks this octant as changed in the current tree version, along with
+     * the subtree stamps of its ancestors. All the changes of an edit share
+     * the same version, so the walk up stops at the first ancestor already
+     * marked.
+     */
+    private void touch() {
+        if (tree == null) {
+            return;
+        }
+        long version = tree.getVersion();
+        stamp = version;
+        for (Octant o = this; o != null && o.subtreeStamp != version; o = o.parent) {
+            o.subtreeStamp = version;
+        }
+    }
+    
+    /**
+     * Octants read with a JmeImporter don't belong to any tree
+     */
+    private OctreeListener getListener() {
+        return tree != null ? tree.getListener() : null;
+    }
+
     public Octant getParent() {
         return parent;
     }
@@ -180,9 +234,11 @@ public class Octant implements Savable, Comparable {
      */
     public Octant setMaterialType(int newType) {
         this.data.materialType = newType;
+        touch();
 
-        if (Octree.getListener() != null) {
-            Octree.getListener().onOctantMaterialChanged(this);
+        OctreeListener listener = getListener();
+        if (listener != null) {
+            listener.onOctantMaterialChanged(this);
         }
 
         return this;
@@ -192,6 +248,49 @@ public class Octant implements Savable, Comparable {
         return data.materialType;
     }
 
+    /**
+     * The material that represents this subtree when it's drawn as a single
+     * cube: each child votes with its own dominant material, air wins only
+     * with more than half of the votes, otherwise the most voted solid
+     * material wins.
+     *
+     * @return the dominant material of the subtree
+     */
+    public int getDominantMaterial() {
+        if (!hasChildren()) {
+            return data.materialType;
+        }
+        int votes[] = new int[8];
+        int air = 0;
+        for (int i = 0; i < 8; i++) {
+            votes[i] = children[i].getDominantMaterial();
+            if (votes[i] == Materials.MAT_AIR) {
+                air++;
+            }
+        }
+        if (air > 4) {
+            return Materials.MAT_AIR;
+        }
+        int best = Materials.MAT_AIR;
+        int bestCount = 0;
+        for (int i = 0; i < 8; i++) {
+            if (votes[i] == Materials.MAT_AIR) {
+                continue;
+            }
+            int count = 0;
+            for (int j = 0; j < 8; j++) {
+                if (votes[j] == votes[i]) {
+                    count++;
+                }
+            }
+            if (count > bestCount) {
+                best = votes[i];
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+
     /**
      * Goes up to the octree until the root octant is found
      *
@@ -294,22 +393,30 @@ public class Octant implements Savable, Comparable {
      */
     public Octant delete() {
         deleteChildren();
-        if (Octree.getListener() != null) {
-            Octree.getListener().onOctantDeleted(this); //remove from the scenegraph
+        OctreeListener listener = getListener();
+        if (listener != null) {
+            listener.onOctantDeleted(this); //remove from the scenegraph
         }
         this.setMaterialType(Materials.MAT_AIR);
         return this;
     }
 
     /**
-     * Removes this octant's children subtrees
+     * Removes this octant's children subtrees. The listener is only told
+     * that each removed octant was deleted, once.
      */
     public void deleteChildren() {
         if (this.hasChildren()) {
+            OctreeListener listener = getListener();
             for (Octant child : children) {
-                child.delete();
+                child.deleteChildren();
+                if (listener != null) {
+                    listener.onOctantDeleted(child); //remove from the scenegraph
+                }
             }
             this.children = null;
+            tree.countChildren(-1);
+            touch();
         }
     }
 
@@ -322,19 +429,59 @@ public class Octant implements Savable, Comparable {
     public Octant subdivide() {
         children = new Octant[8];
         float size = edgeSize / 4;
-        children[0] = createOctant(this, edgeSize / 2, origin.add(new Vector3f(size, size, size)), (byte) (depth + 1), Octree.TYPE_1);
-        children[1] = createOctant(this, edgeSize / 2, origin.add(new Vector3f(size, size, -size)), (byte) (depth + 1), Octree.TYPE_2);
-        children[2] = createOctant(this, edgeSize / 2, origin.add(new Vector3f(-size, size, -size)), (byte) (depth + 1), Octree.TYPE_3);
-        children[3] = createOctant(this, edgeSize / 2, origin.add(new Vector3f(-size, size, size)), (byte) (depth + 1), Octree.TYPE_4);
-        children[4] = createOctant(this, edgeSize / 2, origin.add(new Vector3f(size, -size, size)), (byte) (depth + 1), Octree.TYPE_5);
-        children[5] = createOctant(this, edgeSize / 2, origin.add(new Vector3f(size, -size, -size)), (byte) (depth + 1), Octree.TYPE_6);
-        children[6] = createOctant(this, edgeSize / 2, origin.add(new Vector3f(-size, -size, -size)), (byte) (depth + 1), Octree.TYPE_7);
-        children[7] = createOctant(this, edgeSize / 2, origin.add(new Vector3f(-size, -size, size)), (byte) (depth + 1), Octree.TYPE_8);
+        children[0] = createOctant(tree, this, edgeSize / 2, origin.add(new Vector3f(size, size, size)), (byte) (depth + 1), Octree.TYPE_1);
+        children[1] = createOctant(tree, this, edgeSize / 2, origin.add(new Vector3f(size, size, -size)), (byte) (depth + 1), Octree.TYPE_2);
+        children[2] = createOctant(tree, this, edgeSize / 2, origin.add(new Vector3f(-size, size, -size)), (byte) (depth + 1), Octree.TYPE_3);
+        children[3] = createOctant(tree, this, edgeSize / 2, origin.add(new Vector3f(-size, size, size)), (byte) (depth + 1), Octree.TYPE_4);
+        children[4] = createOctant(tree, this, edgeSize / 2, origin.add(new Vector3f(size, -size, size)), (byte) (depth + 1), Octree.TYPE_5);
+        children[5] = createOctant(tree, this, edgeSize / 2, origin.add(new Vector3f(size, -size, -size)), (byte) (depth + 1), Octree.TYPE_6);
+        children[6] = createOctant(tree, this, edgeSize / 2, origin.add(new Vector3f(-size, -size, -size)), (byte) (depth + 1), Octree.TYPE_7);
+        children[7] = createOctant(tree, this, edgeSize / 2, origin.add(new Vector3f(-size, -size, size)), (byte) (depth + 1), Octree.TYPE_8);
+        tree.countChildren(1);
 
         this.setMaterialType(Materials.MAT_AIR); //hide "this", the parent cube
         return this;
     }
 
+    /**
+     * @return true if this octant has 8 leaf children with the same material
+     */
+    public boolean canCollapse() {
+        if (!hasChildren()) {
+            return false;
+        }
+        int material = children[0].data.materialType;
+        for (Octant child : children) {
+            if (child.hasChildren() || child.data.materialType != material) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The opposite of subdivide(): removes the children and gives their
+     * material to this octant. Only works if canCollapse() is true.
+     *
+     * @return the current Octant
+     */
+    public Octant collapse() {
+        return collapse(children[0].data.materialType);
+    }
+
+    /**
+     * Removes the children and gives this octant the material, whatever the
+     * children are made of
+     *
+     * @param material the new material of this octant
+     * @return the current Octant
+     */
+    Octant collapse(int material) {
+        deleteChildren();
+        this.setMaterialType(material);
+        return this;
+    }
+
     /**
      * Make sure the provided position is within borders of the root cube
      *
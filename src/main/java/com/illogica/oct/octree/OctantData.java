@@ -44,6 +44,9 @@ public class OctantData {
     public float normArray[];
     public float tanArray[];
     public short indArray[];
+    public float colorArray[]; //see AmbientOcclusion
+    public boolean aoBaked; //false when colorArray must be baked again
+    public byte light; //sky light in the high 4 bits, see VoxelLighting
     
     public OctantData(Octant o){
         this.o = o;
@@ -28,8 +28,16 @@ package com.illogica.oct.octree;
 import com.illogica.oct.states.Materials;
 import com.jme3.math.FastMath;
 import com.jme3.math.Vector3f;
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * The Octree class works like a container for the root node of the tree and has
@@ -64,12 +72,91 @@ public class Octree implements OctreeEditor{
 
     //The characteristics of an octree
     private Octant root;
+    private boolean autoMerge = true;
 
-    private static OctreeListener listener;
+    private OctreeListener listener;
+    private int batchDepth = 0;
+    private final AtomicInteger octantIds = new AtomicInteger(); //octants can be created by several threads
+    
+    //Edits hold the write lock, readers on other threads try an optimistic
+    //read first and take the read lock only if an edit got in the way
+    private final StampedLock lock = new StampedLock();
+    private volatile Thread writer;
+    private long writeStamp;
+    private int writeHolds = 0;
+    
+    //Incremented by every edit, see getVersion()
+    private volatile long version = 0;
+    
+    //Octants and leaves of the tree, sizing the spliterators. Kept by
+    //subdivide() and deleteChildren(), the builders subdivide from many threads
+    private final LongAdder octantCount = new LongAdder();
+    private final LongAdder leafCount = new LongAdder();
 
     public Octant getRoot() {
         return root;
     }
+    
+    public boolean isAutoMerge() {
+        return autoMerge;
+    }
+
+    /**
+     * When auto merge is on, every edit that changes the material of an
+     * octant or deletes it checks if its parent can be collapsed, and so on up
+     * to the root. Explicit subdivisions are never merged back immediately.
+     * @param autoMerge 
+     */
+    public void setAutoMerge(boolean autoMerge) {
+        this.autoMerge = autoMerge;
+    }
+    
+    /**
+     * Collapses the ancestors of o that have 8 uniform leaf children
+     * @param o an octant that has just been edited
+     * @return the topmost collapsed ancestor, or o if nothing was collapsed
+     */
+    public Octant mergeUpwards(Octant o){
+        lockWrite();
+        try {
+            Octant current = o;
+            while(current.getParent() != null && current.getParent().canCollapse()){
+                current = current.getParent().collapse();
+            }
+            return current;
+        } finally {
+            unlockWrite();
+        }
+    }
+    
+    /**
+     * Collapses all the uniform subtrees of the octree, useful after loading
+     * a tree or after editing it with auto merge turned off.
+     * @return the number of collapsed octants
+     */
+    public int compact(){
+        beginBatch();
+        try {
+            return compact(root);
+        } finally {
+            endBatch();
+        }
+    }
+    
+    private int compact(Octant o){
+        if(!o.hasChildren()){
+            return 0;
+        }
+        int merged = 0;
+        for(Octant c : o.getChildren()){
+            merged += compact(c);
+        }
+        if(o.canCollapse()){
+            o.collapse();
+            merged++;
+        }
+        return merged;
+    }
 
     /**
      * Return an Octinfo to be used as a pointer. This is the
@@ -139,13 +226,63 @@ public class Octree implements OctreeEditor{
         return currentOctant;
     }
 
+    /**
+     * Finds the leaf containing a point, without allocating anything. Meant
+     * for the code sampling the tree many times per octant, like the
+     * ambient occlusion of the meshes.
+     * @param x
+     * @param y
+     * @param z
+     * @return the leaf, or null if the point is outside the root
+     */
+    public Octant getLeaf(float x, float y, float z) {
+        return getOctant(x, y, z, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Same as getLeaf(), stopping at the given depth
+     * @param x
+     * @param y
+     * @param z
+     * @param depth
+     * @return the deepest octant containing the point, not deeper than
+     * depth, or null if the point is outside the root
+     */
+    public Octant getOctant(float x, float y, float z, int depth) {
+        Vector3f c = root.getOrigin();
+        float h = root.getEdgeSize() / 2f;
+        if (FastMath.abs(x - c.x) > h || FastMath.abs(y - c.y) > h || FastMath.abs(z - c.z) > h) {
+            return null;
+        }
+        Octant currentOctant = root;
+        while (currentOctant.hasChildren() && currentOctant.getDepth() < depth) {
+            c = currentOctant.getOrigin();
+            int index;
+            if (x > c.x) {
+                if (y > c.y) {
+                    index = z > c.z ? TYPE_1 : TYPE_2;
+                } else {
+                    index = z > c.z ? TYPE_5 : TYPE_6;
+                }
+            } else {
+                if (y > c.y) {
+                    index = z > c.z ? TYPE_4 : TYPE_3;
+                } else {
+                    index = z > c.z ? TYPE_8 : TYPE_7;
+                }
+            }
+            currentOctant = currentOctant.getChildren()[index - 1];
+        }
+        return currentOctant;
+    }
+
     /**
      * Check if a point is inside the boundaries of the root cube
      *
      * @param position the point to check
      * @return true if the point is in a valid position (inside the root cube)
      */
-    private boolean isPositionValid(Vector3f position) {
+    public boolean isPositionValid(Vector3f position) {
         float edgeDiv2 = root.getEdgeSize() / 2f;
         if (FastMath.abs(position.x) > (root.getOrigin().x + edgeDiv2)) {
             return false;
@@ -198,20 +335,228 @@ public class Octree implements OctreeEditor{
         }
     }
     
-    ////                STATIC METHODS START HERE
-    //Using static variables in this case helps saving memory because some vars
-    //are shared between all the octants, like the octant listener.
+    /**
+     * @return the listener, or null while a batch of edits is running
+     */
+    public OctreeListener getListener(){
+        return batchDepth > 0 ? null : listener;
+    }
+    
+    /**
+     * @param listener the listener, can be null for headless trees
+     */
+    public void setListener(OctreeListener listener){
+        this.listener = listener;
+        if(listener != null)
+            listener.setOctree(this);
+    }
+    
+    /**
+     * @return a new id, unique in this tree
+     */
+    int nextOctantId(){
+        return octantIds.getAndIncrement();
+    }
     
-    public static OctreeListener getListener(){
-        return listener;
+    /**
+     * Counts the 8 children given to a leaf, or taken from it when negative
+     * @param sign 1 or -1
+     */
+    void countChildren(int sign){
+        octantCount.add(sign * 8);
+        leafCount.add(sign * 7);
+    }
+    
+    /**
+     * Starts a batch of edits. Until the matching endBatch() the listener is
+     * not notified of any change, then it gets a single onOctreeChanged().
+     * Batches can be nested.
+     */
+    public void beginBatch(){
+        lockWrite();
+        batchDepth++;
+    }
+    
+    public void endBatch(){
+        try {
+            batchDepth--;
+            if(batchDepth == 0 && listener != null){
+                listener.onOctreeChanged(root);
+            }
+        } finally {
+            unlockWrite();
+        }
+    }
+    
+    /**
+     * Blocks the readers on other threads until the matching unlockWrite().
+     * Every edit method of the tree takes the lock by itself: call this only
+     * to make several edits look atomic, or before editing the octants
+     * directly. The lock is reentrant.
+     */
+    public void lockWrite(){
+        if(writer == Thread.currentThread()){
+            writeHolds++;
+            return;
+        }
+        long stamp = lock.writeLock();
+        writer = Thread.currentThread();
+        writeStamp = stamp;
+        writeHolds = 1;
+        version++;
+    }
+    
+    public void unlockWrite(){
+        if(--writeHolds == 0){
+            writer = null;
+            lock.unlockWrite(writeStamp);
+        }
+    }
+    
+    /**
+     * The version of the tree grows by one with every edit (or batch of
+     * edits, or lockWrite()), and the octants changed by the edit are stamped
+     * with it. Octants edited directly, without the write lock, get the
+     * version of the last edit.
+     * @return the current version
+     */
+    public long getVersion(){
+        return version;
     }
     
+    /**
+     * Collects the octants changed after a version, visiting only the
+     * subtrees that contain changes. An octant whose children were deleted
+     * or created counts as changed, so a consumer should rebuild its whole
+     * subtree.
+     * @param version a value returned by getVersion()
+     * @return the changed octants, parents before their children
+     */
+    public List<Octant> getChangedSince(long version){
+        final List<Octant> changed = new ArrayList<Octant>();
+        traverse(OctreeTraversal.PRE_ORDER, OctreeTraversal.changedSince(version), new OctreeTraversal.Visitor() {
+            @Override
+            public void visit(Octant o) {
+                changed.add(o);
+            }
+        });
+        return changed;
+    }
+    
+    /**
+     * Walks the whole tree, see OctreeTraversal. Callers walking often
+     * should keep their own OctreeTraversal instead, that walks without
+     * creating garbage.
+     * @param order OctreeTraversal.PRE_ORDER, POST_ORDER or LEAVES
+     * @param filter prunes the walk, OctreeTraversal.ALL visits every octant
+     * @param visitor 
+     */
+    public void traverse(int order, OctreeTraversal.Filter filter, OctreeTraversal.Visitor visitor){
+        new OctreeTraversal().walk(root, order, filter, visitor);
+    }
+    
+    /**
+     * @param order OctreeTraversal.PRE_ORDER, POST_ORDER or LEAVES
+     * @param filter prunes the walk, OctreeTraversal.ALL visits every octant
+     * @return an iterator over the octants of the tree
+     */
+    public Iterator<Octant> iterator(int order, OctreeTraversal.Filter filter){
+        return new OctreeTraversal(root, order, filter);
+    }
+    
+    /**
+     * A spliterator over the tree, splitting along child boundaries, see
+     * OctreeSpliterator. Its size is estimated from the number of octants of
+     * the tree, kept up to date by the edits.
+     * Like any reader it must be used inside readLocked() or by the editing
+     * thread, the workers of a parallel stream don't take the lock.
+     * @param order OctreeTraversal.PRE_ORDER, POST_ORDER or LEAVES
+     * @param filter prunes the walk, OctreeTraversal.ALL visits every octant
+     * @return the spliterator
+     */
+    public Spliterator<Octant> spliterator(int order, OctreeTraversal.Filter filter){
+        long size = order == OctreeTraversal.LEAVES ? leafCount.sum() : octantCount.sum();
+        return new OctreeSpliterator(root, order, filter, Math.max(1, size));
+    }
+    
+    /**
+     * @param order OctreeTraversal.PRE_ORDER, POST_ORDER or LEAVES
+     * @param filter prunes the walk, OctreeTraversal.ALL visits every octant
+     * @param parallel
+     * @return a stream of the octants of the tree, see spliterator()
+     */
+    public Stream<Octant> stream(int order, OctreeTraversal.Filter filter, boolean parallel){
+        return StreamSupport.stream(spliterator(order, filter), parallel);
+    }
+    
+    /**
+     * @return a sequential stream of all the leaves, parallel() splits it
+     */
+    public Stream<Octant> leaves(){
+        return stream(OctreeTraversal.LEAVES, OctreeTraversal.ALL, false);
+    }
+    
+    /**
+     * @return a sequential stream of all the octants, parents first
+     */
+    public Stream<Octant> octants(){
+        return stream(OctreeTraversal.PRE_ORDER, OctreeTraversal.ALL, false);
+    }
+    
+    /**
+     * Runs a reader without blocking the editing thread. The reader is run
+     * without any lock first, and run again under the read lock if the tree
+     * was edited meanwhile, so it must not have side effects and must expect
+     * an inconsistent tree, or even exceptions, on the first run.
+     * Good for short reads like picking or looking up a few octants.
+     * @param reader
+     * @return the value returned by the reader from a consistent tree
+     */
+    public <T> T read(OctreeReader<T> reader){
+        if(writer == Thread.currentThread()){
+            return reader.read(this);
+        }
+        long stamp = lock.tryOptimisticRead();
+        if(stamp != 0){
+            try {
+                T result = reader.read(this);
+                if(lock.validate(stamp)){
+                    return result;
+                }
+            } catch (RuntimeException ex){
+                if(lock.validate(stamp)){
+                    throw ex; //not caused by a concurrent edit
+                }
+            }
+        }
+        return readLocked(reader);
+    }
+    
+    /**
+     * Runs a reader under the read lock. Edits wait until it's done, but
+     * other readers don't. Good for long reads like meshing or snapshots.
+     * @param reader
+     * @return the value returned by the reader
+     */
+    public <T> T readLocked(OctreeReader<T> reader){
+        if(writer == Thread.currentThread()){
+            return reader.read(this);
+        }
+        long stamp = lock.readLock();
+        try {
+            return reader.read(this);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+    
+    ////                STATIC METHODS START HERE
+    
     public static Octree createTemplateOctree(OctreeListener listener){
         Octree tree = new Octree();
         
         //First of all, register the listener
-        Octree.listener = listener;
-        listener.setOctree(tree);
+        tree.setListener(listener);
         
         //Now generate the floor geometry:
         // four air cubes on the top
@@ -235,51 +580,56 @@ public class Octree implements OctreeEditor{
         Octree tree = new Octree();
         
         //First of all, register the listener
-        Octree.listener = listener;
-        listener.setOctree(tree);
+        tree.setListener(listener);
         
-        //Now generate the floor geometry:
+        //Now generate the floor geometry: it's encoded first, then built
+        //in parallel by a ParallelBuilder
         tree.generateRoot(FastMath.pow(2f, size) , Vector3f.ZERO);
         
-        List<Octant> childrenToSubdivide = new ArrayList<Octant>();
-        List<Octant> childrenSubdivided = new ArrayList<Octant>();
-        
-        tree.getRoot().subdivide();
-        Octant rootChildren[] = tree.getRoot().getChildren();
-        childrenToSubdivide.add(rootChildren[4]);
-        childrenToSubdivide.add(rootChildren[5]);
-        childrenToSubdivide.add(rootChildren[6]);
-        childrenToSubdivide.add(rootChildren[7]);
-        
-        for(int i=0; i<size-1; i++){
-            
-            while(!childrenToSubdivide.isEmpty()){
-                Octant o = childrenToSubdivide.remove(0);
-                o.subdivide();
-                for(Octant c : o.getChildren())
-                    if(c.getType()<5){
-                        childrenSubdivided.add(c);
-                    }
-            }
-            
-            while(!childrenSubdivided.isEmpty()){
-                childrenToSubdivide.add(childrenSubdivided.remove(0));
+        ByteArrayOutputStream floor = new ByteArrayOutputStream();
+        SubtreeCodec.writeInternal(floor);
+        for(int i=0; i<8; i++){
+            if(i < 4){
+                SubtreeCodec.writeLeaf(floor, Materials.MAT_AIR);
+            } else {
+                encodeFloor(floor, Math.max(0, size - 1));
             }
         }
-        
-        for(Octant t: childrenToSubdivide){
-            t.setMaterialType(Materials.MAT_RANDOM_COLOR);
-        }
+        new ParallelBuilder().decodeInto(tree, floor.toByteArray(), 0, tree.getRoot());
        
         return tree;
     }
     
+    /**
+     * Encodes a subtree whose bottom children are split again down to the
+     * given number of levels, where they become random colored leaves
+     */
+    private static void encodeFloor(ByteArrayOutputStream out, int levels){
+        if(levels == 0){
+            SubtreeCodec.writeLeaf(out, Materials.MAT_RANDOM_COLOR);
+            return;
+        }
+        SubtreeCodec.writeInternal(out);
+        for(int i=0; i<8; i++){
+            if(i < 4){
+                encodeFloor(out, levels - 1);
+            } else {
+                SubtreeCodec.writeLeaf(out, Materials.MAT_AIR);
+            }
+        }
+    }
+    
+    /**
+     * Creates a tree made of the root only
+     * @param listener the listener, can be null for headless trees
+     * @param size the root edge size is 2^size
+     * @return the tree
+     */
     public static Octree createSimpleTree(OctreeListener listener, byte size){
         Octree tree = new Octree();
         
         //First of all, register the listener
-        Octree.listener = listener;
-        listener.setOctree(tree);
+        tree.setListener(listener);
         
         //Now generate the geometry:
         tree.generateRoot(FastMath.pow(2f, size) , Vector3f.ZERO)
@@ -319,18 +669,68 @@ public class Octree implements OctreeEditor{
      */
     @Override
     public Octant generateRoot(float size, Vector3f origin){
-        root = Octant.createOctant(null, size, origin, (byte)0, TYPE_ROOT);
-        return root;
+        lockWrite();
+        try {
+            root = Octant.createOctant(this, null, size, origin, (byte)0, TYPE_ROOT);
+            octantCount.reset();
+            octantCount.increment();
+            leafCount.reset();
+            leafCount.increment();
+            return root;
+        } finally {
+            unlockWrite();
+        }
     }
 
     /**
      * Delete an octant from the tree
      * @param o the octant to be deleted
-     * @return the deleted octant
+     * @return the deleted octant, or the ancestor it was merged into when
+     * auto merge is on
      */
     @Override
     public Octant deleteOctant(Octant o) {
-        return o.delete();
+        lockWrite();
+        try {
+            //when ancestors are going to be merged anyway, merge them right
+            //away so the octant and its siblings are only deleted once
+            Octant merged = autoMerge ? findMerge(o, Materials.MAT_AIR) : o;
+            if(merged != o){
+                return merged.collapse(Materials.MAT_AIR);
+            }
+            o.delete();
+            return autoMerge ? mergeUpwards(o) : o;
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    /**
+     * Finds the topmost ancestor that auto merge would collapse once o is a
+     * leaf made of the material, so it can be collapsed in a single step
+     * @param o the octant about to be edited
+     * @param material the material o is going to have
+     * @return the ancestor, or o if nothing would be collapsed
+     */
+    private static Octant findMerge(Octant o, int material){
+        Octant top = o;
+        while(top.getParent() != null && isUniformBesides(top.getParent(), top, material)){
+            top = top.getParent();
+        }
+        return top;
+    }
+
+    /**
+     * @return true if all the children of the parent but o are leaves made
+     * of the material
+     */
+    private static boolean isUniformBesides(Octant parent, Octant o, int material){
+        for(Octant c : parent.getChildren()){
+            if(c != o && (c.hasChildren() || c.getMaterialType() != material)){
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -346,33 +746,451 @@ public class Octree implements OctreeEditor{
             return null;
         }
         
+        lockWrite();
+        try {
+            Octant currentOctant = root;
+
+            while(currentOctant.getDepth() < o.depth){
+                //subdivide the current octant if not already divided
+                if(!currentOctant.hasChildren())
+                    currentOctant.subdivide();
+
+                //get the octant type relative to the root origin
+                byte octantType = getOctantTypeForPoint(currentOctant.getOrigin(), o.origin());
+                currentOctant = currentOctant.getChildren()[octantType - (byte)1];
+            }
+
+            //currentOctant.setMaterialType(materialId);
+
+            if(currentOctant.hasChildren())
+                currentOctant.deleteChildren();
+            return currentOctant;
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    /**
+     * Locate an existing octant given its locational code
+     * @param code
+     * @return the octant or null if the octant does not exist
+     */
+    @Override
+    public Octant getOctant(long code){
         Octant currentOctant = root;
-        
-        while(currentOctant.getDepth() < o.depth){
-            //subdivide the current octant if not already divided
+        int depth = LocationalCode.depth(code);
+        for(int i=1; i<=depth; i++){
             if(!currentOctant.hasChildren())
-                currentOctant.subdivide();
-            
-            //get the octant type relative to the root origin
-            byte octantType = getOctantTypeForPoint(currentOctant.getOrigin(), o.origin());
-            currentOctant = currentOctant.getChildren()[octantType - (byte)1];
+                return null;
+            currentOctant = currentOctant.getChildren()[LocationalCode.childIndexAt(code, i)];
         }
-        
-        //currentOctant.setMaterialType(materialId);
-
-        if(currentOctant.hasChildren())
-            currentOctant.deleteChildren();
         return currentOctant;
     }
 
+    /**
+     * Creates an octant given its locational code, subdividing its ancestors
+     * where needed.
+     * @param code
+     * @return the octant generated
+     */
+    @Override
+    public Octant createOctant(long code){
+        lockWrite();
+        try {
+            Octant currentOctant = root;
+            int depth = LocationalCode.depth(code);
+            for(int i=1; i<=depth; i++){
+                if(!currentOctant.hasChildren())
+                    currentOctant.subdivide();
+                currentOctant = currentOctant.getChildren()[LocationalCode.childIndexAt(code, i)];
+            }
+
+            if(currentOctant.hasChildren())
+                currentOctant.deleteChildren();
+            return currentOctant;
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    /**
+     * Changes the material of an octant
+     * @param o
+     * @param materialId
+     * @return the octant, or the ancestor it was merged into when auto merge
+     * is on
+     */
     @Override
     public Octant changeOctantMaterial(Octant o, int materialId) {
-        return o.setMaterialType(materialId);
+        lockWrite();
+        try {
+            //same as deleteOctant(), the octant is not changed if an
+            //ancestor takes its place
+            Octant merged = autoMerge && !o.hasChildren() ? findMerge(o, materialId) : o;
+            if(merged != o){
+                return merged.collapse(materialId);
+            }
+            o.setMaterialType(materialId);
+            return autoMerge ? mergeUpwards(o) : o;
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    /**
+     * Replaces a subtree with an encoded one, creating it if needed. The
+     * subtree is copied exactly, without merging anything.
+     * @param code
+     * @param subtree a subtree encoded with the SubtreeCodec
+     * @return the root of the restored subtree
+     */
+    @Override
+    public Octant restoreSubtree(long code, byte[] subtree){
+        lockWrite();
+        try {
+            Octant o = getOctant(code);
+            if(o == null){
+                o = createOctant(code);
+            }
+            new SubtreeCodec(subtree, 0).decodeInto(o);
+            return o;
+        } finally {
+            unlockWrite();
+        }
     }
 
     @Override
     public Octant subdivideOctant(Octant o) {
-        return o.subdivide();
+        lockWrite();
+        try {
+            return o.subdivide();
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    /**
+     * Fills a box with a material. Octants completely inside the box are
+     * turned into a single leaf, so only the octants crossing the box surface
+     * are subdivided down to the requested depth.
+     * @param min the lower corner of the box
+     * @param max the upper corner of the box
+     * @param depth the depth of the smallest octants to be filled. At this
+     * depth an octant is filled if its origin is inside the box.
+     * @param materialId
+     */
+    @Override
+    public void fillBox(Vector3f min, Vector3f max, byte depth, int materialId){
+        editBox(min, max, depth, BOX_FILL, materialId);
+    }
+    
+    /**
+     * Empties a box, see fillBox()
+     * @param min
+     * @param max
+     * @param depth 
+     */
+    @Override
+    public void clearBox(Vector3f min, Vector3f max, byte depth){
+        editBox(min, max, depth, BOX_FILL, Materials.MAT_AIR);
+    }
+    
+    /**
+     * Changes the material of the solid octants inside a box, see fillBox()
+     * @param min
+     * @param max
+     * @param depth
+     * @param materialId 
+     */
+    @Override
+    public void paintBox(Vector3f min, Vector3f max, byte depth, int materialId){
+        editBox(min, max, depth, BOX_PAINT, materialId);
+    }
+    
+    private static final int BOX_FILL = 0;
+    private static final int BOX_PAINT = 1;
+    
+    private void editBox(Vector3f min, Vector3f max, byte depth, int mode, int materialId){
+        beginBatch();
+        try {
+            editBox(root, min, max, depth, mode, materialId, false);
+        } finally {
+            endBatch();
+        }
+    }
+    
+    /**
+     * @param inside true when an ancestor is covered by the box, so the
+     * whole subtree is edited
+     */
+    private void editBox(Octant o, Vector3f min, Vector3f max, byte depth, int mode, int materialId, boolean inside){
+        boolean covered = inside;
+        if(!covered){
+            Vector3f c = o.getOrigin();
+            float h = o.getEdgeSize() / 2f;
+
+            //no overlap with the box
+            if(c.x + h <= min.x || c.x - h >= max.x
+                    || c.y + h <= min.y || c.y - h >= max.y
+                    || c.z + h <= min.z || c.z - h >= max.z){
+                return;
+            }
+
+            covered = c.x - h >= min.x && c.x + h <= max.x
+                    && c.y - h >= min.y && c.y + h <= max.y
+                    && c.z - h >= min.z && c.z + h <= max.z;
+            if(!covered && o.getDepth() >= depth){
+                //smallest octants are edited if their origin is inside the box
+                covered = c.x >= min.x && c.x <= max.x
+                        && c.y >= min.y && c.y <= max.y
+                        && c.z >= min.z && c.z <= max.z;
+                if(!covered){
+                    return;
+                }
+            }
+        }
+        
+        if(mode == BOX_FILL){
+            if(covered){
+                if(o.hasChildren())
+                    o.deleteChildren();
+                if(o.getMaterialType() != materialId)
+                    o.setMaterialType(materialId);
+                return;
+            }
+            if(!o.hasChildren()){
+                if(o.getMaterialType() == materialId)
+                    return; //already filled
+                o.subdivide();
+            }
+        } else { //BOX_PAINT
+            if(!o.hasChildren()){
+                if(o.getMaterialType() == Materials.MAT_AIR || o.getMaterialType() == materialId)
+                    return;
+                if(covered){
+                    o.setMaterialType(materialId);
+                    return;
+                }
+                o.subdivide();
+            }
+        }
+        
+        for(Octant child : o.getChildren()){
+            editBox(child, min, max, depth, mode, materialId, covered);
+        }
+        
+        if(autoMerge && o.canCollapse()){
+            o.collapse();
+        }
+    }
+
+    private static final int CSG_UNION = 0;
+    private static final int CSG_DIFFERENCE = 1;
+    private static final int CSG_INTERSECTION = 2;
+    
+    /**
+     * Adds the solid octants of another tree. Where both trees are solid the
+     * material of this tree is kept.
+     * The two trees must have the same root size and origin.
+     * @param other 
+     */
+    @Override
+    public void union(Octree other){
+        csg(other, CSG_UNION);
+    }
+    
+    /**
+     * Removes the solid octants of another tree from this one
+     * @param other 
+     */
+    @Override
+    public void difference(Octree other){
+        csg(other, CSG_DIFFERENCE);
+    }
+    
+    /**
+     * Keeps only the octants that are solid in both trees, with the material
+     * of this tree
+     * @param other 
+     */
+    @Override
+    public void intersection(Octree other){
+        csg(other, CSG_INTERSECTION);
+    }
+    
+    /**
+     * Fills the empty space inside a shape with a material
+     * @param shape
+     * @param depth the depth of the smallest octants crossing the shape
+     * surface. At this depth an octant is inside if its origin is.
+     * @param materialId 
+     */
+    @Override
+    public void union(CsgShape shape, byte depth, int materialId){
+        csg(shape, depth, CSG_UNION, materialId);
+    }
+    
+    /**
+     * Carves a shape out of the tree, see union()
+     * @param shape
+     * @param depth 
+     */
+    @Override
+    public void difference(CsgShape shape, byte depth){
+        csg(shape, depth, CSG_DIFFERENCE, Materials.MAT_AIR);
+    }
+    
+    /**
+     * Removes everything outside a shape, see union()
+     * @param shape
+     * @param depth 
+     */
+    @Override
+    public void intersection(CsgShape shape, byte depth){
+        csg(shape, depth, CSG_INTERSECTION, Materials.MAT_AIR);
+    }
+    
+    private void csg(Octree other, int operation){
+        if(root.getEdgeSize() != other.root.getEdgeSize() || !root.getOrigin().equals(other.root.getOrigin())){
+            throw new IllegalArgumentException("Boolean operations need octrees with the same root");
+        }
+        beginBatch();
+        try {
+            csg(root, other.root, operation);
+        } finally {
+            endBatch();
+        }
+    }
+    
+    /**
+     * Walks both trees in lockstep. As soon as the other tree has a leaf, the
+     * whole subtree of this tree is solved at once.
+     */
+    private void csg(Octant a, Octant b, int operation){
+        int mb = b.getMaterialType();
+        if(!b.hasChildren()){
+            switch(operation){
+                case CSG_UNION:
+                    if(mb != Materials.MAT_AIR)
+                        fillAir(a, mb);
+                    break;
+                case CSG_DIFFERENCE:
+                    if(mb != Materials.MAT_AIR)
+                        makeLeaf(a, Materials.MAT_AIR);
+                    break;
+                case CSG_INTERSECTION:
+                    if(mb == Materials.MAT_AIR)
+                        makeLeaf(a, Materials.MAT_AIR);
+                    break;
+            }
+            return;
+        }
+        
+        if(!a.hasChildren()){
+            if(a.getMaterialType() == Materials.MAT_AIR){
+                if(operation == CSG_UNION)
+                    copySubtree(b, a);
+                return; //nothing to remove from air
+            }
+            if(operation == CSG_UNION)
+                return; //a solid leaf wins
+            a.subdivide();
+        }
+        
+        Octant ac[] = a.getChildren();
+        Octant bc[] = b.getChildren();
+        for(int i=0; i<8; i++){
+            csg(ac[i], bc[i], operation);
+        }
+        if(autoMerge && a.canCollapse()){
+            a.collapse();
+        }
+    }
+    
+    private void csg(CsgShape shape, byte depth, int operation, int materialId){
+        beginBatch();
+        try {
+            csg(root, shape, depth, operation, materialId);
+        } finally {
+            endBatch();
+        }
+    }
+    
+    private void csg(Octant a, CsgShape shape, byte depth, int operation, int materialId){
+        int position = shape.classify(a.getOrigin(), a.getEdgeSize() / 2f);
+        if(position == CsgShape.INTERSECTS && a.getDepth() >= depth){
+            position = shape.contains(a.getOrigin()) ? CsgShape.INSIDE : CsgShape.OUTSIDE;
+        }
+        
+        switch(position){
+            case CsgShape.OUTSIDE:
+                if(operation == CSG_INTERSECTION)
+                    makeLeaf(a, Materials.MAT_AIR);
+                return;
+            case CsgShape.INSIDE:
+                if(operation == CSG_UNION)
+                    fillAir(a, materialId);
+                else if(operation == CSG_DIFFERENCE)
+                    makeLeaf(a, Materials.MAT_AIR);
+                return;
+        }
+        
+        if(!a.hasChildren()){
+            boolean air = a.getMaterialType() == Materials.MAT_AIR;
+            if(operation == CSG_UNION ? !air : air)
+                return; //nothing would change
+            a.subdivide();
+        }
+        for(Octant c : a.getChildren()){
+            csg(c, shape, depth, operation, materialId);
+        }
+        if(autoMerge && a.canCollapse()){
+            a.collapse();
+        }
+    }
+    
+    /**
+     * Turns an octant into a leaf with the given material
+     */
+    private void makeLeaf(Octant o, int materialId){
+        if(o.hasChildren())
+            o.deleteChildren();
+        if(o.getMaterialType() != materialId)
+            o.setMaterialType(materialId);
+    }
+    
+    /**
+     * Gives a material to all the air leaves of a subtree
+     */
+    private void fillAir(Octant o, int materialId){
+        if(!o.hasChildren()){
+            if(o.getMaterialType() == Materials.MAT_AIR)
+                o.setMaterialType(materialId);
+            return;
+        }
+        for(Octant c : o.getChildren()){
+            fillAir(c, materialId);
+        }
+        if(autoMerge && o.canCollapse()){
+            o.collapse();
+        }
+    }
+    
+    /**
+     * Copies the structure and the materials of a subtree into a leaf
+     */
+    private void copySubtree(Octant from, Octant to){
+        if(!from.hasChildren()){
+            if(to.getMaterialType() != from.getMaterialType())
+                to.setMaterialType(from.getMaterialType());
+            return;
+        }
+        to.subdivide();
+        Octant fc[] = from.getChildren();
+        Octant tc[] = to.getChildren();
+        for(int i=0; i<8; i++){
+            copySubtree(fc[i], tc[i]);
+        }
     }
 
     @Override
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.octree;
+
+import com.jme3.math.Vector3f;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+
+/**
+ * Saves an octree to a directory without rewriting it after every edit.
+ * 
+ * Every save() looks for the subtrees changed since the previous save, using
+ * the octant stamps, and encodes them with the SubtreeCodec. Only the changed
+ * octants and their ancestors are visited. The encoded subtrees are appended
+ * to a journal by a background thread, one checksummed frame per save.
+ * When the journal grows bigger than the snapshot, the next save writes a
+ * full snapshot instead and starts a new journal.
+ * 
+ * recover() loads the snapshot and replays the journal on top of it, up to
+ * the last complete frame.
+ * @author Loris
+ */
+public class OctreeAutosave {
+    
+    public static final String SNAPSHOT_FILE = "octree.snapshot";
+    public static final String JOURNAL_FILE = "octree.journal";
+    
+    private static final int SNAPSHOT_MAGIC = 0x4F435453; //OCTS
+    private static final int JOURNAL_MAGIC = 0x4F43544A; //OCTJ
+    private static final int MIN_COMPACT_SIZE = 64 * 1024;
+    
+    private final Octree tree;
+    private final File snapshotFile;
+    private final File journalFile;
+    private final ExecutorService writer;
+    
+    private float interval = 5f;
+    private float elapsed = 0f;
+    
+    //Owned by the thread calling save()
+    private Octant savedRoot; //a different root needs a full snapshot
+    private long savedVersion;
+    
+    //Owned by the writer thread
+    private long generation; //pairs a journal with its snapshot
+    private DataOutputStream journal;
+    private long journalSize;
+    private long snapshotSize;
+    private volatile boolean compactRequested = false;
+    
+    /**
+     * @param tree the tree to be saved
+     * @param directory where the snapshot and the journal are kept, created
+     * if missing
+     */
+    public OctreeAutosave(Octree tree, File directory){
+        this.tree = tree;
+        directory.mkdirs();
+        this.snapshotFile = new File(directory, SNAPSHOT_FILE);
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.writer = Executors.newSingleThreadExecutor();
+    }
+    
+    /**
+     * @param interval the seconds between two saves made by update()
+     */
+    public void setInterval(float interval){
+        this.interval = interval;
+    }
+    
+    /**
+     * Saves the changes every few seconds, to be called at every frame by
+     * the thread that edits the tree
+     * @param tpf 
+     */
+    public void update(float tpf){
+        elapsed += tpf;
+        if(elapsed >= interval){
+            elapsed = 0f;
+            save();
+        }
+    }
+    
+    /**
+     * Replaces the content of the tree with the saved one. Must be called
+     * before the first save(), which then writes a new snapshot: the journal
+     * might end with a broken frame, so nothing is appended to it.
+     * @return false if there is nothing to recover in the directory
+     * @throws IOException if the snapshot can't be read
+     */
+    public boolean recover() throws IOException {
+        if(!snapshotFile.exists()){
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(snapshotFile));
+        try {
+            if(in.readInt() != SNAPSHOT_MAGIC){
+                throw new IOException("Not a snapshot: " + snapshotFile);
+            }
+            generation = in.readLong();
+            float rootSize = in.readFloat();
+            Vector3f rootOrigin = new Vector3f(in.readFloat(), in.readFloat(), in.readFloat());
+            int rawLength = in.readInt();
+            byte[] compressed = new byte[in.readInt()];
+            in.readFully(compressed);
+            byte[] data = SubtreeCodec.decompress(compressed, rawLength);
+            
+            tree.beginBatch();
+            try {
+                tree.generateRoot(rootSize, rootOrigin);
+                new ParallelBuilder().decodeInto(tree, data, 0, tree.getRoot());
+                int frames = replayJournal();
+                Logger.getLogger(OctreeAutosave.class.getName()).log(Level.INFO, "Recovered snapshot and {0} journal frames", frames);
+            } finally {
+                tree.endBatch();
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupted snapshot: " + snapshotFile, ex);
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+    
+    /**
+     * Applies the frames of the journal written for the current generation.
+     * A frame that is incomplete or doesn't match its checksum was being
+     * written during a crash, and ends the replay.
+     * @return the number of applied frames
+     */
+    private int replayJournal() throws IOException {
+        if(!journalFile.exists()){
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(journalFile));
+        int frames = 0;
+        try {
+            if(in.readInt() != JOURNAL_MAGIC || in.readLong() != generation){
+                return 0; //left over by a crash during a compaction
+            }
+            CRC32 crc = new CRC32();
+            while(true){
+                int length = in.readInt();
+                long checksum = in.readLong();
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                crc.reset();
+                crc.update(frame, 0, length);
+                if(crc.getValue() != checksum){
+                    break;
+                }
+                applyFrame(frame);
+                frames++;
+            }
+        } catch (EOFException ex) {
+            //end of the journal, or a truncated frame
+        } finally {
+            in.close();
+        }
+        return frames;
+    }
+    
+    private void applyFrame(byte[] frame) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        while(in.available() > 0){
+            long code = in.readLong();
+            byte[] subtree = new byte[in.readInt()];
+            in.readFully(subtree);
+            OctreeSnapshot.applyChunk(tree, code, subtree);
+        }
+    }
+    
+    /**
+     * Encodes the subtrees changed since the previous save and hands them to
+     * the writer thread. Can be called by any thread, the tree is read under
+     * its read lock.
+     */
+    public void save(){
+        final boolean full = compactRequested || savedRoot != tree.getRoot();
+        Runnable task = tree.readLocked(new OctreeReader<Runnable>() {
+            @Override
+            public Runnable read(Octree t) {
+                long version = t.getVersion();
+                Octant root = t.getRoot();
+                Runnable result;
+                if(full){
+                    final OctreeSnapshot snapshot = OctreeSnapshot.capture(t, version);
+                    result = new Runnable() {
+                        @Override
+                        public void run() {
+                            writeSnapshot(snapshot);
+                        }
+                    };
+                } else if(root.getSubtreeStamp() > savedVersion){
+                    final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+                    encodeChanged(root, LocationalCode.ROOT, savedVersion, new DataOutputStream(frame));
+                    result = new Runnable() {
+                        @Override
+                        public void run() {
+                            appendFrame(frame);
+                        }
+                    };
+                } else {
+                    result = null; //nothing changed
+                }
+                savedRoot = root;
+                savedVersion = version;
+                return result;
+            }
+        });
+        if(full){
+            compactRequested = false;
+        }
+        if(task != null){
+            writer.execute(task);
+        }
+    }
+    
+    /**
+     * Writes the topmost changed octants of a subtree with their whole
+     * subtrees, skipping the subtrees without changes
+     */
+    private static void encodeChanged(Octant o, long code, long version, DataOutputStream out){
+        if(o.getSubtreeStamp() <= version){
+            return;
+        }
+        try {
+            if(o.getStamp() > version || !o.hasChildren()){
+                byte[] subtree = SubtreeCodec.encode(o);
+                out.writeLong(code);
+                out.writeInt(subtree.length);
+                out.write(subtree);
+                return;
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); //can't happen with a byte array
+        }
+        Octant children[] = o.getChildren();
+        for(int i=0; i<8; i++){
+            encodeChanged(children[i], LocationalCode.child(code, i), version, out);
+        }
+    }
+    
+    private void appendFrame(ByteArrayOutputStream frame){
+        try {
+            if(journal == null){
+                journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+                journalSize = journalFile.length();
+            }
+            CRC32 crc = new CRC32();
+            byte[] bytes = frame.toByteArray();
+            crc.update(bytes, 0, bytes.length);
+            journal.writeInt(bytes.length);
+            journal.writeLong(crc.getValue());
+            journal.write(bytes);
+            journal.flush();
+            journalSize += bytes.length + 12;
+            if(journalSize > Math.max(snapshotSize, MIN_COMPACT_SIZE)){
+                compactRequested = true;
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(OctreeAutosave.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    /**
+     * Replaces the snapshot and starts an empty journal. The new snapshot is
+     * moved over the old one only when complete, and the journal of the old
+     * snapshot is ignored by recover() if a crash happens before it's reset.
+     */
+    private void writeSnapshot(OctreeSnapshot snapshot){
+        try {
+            generation = Math.max(generation + 1, System.currentTimeMillis());
+            byte[] data = snapshot.getData();
+            byte[] compressed = SubtreeCodec.compress(data, 0, data.length);
+            
+            File tmp = new File(snapshotFile.getPath() + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            try {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeLong(generation);
+                out.writeFloat(snapshot.getRootSize());
+                out.writeFloat(snapshot.getRootOrigin().x);
+                out.writeFloat(snapshot.getRootOrigin().y);
+                out.writeFloat(snapshot.getRootOrigin().z);
+                out.writeInt(data.length);
+                out.writeInt(compressed.length);
+                out.write(compressed);
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            snapshotSize = snapshotFile.length();
+            
+            if(journal != null){
+                journal.close();
+            }
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, false)));
+            journal.writeInt(JOURNAL_MAGIC);
+            journal.writeLong(generation);
+            journal.flush();
+            journalSize = 12;
+        } catch (IOException ex) {
+            Logger.getLogger(OctreeAutosave.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    /**
+     * Saves the last changes and waits for the writer thread to finish
+     */
+    public void close(){
+        save();
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if(journal != null){
+                        journal.close();
+                    }
+                } catch (IOException ex) {
+                    Logger.getLogger(OctreeAutosave.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        });
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -42,7 +42,25 @@ public interface OctreeEditor {
     public Octant getOctant(Octinfo o);
     public Octant deleteOctant(Octant o);
     public Octant createOctant(Octinfo o);
+    
+    //Same as above, using locational codes
+    public Octant getOctant(long code);
+    public Octant createOctant(long code);
     public Octant subdivideOctant(Octant o);
     public Octant changeOctantMaterial(Octant o, int MaterialId);
+    public Octant restoreSubtree(long code, byte[] subtree);
+    
+    //Edit all the octants inside an axis aligned box, down to the given depth
+    public void fillBox(Vector3f min, Vector3f max, byte depth, int materialId);
+    public void clearBox(Vector3f min, Vector3f max, byte depth);
+    public void paintBox(Vector3f min, Vector3f max, byte depth, int materialId);
+    
+    //Boolean operations with another octree or with a primitive shape
+    public void union(Octree other);
+    public void difference(Octree other);
+    public void intersection(Octree other);
+    public void union(CsgShape shape, byte depth, int materialId);
+    public void difference(CsgShape shape, byte depth);
+    public void intersection(CsgShape shape, byte depth);
    
 }
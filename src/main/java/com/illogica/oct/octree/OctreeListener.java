@@ -33,6 +33,9 @@ public interface OctreeListener {
     void onOctantGenerated(Octant o);
     void onOctantDeleted(Octant o);
     void onOctantMaterialChanged(Octant o);
+    
+    //Called once at the end of a batch of edits instead of the callbacks above
+    void onOctreeChanged(Octant subtree);
 
     void setOctree(Octree tree);
 }
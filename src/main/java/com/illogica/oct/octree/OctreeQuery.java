@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.octree;
+
+import com.illogica.oct.states.Materials;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Range queries selecting the octants inside a volume. The subtrees outside
+ * the volume are skipped, and the ones completely inside it are collected
+ * without testing their children.
+ * 
+ * The results are at the granularity of a selection step: the nodes at that
+ * depth containing something solid, and the solid leaves above it. They are
+ * returned as locational codes, streamed or in a long array.
+ * @author Loris
+ */
+public final class OctreeQuery {
+    
+    public static final int OUTSIDE = 0;
+    public static final int INTERSECTS = 1;
+    public static final int INSIDE = 2;
+    
+    /**
+     * A volume that can tell where a cube is
+     */
+    public interface Volume {
+        
+        /**
+         * @param x center of the cube
+         * @param y
+         * @param z
+         * @param halfSize half the edge of the cube
+         * @return OUTSIDE, INTERSECTS or INSIDE
+         */
+        public int classify(float x, float y, float z, float halfSize);
+    }
+    
+    private OctreeQuery(){
+    }
+    
+    /**
+     * @param tree
+     * @param volume
+     * @param step the selection depth
+     * @param out receives the locational codes of the selected octants
+     */
+    public static void select(Octree tree, Volume volume, int step, LongConsumer out){
+        select(tree.getRoot(), LocationalCode.ROOT, volume, step, false, out);
+    }
+    
+    /**
+     * Same as above, collecting the codes in an array
+     * @param tree
+     * @param volume
+     * @param step
+     * @return the locational codes of the selected octants
+     */
+    public static long[] select(Octree tree, Volume volume, int step){
+        final long codes[][] = {new long[64]};
+        final int count[] = {0};
+        select(tree, volume, step, new LongConsumer() {
+            @Override
+            public void accept(long code) {
+                if(count[0] == codes[0].length){
+                    codes[0] = Arrays.copyOf(codes[0], codes[0].length * 2);
+                }
+                codes[0][count[0]++] = code;
+            }
+        });
+        return Arrays.copyOf(codes[0], count[0]);
+    }
+    
+    private static void select(Octant o, long code, Volume volume, int step, boolean inside, LongConsumer out){
+        if(!inside){
+            Vector3f c = o.getOrigin();
+            int where = volume.classify(c.x, c.y, c.z, o.getEdgeSize() / 2f);
+            if(where == OUTSIDE){
+                return;
+            }
+            inside = where == INSIDE;
+        }
+        if(!o.hasChildren()){
+            if(o.getMaterialType() != Materials.MAT_AIR){
+                out.accept(code);
+            }
+            return;
+        }
+        if(o.getDepth() >= step){
+            if(hasSolid(o)){
+                out.accept(code);
+            }
+            return;
+        }
+        Octant children[] = o.getChildren();
+        for(int i=0; i<8; i++){
+            select(children[i], LocationalCode.child(code, i), volume, step, inside, out);
+        }
+    }
+    
+    private static boolean hasSolid(Octant o){
+        if(!o.hasChildren()){
+            return o.getMaterialType() != Materials.MAT_AIR;
+        }
+        for(Octant c : o.getChildren()){
+            if(hasSolid(c)){
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * @param min
+     * @param max
+     * @return an axis aligned box
+     */
+    public static Volume box(Vector3f min, Vector3f max){
+        final float x0 = min.x, y0 = min.y, z0 = min.z;
+        final float x1 = max.x, y1 = max.y, z1 = max.z;
+        return new Volume() {
+            @Override
+            public int classify(float x, float y, float z, float h) {
+                if(x + h <= x0 || x - h >= x1 || y + h <= y0 || y - h >= y1 || z + h <= z0 || z - h >= z1){
+                    return OUTSIDE;
+                }
+                if(x - h >= x0 && x + h <= x1 && y - h >= y0 && y + h <= y1 && z - h >= z0 && z + h <= z1){
+                    return INSIDE;
+                }
+                return INTERSECTS;
+            }
+        };
+    }
+    
+    /**
+     * @param center
+     * @param radius
+     * @return a sphere
+     */
+    public static Volume sphere(Vector3f center, float radius){
+        final float cx = center.x, cy = center.y, cz = center.z;
+        final float r2 = radius * radius;
+        return new Volume() {
+            @Override
+            public int classify(float x, float y, float z, float h) {
+                float dx = FastMath.abs(x - cx), dy = FastMath.abs(y - cy), dz = FastMath.abs(z - cz);
+                //closest point of the cube
+                float nx = Math.max(0f, dx - h), ny = Math.max(0f, dy - h), nz = Math.max(0f, dz - h);
+                if(nx * nx + ny * ny + nz * nz > r2){
+                    return OUTSIDE;
+                }
+                //farthest corner
+                float fx = dx + h, fy = dy + h, fz = dz + h;
+                return fx * fx + fy * fy + fz * fz <= r2 ? INSIDE : INTERSECTS;
+            }
+        };
+    }
+    
+    /**
+     * A convex volume made of half spaces, like the frustum of a screen
+     * rectangle. A point p is inside plane i if normals[i].dot(p) + d[i] >= 0.
+     * @param normals unit normals pointing inside
+     * @param d
+     * @return the intersection of the half spaces
+     */
+    public static Volume convex(Vector3f normals[], float d[]){
+        final float n[] = new float[normals.length * 3];
+        final float dist[] = d.clone();
+        for(int i=0; i<normals.length; i++){
+            n[i * 3] = normals[i].x;
+            n[i * 3 + 1] = normals[i].y;
+            n[i * 3 + 2] = normals[i].z;
+        }
+        return new Volume() {
+            @Override
+            public int classify(float x, float y, float z, float h) {
+                int result = INSIDE;
+                for(int i=0; i<dist.length; i++){
+                    float nx = n[i * 3], ny = n[i * 3 + 1], nz = n[i * 3 + 2];
+                    float distance = nx * x + ny * y + nz * z + dist[i];
+                    float radius = h * (FastMath.abs(nx) + FastMath.abs(ny) + FastMath.abs(nz));
+                    if(distance < -radius){
+                        return OUTSIDE;
+                    }
+                    if(distance < radius){
+                        result = INTERSECTS;
+                    }
+                }
+                return result;
+            }
+        };
+    }
+}
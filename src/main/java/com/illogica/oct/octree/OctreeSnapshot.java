@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.octree;
+
+import com.jme3.math.Vector3f;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The whole octree encoded with the SubtreeCodec, together with the root
+ * characteristics and the sequence number of the last edit it contains.
+ * Capturing a snapshot is a single linear pass over the tree, everything else
+ * (splitting, compressing, sending) can be done on another thread.
+ * @author Loris
+ */
+public class OctreeSnapshot {
+    
+    private final long sequence;
+    private final float rootSize;
+    private final Vector3f rootOrigin;
+    private final byte[] data;
+    
+    public OctreeSnapshot(long sequence, float rootSize, Vector3f rootOrigin, byte[] data){
+        this.sequence = sequence;
+        this.rootSize = rootSize;
+        this.rootOrigin = rootOrigin;
+        this.data = data;
+    }
+    
+    /**
+     * Must be called by the thread owning the tree
+     * @param tree
+     * @param sequence the sequence of the last edit applied to tree
+     * @return the snapshot
+     */
+    public static OctreeSnapshot capture(Octree tree, long sequence){
+        Octant root = tree.getRoot();
+        return new OctreeSnapshot(sequence, root.getEdgeSize(), new Vector3f(root.getOrigin()), SubtreeCodec.encode(root));
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public float getRootSize() {
+        return rootSize;
+    }
+
+    public Vector3f getRootOrigin() {
+        return rootOrigin;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+    
+    /**
+     * Splits the snapshot in disjoint subtrees covering the whole tree.
+     * Subtrees bigger than maxChunkSize are split into their children.
+     * @param maxChunkSize the maximum size in bytes of the encoded chunks,
+     * only leaves can be bigger than that
+     * @return the chunks, in pre-order
+     */
+    public List<Chunk> split(int maxChunkSize){
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        split(0, LocationalCode.ROOT, maxChunkSize, chunks);
+        return chunks;
+    }
+    
+    private int split(int offset, long code, int maxChunkSize, List<Chunk> chunks){
+        SubtreeCodec reader = new SubtreeCodec(data, offset);
+        int end = reader.skip();
+        if(end - offset <= maxChunkSize || !new SubtreeCodec(data, offset).peekInternal()){
+            chunks.add(new Chunk(code, offset, end - offset));
+            return end;
+        }
+        int childOffset = new SubtreeCodec(data, offset).enterInternal();
+        for(int i=0; i<8; i++){
+            childOffset = split(childOffset, LocationalCode.child(code, i), maxChunkSize, chunks);
+        }
+        return end;
+    }
+    
+    /**
+     * Applies a chunk of a snapshot to a tree
+     * @param tree
+     * @param code the code of the chunk root
+     * @param chunkData the encoded subtree
+     */
+    public static void applyChunk(Octree tree, long code, byte[] chunkData){
+        tree.restoreSubtree(code, chunkData);
+    }
+    
+    /**
+     * A subtree of the snapshot
+     */
+    public static class Chunk {
+        public final long code;
+        public final int offset;
+        public final int length;
+        
+        Chunk(long code, int offset, int length){
+            this.code = code;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.octree;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Splits a walk of the tree along child boundaries, for parallel streams.
+ * It holds a few subtrees, each with an estimate of its size, and splits
+ * them so that both halves get about the same estimate. When a single
+ * subtree is left, it is replaced by its children first.
+ * 
+ * The estimate of a subtree is shared by its children, leaves counting one
+ * and the others weighted by how many of their own children are not
+ * leaves, so the splits keep going down the deep branches of an unbalanced
+ * tree.
+ * @author Loris
+ */
+class OctreeSpliterator implements Spliterator<Octant> {
+    
+    private final int order;
+    private final OctreeTraversal.Filter filter;
+    
+    //The subtrees still to walk. Arrays are never changed once filled, so
+    //a split can share them.
+    private Octant nodes[];
+    private boolean shallow[];   //visited alone, without their subtree
+    private long sizes[];
+    private int from;
+    private int to;
+    
+    //The walk of the subtree being visited, it comes before the ones above
+    private OctreeTraversal traversal;
+    private boolean walking;
+    private long walkingSize;
+    
+    OctreeSpliterator(Octant root, int order, OctreeTraversal.Filter filter, long size){
+        this(order, filter, new Octant[]{root}, new boolean[1], new long[]{size}, 0, 1);
+    }
+    
+    private OctreeSpliterator(int order, OctreeTraversal.Filter filter, Octant nodes[], boolean shallow[], long sizes[], int from, int to){
+        this.order = order;
+        this.filter = filter;
+        this.nodes = nodes;
+        this.shallow = shallow;
+        this.sizes = sizes;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Octant> action) {
+        while(true){
+            if(walking){
+                if(traversal.hasNext()){
+                    action.accept(traversal.next());
+                    if(walkingSize > 1){
+                        walkingSize--;
+                    }
+                    return true;
+                }
+                walking = false;
+                walkingSize = 0;
+            }
+            if(from == to){
+                return false;
+            }
+            int i = from++;
+            if(shallow[i]){
+                action.accept(nodes[i]);
+                return true;
+            }
+            if(traversal == null){
+                traversal = new OctreeTraversal();
+            }
+            traversal.reset(nodes[i], order, filter);
+            walking = true;
+            walkingSize = sizes[i];
+        }
+    }
+
+    @Override
+    public void forEachRemaining(final Consumer<? super Octant> action) {
+        if(walking){
+            while(traversal.hasNext()){
+                action.accept(traversal.next());
+            }
+            walking = false;
+            walkingSize = 0;
+        }
+        if(from == to){
+            return;
+        }
+        if(traversal == null){
+            traversal = new OctreeTraversal();
+        }
+        OctreeTraversal.Visitor visitor = new OctreeTraversal.Visitor() {
+            @Override
+            public void visit(Octant o) {
+                action.accept(o);
+            }
+        };
+        for(; from < to; from++){
+            if(shallow[from]){
+                action.accept(nodes[from]);
+            } else {
+                traversal.walk(nodes[from], order, filter, visitor);
+            }
+        }
+    }
+
+    @Override
+    public Spliterator<Octant> trySplit() {
+        while(to - from == 1 && !walking && !shallow[from] && nodes[from].hasChildren()){
+            expand();
+        }
+        if(from == to || (to - from == 1 && !walking)){
+            return null;
+        }
+        
+        //the prefix takes the running walk and the first subtrees, up to
+        //half of the estimate, leaving at least one subtree to this one
+        long half = estimateSize() / 2;
+        long prefixSize = walkingSize;
+        int mid = from;
+        while(mid < to - 1 && prefixSize + sizes[mid] <= half){
+            prefixSize += sizes[mid++];
+        }
+        if(mid == from && !walking){
+            mid++;
+        }
+        
+        OctreeSpliterator prefix = new OctreeSpliterator(order, filter, nodes, shallow, sizes, from, mid);
+        if(walking){
+            prefix.traversal = traversal;
+            prefix.walking = true;
+            prefix.walkingSize = walkingSize;
+            traversal = null;
+            walking = false;
+            walkingSize = 0;
+        }
+        from = mid;
+        return prefix;
+    }
+    
+    /**
+     * Replaces the only subtree left with its children, and with the octant
+     * itself when it is visited too, in the place the order puts it
+     */
+    private void expand(){
+        Octant o = nodes[from];
+        long size = sizes[from];
+        int result = filter.test(o);
+        if(result == OctreeTraversal.SKIP){
+            from = to;
+            return;
+        }
+        boolean visitParent = result == OctreeTraversal.VISIT && order != OctreeTraversal.LEAVES;
+        
+        Octant n[] = new Octant[9];
+        boolean s[] = new boolean[9];
+        long z[] = new long[9];
+        int k = 0;
+        if(visitParent && order == OctreeTraversal.PRE_ORDER){
+            n[k] = o;
+            s[k] = true;
+            z[k++] = 1;
+        }
+        int first = k;
+        int leaves = 0;
+        long weights = 0;
+        for(Octant c : o.getChildren()){
+            if(filter.test(c) == OctreeTraversal.SKIP){
+                continue;
+            }
+            if(c.hasChildren()){
+                z[k] = weight(c);
+                weights += z[k];
+            } else {
+                leaves++;
+            }
+            n[k++] = c;
+        }
+        long inner = Math.max(0, size - (visitParent ? 1 : 0) - leaves);
+        for(int i = first; i < k; i++){
+            z[i] = n[i].hasChildren() ? Math.max(1, inner * z[i] / weights) : 1;
+        }
+        if(visitParent && order == OctreeTraversal.POST_ORDER){
+            n[k] = o;
+            s[k] = true;
+            z[k++] = 1;
+        }
+        
+        nodes = n;
+        shallow = s;
+        sizes = z;
+        from = 0;
+        to = k;
+    }
+
+    /**
+     * Looks one level down to guess how big a subtree is compared to its
+     * siblings: a child with children of its own counts as 8
+     */
+    private static long weight(Octant o){
+        long w = 0;
+        for(Octant c : o.getChildren()){
+            w += c.hasChildren() ? 8 : 1;
+        }
+        return w;
+    }
+
+    @Override
+    public long estimateSize() {
+        long size = walkingSize;
+        for(int i = from; i < to; i++){
+            size += sizes[i];
+        }
+        return size;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | DISTINCT | NONNULL;
+    }
+}
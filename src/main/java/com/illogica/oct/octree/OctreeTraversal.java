@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.octree;
+
+import com.illogica.oct.states.Materials;
+import com.jme3.math.Vector3f;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks a subtree with an explicit stack, in pre-order, post-order or
+ * visiting only the leaves. A filter decides for each octant whether to
+ * visit it and whether to go down its subtree at all.
+ * 
+ * After the first walks the stack is as deep as the tree, so a traversal
+ * kept and reused by its owner walks without creating any garbage.
+ * A traversal is not thread safe, and changes to the tree below the current
+ * octant are seen by the walk: a pre-order visitor can subdivide the octant
+ * it is given, a post-order one can collapse it.
+ * @author Loris
+ */
+public class OctreeTraversal implements Iterator<Octant> {
+    
+    //Visiting orders
+    public static final int PRE_ORDER = 0;    //parents before their children
+    public static final int POST_ORDER = 1;   //children before their parents
+    public static final int LEAVES = 2;       //octants without children only
+    
+    //Filter results
+    public static final int SKIP = 0;     //neither the octant nor its subtree
+    public static final int DESCEND = 1;  //only the subtree of the octant
+    public static final int VISIT = 2;    //both the octant and its subtree
+    
+    public interface Filter {
+        /**
+         * @param o
+         * @return SKIP, DESCEND or VISIT
+         */
+        public int test(Octant o);
+    }
+    
+    public interface Visitor {
+        public void visit(Octant o);
+    }
+    
+    public static final Filter ALL = new Filter() {
+        @Override
+        public int test(Octant o) {
+            return VISIT;
+        }
+    };
+    
+    //The leaves that are not air
+    public static final Filter SOLID = new Filter() {
+        @Override
+        public int test(Octant o) {
+            if(o.hasChildren()){
+                return DESCEND;
+            }
+            return o.getMaterialType() != Materials.MAT_AIR ? VISIT : SKIP;
+        }
+    };
+    
+    private Octant nodes[] = new Octant[LocationalCode.MAX_DEPTH + 1];
+    private byte nextChild[] = new byte[nodes.length];
+    private boolean visit[] = new boolean[nodes.length];
+    private int top;
+    private int order;
+    private Filter filter;
+    private Octant pending;
+    
+    public OctreeTraversal(){
+    }
+    
+    public OctreeTraversal(Octant root, int order, Filter filter){
+        reset(root, order, filter);
+    }
+    
+    /**
+     * Starts a new walk, to be read with hasNext() and next()
+     * @param root
+     * @param order PRE_ORDER, POST_ORDER or LEAVES
+     * @param filter
+     * @return this traversal, useful for chaining
+     */
+    public OctreeTraversal reset(Octant root, int order, Filter filter){
+        Arrays.fill(nodes, 0, top, null);
+        top = 0;
+        pending = null;
+        this.order = order;
+        this.filter = filter;
+        if(root != null){
+            push(root);
+        }
+        return this;
+    }
+    
+    /**
+     * Walks a subtree, giving the visitor the octants in the given order
+     * @param root
+     * @param order PRE_ORDER, POST_ORDER or LEAVES
+     * @param filter
+     * @param visitor 
+     */
+    public void walk(Octant root, int order, Filter filter, Visitor visitor){
+        reset(root, order, filter);
+        for(Octant o = advance(); o != null; o = advance()){
+            visitor.visit(o);
+        }
+        this.filter = null;
+    }
+    
+    @Override
+    public boolean hasNext() {
+        if(pending == null){
+            pending = advance();
+        }
+        return pending != null;
+    }
+
+    @Override
+    public Octant next() {
+        if(!hasNext()){
+            throw new NoSuchElementException();
+        }
+        Octant o = pending;
+        pending = null;
+        return o;
+    }
+    
+    private void push(Octant o){
+        int result = filter.test(o);
+        if(result == SKIP){
+            return;
+        }
+        if(top == nodes.length){
+            nodes = Arrays.copyOf(nodes, top * 2);
+            nextChild = Arrays.copyOf(nextChild, top * 2);
+            visit = Arrays.copyOf(visit, top * 2);
+        }
+        nodes[top] = o;
+        nextChild[top] = -1;
+        visit[top] = result == VISIT;
+        top++;
+    }
+    
+    private Octant advance(){
+        while(top > 0){
+            int t = top - 1;
+            Octant o = nodes[t];
+            int i = nextChild[t];
+            if(i < 0){
+                //just entered
+                nextChild[t] = 0;
+                if(visit[t] && (order == PRE_ORDER || (order == LEAVES && !o.hasChildren()))){
+                    return o;
+                }
+                continue;
+            }
+            Octant children[] = o.getChildren();
+            if(children != null && i < 8){
+                nextChild[t] = (byte)(i + 1);
+                push(children[i]);
+                continue;
+            }
+            nodes[t] = null;
+            top--;
+            if(visit[t] && order == POST_ORDER){
+                return o;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * @param min
+     * @param max
+     * @return the octants intersecting an axis aligned box
+     */
+    public static Filter box(Vector3f min, Vector3f max){
+        final float x0 = min.x, y0 = min.y, z0 = min.z;
+        final float x1 = max.x, y1 = max.y, z1 = max.z;
+        return new Filter() {
+            @Override
+            public int test(Octant o) {
+                Vector3f c = o.getOrigin();
+                float h = o.getEdgeSize() / 2f;
+                if(c.x + h <= x0 || c.x - h >= x1 || c.y + h <= y0 || c.y - h >= y1 || c.z + h <= z0 || c.z - h >= z1){
+                    return SKIP;
+                }
+                return VISIT;
+            }
+        };
+    }
+    
+    /**
+     * @param minDepth
+     * @param maxDepth
+     * @return the octants between two depths, both included
+     */
+    public static Filter depth(final int minDepth, final int maxDepth){
+        return new Filter() {
+            @Override
+            public int test(Octant o) {
+                if(o.getDepth() > maxDepth){
+                    return SKIP;
+                }
+                return o.getDepth() < minDepth ? DESCEND : VISIT;
+            }
+        };
+    }
+    
+    /**
+     * @param materialId
+     * @return the leaves of a material
+     */
+    public static Filter material(final int materialId){
+        return new Filter() {
+            @Override
+            public int test(Octant o) {
+                if(o.hasChildren()){
+                    return DESCEND;
+                }
+                return o.getMaterialType() == materialId ? VISIT : SKIP;
+            }
+        };
+    }
+    
+    /**
+     * @param version
+     * @return the octants changed after a tree version, see Octree.getVersion()
+     */
+    public static Filter changedSince(final long version){
+        return new Filter() {
+            @Override
+            public int test(Octant o) {
+                if(o.getSubtreeStamp() <= version){
+                    return SKIP;
+                }
+                return o.getStamp() > version ? VISIT : DESCEND;
+            }
+        };
+    }
+    
+    /**
+     * @param a
+     * @param b
+     * @return the octants accepted by both filters
+     */
+    public static Filter and(final Filter a, final Filter b){
+        return new Filter() {
+            @Override
+            public int test(Octant o) {
+                int r = a.test(o);
+                return r == SKIP ? SKIP : Math.min(r, b.test(o));
+            }
+        };
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.octree;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds large subtrees with fork-join tasks, decoding them from the
+ * SubtreeCodec format. Terrains, the template octree and recovered autosaves
+ * are built this way. Independent subtrees are handled by different threads
+ * while the tree is in a batch, so the workers never call the listener: it
+ * gets a single onOctreeChanged() on the calling thread once all the tasks
+ * are done.
+ * 
+ * The methods must be called from the thread owning the tree, which is
+ * blocked until the work is done. Nothing else may touch the tree meanwhile.
+ * @author Loris
+ */
+public class ParallelBuilder {
+    
+    //subtrees smaller than this are handled by a single task
+    private static final int SEQUENTIAL_BYTES = 4096;
+    
+    private final ForkJoinPool pool;
+    
+    public ParallelBuilder(){
+        this(ForkJoinPool.commonPool());
+    }
+    
+    public ParallelBuilder(ForkJoinPool pool){
+        this.pool = pool;
+    }
+    
+    /**
+     * Parallel version of SubtreeCodec.decodeInto()
+     * @param tree
+     * @param data the encoded subtree
+     * @param offset where the subtree starts in data
+     * @param target 
+     */
+    public void decodeInto(Octree tree, byte[] data, int offset, Octant target){
+        tree.beginBatch();
+        try {
+            pool.invoke(new DecodeTask(data, offset, new SubtreeCodec(data, offset).skip(), target));
+        } finally {
+            tree.endBatch();
+        }
+    }
+    
+    private class DecodeTask extends RecursiveAction {
+        
+        private final byte[] data;
+        private final int from, to;
+        private final Octant target;
+        
+        DecodeTask(byte[] data, int from, int to, Octant target){
+            this.data = data;
+            this.from = from;
+            this.to = to;
+            this.target = target;
+        }
+        
+        @Override
+        protected void compute() {
+            SubtreeCodec reader = new SubtreeCodec(data, from);
+            if(to - from <= SEQUENTIAL_BYTES || !reader.peekInternal()){
+                reader.decodeInto(target);
+                return;
+            }
+            
+            int start = reader.enterInternal();
+            if(!target.hasChildren()){
+                target.subdivide();
+            }
+            Octant children[] = target.getChildren();
+            DecodeTask tasks[] = new DecodeTask[8];
+            for(int i=0; i<8; i++){
+                int end = reader.skip();
+                tasks[i] = new DecodeTask(data, start, end, children[i]);
+                start = end;
+            }
+            invokeAll(tasks);
+        }
+    }
+}
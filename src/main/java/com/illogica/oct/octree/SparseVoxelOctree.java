@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.octree;
+
+import com.illogica.oct.states.Materials;
+import com.jme3.math.Vector3f;
+import java.util.ArrayDeque;
+
+/**
+ * The octree flattened into an int buffer that a shader can raymarch.
+ * 
+ * Every internal octant becomes a descriptor of two words. The first one is a
+ * child descriptor as in Laine and Karras' "Efficient Sparse Voxel Octrees":
+ * <pre>
+ * bits 31-17: child pointer, relative to this descriptor
+ * bit  16:    far bit, the pointer addresses a far word instead
+ * bits 15-8:  valid mask, children that are not air
+ * bits 7-0:   leaf mask, valid children that are leaves
+ * </pre>
+ * The descriptors of the internal children of an octant are contiguous, in
+ * child index order. The second word is the index of the material of the
+ * first solid leaf child in the materials buffer, the others follow in child
+ * index order.
+ * 
+ * When the buffer has more than 2^15 descriptors, every block of children is
+ * followed by one far slot per descriptor, used when the pointer does not
+ * fit in 15 bits. The first word of a far slot is the pointer, relative to
+ * the descriptor pointing to the slot.
+ * 
+ * A root without children becomes a descriptor of 8 leaves.
+ * @author Loris
+ */
+public class SparseVoxelOctree {
+    
+    public static final int WORDS_PER_NODE = 2;
+    public static final int MAX_POINTER = 0x7FFF;
+    public static final int MAX_DEPTH = 23; //float precision on a unit cube
+    
+    private static final int FAR_BIT = 1 << 16;
+    
+    //child centers in units of a quarter of the parent edge, same order as
+    //the children array
+    static final int[][] CHILD_OFFSETS = {
+        {1, 1, 1}, {1, 1, -1}, {-1, 1, -1}, {-1, 1, 1},
+        {1, -1, 1}, {1, -1, -1}, {-1, -1, -1}, {-1, -1, 1}
+    };
+    
+    private final int[] nodes;
+    private final int[] materials;
+    private final int nodeCount;
+    private final float rootSize;
+    private final Vector3f rootOrigin;
+    
+    private SparseVoxelOctree(int[] nodes, int[] materials, int nodeCount, float rootSize, Vector3f rootOrigin){
+        this.nodes = nodes;
+        this.materials = materials;
+        this.nodeCount = nodeCount;
+        this.rootSize = rootSize;
+        this.rootOrigin = rootOrigin;
+    }
+    
+    /**
+     * Flattens a tree, under its read lock
+     * @param tree
+     * @return the flattened tree
+     */
+    public static SparseVoxelOctree export(Octree tree){
+        return tree.readLocked(new OctreeReader<SparseVoxelOctree>() {
+            @Override
+            public SparseVoxelOctree read(Octree t) {
+                return export(t.getRoot());
+            }
+        });
+    }
+    
+    private static SparseVoxelOctree export(Octant root){
+        int[] counts = new int[2]; //internal octants, solid leaves
+        count(root, counts);
+        int internal = Math.max(1, counts[0]);
+        boolean far = internal > MAX_POINTER;
+        int slots = far ? 2 * internal : internal;
+        int[] nodes = new int[slots * WORDS_PER_NODE];
+        int[] materials = new int[root.hasChildren() ? counts[1] : 8];
+        
+        if(!root.hasChildren()){
+            int m = root.getMaterialType();
+            int mask = m == Materials.MAT_AIR ? 0 : 0xFF;
+            nodes[0] = (mask << 8) | mask;
+            for(int i=0; i<8; i++){
+                materials[i] = m;
+            }
+            return new SparseVoxelOctree(nodes, materials, 1, root.getEdgeSize(), new Vector3f(root.getOrigin()));
+        }
+        
+        //breadth first, so that the children blocks are close to their parents
+        ArrayDeque<Octant> queue = new ArrayDeque<Octant>();
+        ArrayDeque<int[]> slotsQueue = new ArrayDeque<int[]>(); //descriptor, far slot
+        queue.add(root);
+        slotsQueue.add(new int[]{0, -1});
+        int next = 1;
+        int nextMaterial = 0;
+        while(!queue.isEmpty()){
+            Octant o = queue.poll();
+            int[] s = slotsQueue.poll();
+            int d = s[0];
+            Octant children[] = o.getChildren();
+            
+            int valid = 0;
+            int leaf = 0;
+            int blockSize = 0;
+            for(int i=0; i<8; i++){
+                if(children[i].hasChildren()){
+                    valid |= 1 << i;
+                    blockSize++;
+                } else if(children[i].getMaterialType() != Materials.MAT_AIR){
+                    valid |= 1 << i;
+                    leaf |= 1 << i;
+                }
+            }
+            
+            int first = next;
+            next += far ? 2 * blockSize : blockSize;
+            int pointer = first - d;
+            int word = (valid << 8) | leaf;
+            if(pointer <= MAX_POINTER || blockSize == 0){
+                word |= (blockSize == 0 ? 0 : pointer) << 17;
+            } else {
+                nodes[s[1] * WORDS_PER_NODE] = pointer;
+                word |= ((s[1] - d) << 17) | FAR_BIT;
+            }
+            nodes[d * WORDS_PER_NODE] = word;
+            nodes[d * WORDS_PER_NODE + 1] = nextMaterial;
+            
+            int child = first;
+            for(int i=0; i<8; i++){
+                if(children[i].hasChildren()){
+                    queue.add(children[i]);
+                    slotsQueue.add(new int[]{child, far ? child + blockSize : -1});
+                    child++;
+                } else if((leaf & (1 << i)) != 0){
+                    materials[nextMaterial++] = children[i].getMaterialType();
+                }
+            }
+        }
+        return new SparseVoxelOctree(nodes, materials, next, root.getEdgeSize(), new Vector3f(root.getOrigin()));
+    }
+    
+    private static void count(Octant o, int[] counts){
+        if(o.hasChildren()){
+            counts[0]++;
+            for(Octant c : o.getChildren()){
+                count(c, counts);
+            }
+        } else if(o.getMaterialType() != Materials.MAT_AIR){
+            counts[1]++;
+        }
+    }
+    
+    /**
+     * @param d a descriptor index
+     * @param i a child index
+     * @return the descriptor of an internal child
+     */
+    public int childDescriptor(int d, int i){
+        int word = nodes[d * WORDS_PER_NODE];
+        int pointer = word >>> 17;
+        if((word & FAR_BIT) != 0){
+            pointer = nodes[(d + pointer) * WORDS_PER_NODE];
+        }
+        int internal = ((word >>> 8) & ~word) & 0xFF;
+        return d + pointer + Integer.bitCount(internal & ((1 << i) - 1));
+    }
+    
+    /**
+     * @param d a descriptor index
+     * @param i the index of a solid leaf child
+     * @return the material of the leaf
+     */
+    public int leafMaterial(int d, int i){
+        int word = nodes[d * WORDS_PER_NODE];
+        return materials[nodes[d * WORDS_PER_NODE + 1] + Integer.bitCount(word & 0xFF & ((1 << i) - 1))];
+    }
+    
+    /**
+     * Point lookup, the same way the shader descends the tree
+     * @param point
+     * @return the material at the point, air if outside the root
+     */
+    public int materialAt(Vector3f point){
+        float half = rootSize / 2f;
+        float cx = rootOrigin.x, cy = rootOrigin.y, cz = rootOrigin.z;
+        if(Math.abs(point.x - cx) > half || Math.abs(point.y - cy) > half || Math.abs(point.z - cz) > half){
+            return Materials.MAT_AIR;
+        }
+        int d = 0;
+        while(true){
+            //same rule as Octree.getOctantTypeForPoint()
+            int i = point.x > cx ? (point.y > cy ? (point.z > cz ? 0 : 1) : (point.z > cz ? 4 : 5))
+                    : (point.y > cy ? (point.z > cz ? 3 : 2) : (point.z > cz ? 7 : 6));
+            int word = nodes[d * WORDS_PER_NODE];
+            if((word & (1 << (i + 8))) == 0){
+                return Materials.MAT_AIR;
+            }
+            if((word & (1 << i)) != 0){
+                return leafMaterial(d, i);
+            }
+            half /= 2f;
+            cx += CHILD_OFFSETS[i][0] * half;
+            cy += CHILD_OFFSETS[i][1] * half;
+            cz += CHILD_OFFSETS[i][2] * half;
+            d = childDescriptor(d, i);
+        }
+    }
+    
+    /**
+     * Casts a ray through the buffer. This is the traversal of the raymarching
+     * shader: at every level the children are entered in the order the ray
+     * meets them, with an explicit stack.
+     * @param origin
+     * @param direction
+     * @return the first solid leaf hit, or null
+     */
+    public Hit raycast(Vector3f origin, Vector3f direction){
+        float[] inv = {1f / direction.x, 1f / direction.y, 1f / direction.z};
+        float[] o = {origin.x, origin.y, origin.z};
+        
+        int[] stackNode = new int[MAX_DEPTH + 1];
+        int[] stackVisited = new int[MAX_DEPTH + 1];
+        float[][] stackCenter = new float[MAX_DEPTH + 1][3];
+        float[] stackHalf = new float[MAX_DEPTH + 1];
+        
+        int top = 0;
+        stackNode[0] = 0;
+        stackVisited[0] = 0;
+        stackCenter[0][0] = rootOrigin.x;
+        stackCenter[0][1] = rootOrigin.y;
+        stackCenter[0][2] = rootOrigin.z;
+        stackHalf[0] = rootSize / 2f;
+        if(enter(o, inv, stackCenter[0], stackHalf[0]) == Float.POSITIVE_INFINITY){
+            return null;
+        }
+        
+        float[] childCenter = new float[3];
+        while(top >= 0){
+            int d = stackNode[top];
+            int word = nodes[d * WORDS_PER_NODE];
+            float childHalf = stackHalf[top] / 2f;
+            
+            //the closest valid child not visited yet
+            int best = -1;
+            float bestT = Float.POSITIVE_INFINITY;
+            for(int i=0; i<8; i++){
+                if((word & (1 << (i + 8))) == 0 || (stackVisited[top] & (1 << i)) != 0){
+                    continue;
+                }
+                for(int k=0; k<3; k++){
+                    childCenter[k] = stackCenter[top][k] + CHILD_OFFSETS[i][k] * childHalf;
+                }
+                float t = enter(o, inv, childCenter, childHalf);
+                if(t < bestT){
+                    bestT = t;
+                    best = i;
+                }
+            }
+            if(best < 0){
+                top--;
+                continue;
+            }
+            stackVisited[top] |= 1 << best;
+            
+            if((word & (1 << best)) != 0){
+                return new Hit(bestT, leafMaterial(d, best), top + 1);
+            }
+            int parent = top++;
+            stackNode[top] = childDescriptor(d, best);
+            stackVisited[top] = 0;
+            stackHalf[top] = childHalf;
+            for(int k=0; k<3; k++){
+                stackCenter[top][k] = stackCenter[parent][k] + CHILD_OFFSETS[best][k] * childHalf;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Slab test
+     * @return the distance where the ray enters the cube, 0 if it starts
+     * inside, infinity if it misses it
+     */
+    private static float enter(float[] o, float[] inv, float[] center, float half){
+        float tNear = 0f;
+        float tFar = Float.POSITIVE_INFINITY;
+        for(int k=0; k<3; k++){
+            float t1 = (center[k] - half - o[k]) * inv[k];
+            float t2 = (center[k] + half - o[k]) * inv[k];
+            tNear = Math.max(tNear, Math.min(t1, t2));
+            tFar = Math.min(tFar, Math.max(t1, t2));
+        }
+        return tNear <= tFar ? tNear : Float.POSITIVE_INFINITY;
+    }
+    
+    /**
+     * @return the descriptors followed by the materials, as uploaded to the
+     * GPU. The materials start at getMaterialsOffset().
+     */
+    public int[] toBuffer(){
+        int[] buffer = new int[nodeCount * WORDS_PER_NODE + materials.length];
+        System.arraycopy(nodes, 0, buffer, 0, nodeCount * WORDS_PER_NODE);
+        System.arraycopy(materials, 0, buffer, nodeCount * WORDS_PER_NODE, materials.length);
+        return buffer;
+    }
+    
+    public int getMaterialsOffset(){
+        return nodeCount * WORDS_PER_NODE;
+    }
+    
+    public int getNodeCount(){
+        return nodeCount;
+    }
+
+    public float getRootSize() {
+        return rootSize;
+    }
+
+    public Vector3f getRootOrigin() {
+        return rootOrigin;
+    }
+    
+    public static class Hit {
+        public final float distance;
+        public final int material;
+        public final int depth;
+        
+        Hit(float distance, int material, int depth){
+            this.distance = distance;
+            this.material = material;
+            this.depth = depth;
+        }
+    }
+}
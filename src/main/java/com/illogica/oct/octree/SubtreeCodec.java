@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.octree;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary encoding of a subtree. Nodes are written in pre-order as a
+ * single varint each: internal nodes are written as 1, leaves as
+ * (material &lt;&lt; 1). The encoding of every subtree is a contiguous slice of
+ * the encoding of its parent, so a tree can be split in chunks without
+ * encoding it twice.
+ * @author Loris
+ */
+public class SubtreeCodec {
+    
+    private static final int INTERNAL = 1;
+    
+    private final byte[] data;
+    private int pos;
+    
+    /**
+     * Creates a reader for encoded data
+     * @param data
+     * @param offset where the subtree to be read starts
+     */
+    public SubtreeCodec(byte[] data, int offset){
+        this.data = data;
+        this.pos = offset;
+    }
+    
+    public int position(){
+        return pos;
+    }
+    
+    /**
+     * @return true if the next node to be read is an internal node
+     */
+    public boolean peekInternal(){
+        return (data[pos] & INTERNAL) == INTERNAL;
+    }
+    
+    /**
+     * Encodes the subtree starting at o
+     * @param o
+     * @return the encoded subtree
+     */
+    public static byte[] encode(Octant o){
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encode(o, out);
+        return out.toByteArray();
+    }
+    
+    public static void encode(Octant o, ByteArrayOutputStream out){
+        if(o.hasChildren()){
+            writeVarint(out, INTERNAL);
+            for(Octant c : o.getChildren()){
+                encode(c, out);
+            }
+        } else {
+            writeVarint(out, o.getMaterialType() << 1);
+        }
+    }
+    
+    /**
+     * Writes an encoded leaf, useful to build subtrees without an Octree
+     * @param out
+     * @param material 
+     */
+    public static void writeLeaf(ByteArrayOutputStream out, int material){
+        writeVarint(out, material << 1);
+    }
+    
+    /**
+     * Writes the header of an internal node, must be followed by its 8
+     * children
+     * @param out 
+     */
+    public static void writeInternal(ByteArrayOutputStream out){
+        writeVarint(out, INTERNAL);
+    }
+    
+    /**
+     * Rebuilds the subtree at the reader position into target. Octants are
+     * subdivided or collapsed only where they differ from the encoded data.
+     * The octants are modified directly, so the decoded subtree is an exact
+     * copy of the encoded one, even when the tree would merge it. The caller
+     * must hold the write lock of the tree.
+     * @param target
+     */
+    public void decodeInto(Octant target){
+        int header = readVarint();
+        if((header & INTERNAL) == INTERNAL){
+            if(!target.hasChildren()){
+                target.subdivide();
+            }
+            for(Octant c : target.getChildren()){
+                decodeInto(c);
+            }
+        } else {
+            int material = header >>> 1;
+            if(target.hasChildren()){
+                target.deleteChildren();
+            }
+            if(target.getMaterialType() != material){
+                target.setMaterialType(material);
+            }
+        }
+    }
+    
+    /**
+     * Reads the leaf at the reader position, peekInternal() must be false
+     * @return the material of the leaf
+     */
+    public int readLeaf(){
+        return readVarint() >>> 1;
+    }
+    
+    /**
+     * Skips the subtree at the reader position
+     * @return the position right after the subtree
+     */
+    public int skip(){
+        int pending = 1;
+        while(pending > 0){
+            int header = readVarint();
+            pending--;
+            if((header & INTERNAL) == INTERNAL){
+                pending += 8;
+            }
+        }
+        return pos;
+    }
+    
+    /**
+     * Skips the header of the internal node at the reader position, moving
+     * to its first child
+     * @return the position of the first child
+     */
+    public int enterInternal(){
+        readVarint();
+        return pos;
+    }
+    
+    private int readVarint(){
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[pos++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        return value;
+    }
+    
+    private static void writeVarint(ByteArrayOutputStream out, int value){
+        while((value & ~0x7F) != 0){
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+    
+    public static byte[] compress(byte[] data, int offset, int length){
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 16);
+        byte[] buffer = new byte[4096];
+        while(!deflater.finished()){
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+    
+    public static byte[] decompress(byte[] data, int rawLength) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        byte[] raw = new byte[rawLength];
+        int n = 0;
+        while(n < rawLength && !inflater.finished()){
+            int read = inflater.inflate(raw, n, rawLength - n);
+            if(read == 0 && inflater.needsInput()){
+                break;
+            }
+            n += read;
+        }
+        inflater.end();
+        if(n != rawLength){
+            throw new DataFormatException("Expected " + rawLength + " bytes but got " + n);
+        }
+        return raw;
+    }
+}
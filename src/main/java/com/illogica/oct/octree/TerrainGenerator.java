@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.octree;
+
+import com.illogica.oct.states.Materials;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fills an Octree from a heightmap or a density function.
+ * 
+ * The tree is not built one subdivide() at a time: the first levels are split
+ * in tasks on a ForkJoinPool, every task writes its subtree with the
+ * SubtreeCodec, and the whole encoded tree is decoded into the Octree by a
+ * ParallelBuilder, so the listener is only notified once at the end.
+ * Octants that are completely above or below the surface become a single
+ * leaf as soon as they are found, without visiting their descendants.
+ * @author Loris
+ */
+public class TerrainGenerator {
+    
+    public interface Heightmap {
+        public float height(float x, float z);
+    }
+    
+    public interface Density {
+        /**
+         * @return a positive value inside the terrain, negative outside
+         */
+        public float density(float x, float y, float z);
+    }
+    
+    private static final int FORK_LEVELS = 2; //the first 64 subtrees are built in parallel
+    private static final int ROWS_PER_TASK = 32;
+    private static final float SQRT3 = (float)Math.sqrt(3);
+    
+    private final byte depth;
+    private int material = Materials.MAT_SOLID_GREEN;
+    
+    private Heightmap heightmap;
+    private Density density;
+    private float maxGradient;
+    
+    //heightmap samples, one per column of octants at the target depth, and
+    //their min and max per block of 2^level x 2^level columns
+    private int columns;
+    private float[][] minHeights;
+    private float[][] maxHeights;
+    
+    //the root being generated
+    private float rootMinX, rootMinZ, rootSize;
+    private int rootDepth;
+    
+    private TerrainGenerator(byte depth){
+        this.depth = depth;
+    }
+    
+    /**
+     * @param heightmap the height of the terrain for every x, z
+     * @param depth the depth of the octants along the surface
+     * @return a generator
+     */
+    public static TerrainGenerator fromHeightmap(Heightmap heightmap, byte depth){
+        TerrainGenerator g = new TerrainGenerator(depth);
+        g.heightmap = heightmap;
+        return g;
+    }
+    
+    /**
+     * @param density the density function
+     * @param maxGradient an upper bound of the gradient length of the density,
+     * used to know when an octant is too far from the surface to cross it
+     * @param depth the depth of the octants along the surface
+     * @return a generator
+     */
+    public static TerrainGenerator fromDensity(Density density, float maxGradient, byte depth){
+        TerrainGenerator g = new TerrainGenerator(depth);
+        g.density = density;
+        g.maxGradient = maxGradient;
+        return g;
+    }
+    
+    public void setMaterial(int materialId){
+        this.material = materialId;
+    }
+    
+    /**
+     * Replaces the content of the tree with the terrain. Must be called from
+     * the thread owning the tree, which is blocked until the work is done.
+     * @param tree 
+     */
+    public void generate(Octree tree){
+        long start = System.nanoTime();
+        Octant root = tree.getRoot();
+        rootDepth = root.getDepth();
+        rootSize = root.getEdgeSize();
+        rootMinX = root.getOrigin().x - rootSize / 2f;
+        rootMinZ = root.getOrigin().z - rootSize / 2f;
+        
+        ForkJoinPool pool = new ForkJoinPool();
+        long built;
+        try {
+            if(heightmap != null){
+                sampleHeightmap(pool);
+            }
+            byte[] plan = pool.invoke(new PlanTask(root.getOrigin().x, root.getOrigin().y, root.getOrigin().z,
+                    rootSize / 2f, rootDepth, 0, 0));
+            //free the samples before the octants are created
+            minHeights = null;
+            maxHeights = null;
+            built = System.nanoTime();
+            new ParallelBuilder(pool).decodeInto(tree, plan, 0, root);
+        } finally {
+            pool.shutdown();
+            minHeights = null;
+            maxHeights = null;
+        }
+        Logger.getLogger(TerrainGenerator.class.getName()).log(Level.FINE, "Built in {0}ms, applied in {1}ms",
+                new Object[]{(built - start) / 1000000, (System.nanoTime() - built) / 1000000});
+    }
+    
+    /**
+     * Samples the heightmap at the center of every column and builds the
+     * min/max pyramid
+     */
+    private void sampleHeightmap(ForkJoinPool pool){
+        int levels = Math.max(0, depth - rootDepth);
+        columns = 1 << levels;
+        minHeights = new float[levels + 1][];
+        maxHeights = new float[levels + 1][];
+        final float[] heights = new float[columns * columns];
+        pool.invoke(new SampleTask(heights, 0, columns));
+        minHeights[0] = heights;
+        maxHeights[0] = heights;
+        
+        for(int level=1; level<=levels; level++){
+            int n = columns >> level;
+            float[] pmin = minHeights[level - 1];
+            float[] pmax = maxHeights[level - 1];
+            float[] min = new float[n * n];
+            float[] max = new float[n * n];
+            for(int z=0; z<n; z++){
+                for(int x=0; x<n; x++){
+                    int a = (2 * z) * (2 * n) + 2 * x;
+                    int b = a + 2 * n;
+                    min[z * n + x] = Math.min(Math.min(pmin[a], pmin[a + 1]), Math.min(pmin[b], pmin[b + 1]));
+                    max[z * n + x] = Math.max(Math.max(pmax[a], pmax[a + 1]), Math.max(pmax[b], pmax[b + 1]));
+                }
+            }
+            minHeights[level] = min;
+            maxHeights[level] = max;
+        }
+    }
+    
+    /**
+     * Decides if an octant can be a leaf.
+     * @param ix x index of the octant in the grid of its depth
+     * @param iz z index of the octant in the grid of its depth
+     * @return the material of the leaf, or -1 if the octant must be subdivided
+     */
+    private int leafMaterial(float cx, float cy, float cz, float half, int d, int ix, int iz){
+        if(heightmap != null){
+            int level = depth - d;
+            if(level <= 0){
+                return minHeights[0][iz * columns + ix] > cy ? material : Materials.MAT_AIR;
+            }
+            int i = iz * (columns >> level) + ix;
+            if(minHeights[level][i] >= cy + half){
+                return material;
+            }
+            if(maxHeights[level][i] <= cy - half){
+                return Materials.MAT_AIR;
+            }
+            return -1;
+        }
+        float f = density.density(cx, cy, cz);
+        if(d >= depth){
+            return f > 0 ? material : Materials.MAT_AIR;
+        }
+        if(Math.abs(f) > maxGradient * half * SQRT3){
+            return f > 0 ? material : Materials.MAT_AIR;
+        }
+        return -1;
+    }
+    
+    /**
+     * Writes the plan of an octant
+     * @return the material if the octant is a leaf, -1 otherwise
+     */
+    private int build(PlanBuffer out, float cx, float cy, float cz, float half, int d, int ix, int iz){
+        int leaf = leafMaterial(cx, cy, cz, half, d, ix, iz);
+        if(leaf >= 0){
+            SubtreeCodec.writeLeaf(out, leaf);
+            return leaf;
+        }
+        int mark = out.size();
+        SubtreeCodec.writeInternal(out);
+        float q = half / 2f;
+        int first = -2;
+        boolean uniform = true;
+        for(int type=Octree.TYPE_1; type<=Octree.TYPE_8; type++){
+            int m = build(out, cx + dx(type) * q, cy + dy(type) * q, cz + dz(type) * q, q, d + 1,
+                    2 * ix + (dx(type) > 0 ? 1 : 0), 2 * iz + (dz(type) > 0 ? 1 : 0));
+            if(first == -2){
+                first = m;
+            }
+            uniform &= m >= 0 && m == first;
+        }
+        if(uniform){
+            out.truncate(mark);
+            SubtreeCodec.writeLeaf(out, first);
+            return first;
+        }
+        return -1;
+    }
+    
+    private static int dx(int type){
+        return type == Octree.TYPE_1 || type == Octree.TYPE_2 || type == Octree.TYPE_5 || type == Octree.TYPE_6 ? 1 : -1;
+    }
+    
+    private static int dy(int type){
+        return type <= Octree.TYPE_4 ? 1 : -1;
+    }
+    
+    private static int dz(int type){
+        return type == Octree.TYPE_1 || type == Octree.TYPE_4 || type == Octree.TYPE_5 || type == Octree.TYPE_8 ? 1 : -1;
+    }
+    
+    /**
+     * Builds the plan of an octant. The first levels fork a task per child
+     * and concatenate the results, the deeper ones are built sequentially.
+     */
+    private class PlanTask extends RecursiveTask<byte[]> {
+        
+        private final float cx, cy, cz, half;
+        private final int d, ix, iz;
+        
+        PlanTask(float cx, float cy, float cz, float half, int d, int ix, int iz){
+            this.cx = cx;
+            this.cy = cy;
+            this.cz = cz;
+            this.half = half;
+            this.d = d;
+            this.ix = ix;
+            this.iz = iz;
+        }
+        
+        @Override
+        protected byte[] compute() {
+            PlanBuffer out = new PlanBuffer();
+            if(d >= rootDepth + FORK_LEVELS || leafMaterial(cx, cy, cz, half, d, ix, iz) >= 0){
+                build(out, cx, cy, cz, half, d, ix, iz);
+                return out.toByteArray();
+            }
+            
+            float q = half / 2f;
+            PlanTask tasks[] = new PlanTask[8];
+            for(int type=Octree.TYPE_1; type<=Octree.TYPE_8; type++){
+                tasks[type - 1] = new PlanTask(cx + dx(type) * q, cy + dy(type) * q, cz + dz(type) * q, q, d + 1,
+                        2 * ix + (dx(type) > 0 ? 1 : 0), 2 * iz + (dz(type) > 0 ? 1 : 0));
+            }
+            invokeAll(tasks);
+            
+            //merge the children if they are all the same leaf
+            int first = -1;
+            boolean uniform = true;
+            for(PlanTask t : tasks){
+                SubtreeCodec reader = new SubtreeCodec(t.getRawResult(), 0);
+                int m = reader.peekInternal() ? -1 : reader.readLeaf();
+                if(t == tasks[0]){
+                    first = m;
+                }
+                uniform &= m >= 0 && m == first;
+            }
+            if(uniform){
+                SubtreeCodec.writeLeaf(out, first);
+                return out.toByteArray();
+            }
+            SubtreeCodec.writeInternal(out);
+            for(PlanTask t : tasks){
+                byte[] child = t.getRawResult();
+                out.write(child, 0, child.length);
+            }
+            return out.toByteArray();
+        }
+    }
+    
+    /**
+     * Samples a range of heightmap rows, splitting it in halves
+     */
+    private class SampleTask extends RecursiveAction {
+        
+        private final float[] heights;
+        private final int fromRow, toRow;
+        
+        SampleTask(float[] heights, int fromRow, int toRow){
+            this.heights = heights;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+        
+        @Override
+        protected void compute() {
+            if(toRow - fromRow > ROWS_PER_TASK){
+                int mid = (fromRow + toRow) >>> 1;
+                invokeAll(new SampleTask(heights, fromRow, mid), new SampleTask(heights, mid, toRow));
+                return;
+            }
+            float step = rootSize / columns;
+            for(int z=fromRow; z<toRow; z++){
+                float wz = rootMinZ + (z + 0.5f) * step;
+                for(int x=0; x<columns; x++){
+                    heights[z * columns + x] = heightmap.height(rootMinX + (x + 0.5f) * step, wz);
+                }
+            }
+        }
+    }
+    
+    /**
+     * A buffer that can drop what was written after a given size, used to
+     * replace 8 equal children with a single leaf
+     */
+    private static class PlanBuffer extends ByteArrayOutputStream {
+        
+        void truncate(int size){
+            count = size;
+        }
+    }
+}
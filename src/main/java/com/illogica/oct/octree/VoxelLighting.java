@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.octree;
+
+import com.illogica.oct.states.Materials;
+import com.jme3.math.Vector3f;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Light levels from 0 to 15 flood filled through the air leaves, one hop per
+ * leaf whatever its size. There are two channels: sky light, entering from
+ * the top of the root and going down without losing strength, and the light
+ * of point lights. Both are stored in OctantData.light and baked into the
+ * vertex colors of the meshes by AmbientOcclusion.
+ * 
+ * After an edit only the light around the changed octants is updated: the
+ * light that could have come through them is removed with a breadth first
+ * search, then filled again from the lit leaves at the border of the
+ * removed area.
+ * @author Loris
+ */
+public class VoxelLighting {
+    
+    public static final int MAX_LEVEL = 15;
+    private static final int SKY = 4, BLOCK = 0; //shift of the channels
+    
+    //direction of the sides, indexed by Octree.SIDE_*
+    private static final int SIDES[][] = {
+        {0, 0, 1}, {1, 0, 0}, {0, 0, -1}, {-1, 0, 0}, {0, 1, 0}, {0, -1, 0}
+    };
+    
+    private final Octree tree;
+    private final List<PointLight> lights = new ArrayList<PointLight>();
+    
+    private final ArrayDeque<Octant> addQueue = new ArrayDeque<Octant>();
+    private final ArrayDeque<Octant> removeQueue = new ArrayDeque<Octant>();
+    private final ArrayDeque<Integer> removeLevels = new ArrayDeque<Integer>();
+    private final List<Octant> neighbors = new ArrayList<Octant>();
+    private Set<Octant> changed;
+    
+    public VoxelLighting(Octree tree){
+        this.tree = tree;
+    }
+    
+    /**
+     * Computes the light of the whole tree
+     */
+    public void relight(){
+        changed = null;
+        for(int channel : new int[]{SKY, BLOCK}){
+            darken(tree.getRoot(), channel);
+            propagate(channel);
+        }
+    }
+    
+    /**
+     * Updates the light after some edits
+     * @param edited the octants changed by the edits, see
+     * Octree.getChangedSince()
+     * @return the leaves whose light changed
+     */
+    public List<Octant> update(List<Octant> edited){
+        changed = Collections.newSetFromMap(new IdentityHashMap<Octant, Boolean>());
+        Set<Octant> top = Collections.newSetFromMap(new IdentityHashMap<Octant, Boolean>());
+        List<Octant> topmost = new ArrayList<Octant>();
+        for(Octant o : edited){
+            top.add(o);
+            if(o.getParent() == null || !top.contains(o.getParent())){
+                topmost.add(o);
+            }
+        }
+        
+        for(int channel : new int[]{SKY, BLOCK}){
+            for(Octant o : topmost){
+                //the octants inside start dark, the leaves around them
+                //could have been lit through them
+                darken(o, channel);
+                for(int side=0; side<6; side++){
+                    neighbors(o, side);
+                    for(Octant n : neighbors){
+                        remove(n, channel);
+                    }
+                }
+            }
+            unlight(channel);
+            propagate(channel);
+        }
+        
+        List<Octant> result = new ArrayList<Octant>(changed);
+        changed = null;
+        return result;
+    }
+    
+    /**
+     * Adds a point light
+     * @param position
+     * @param level from 1 to MAX_LEVEL
+     * @return the leaves whose light changed
+     */
+    public List<Octant> addLight(Vector3f position, int level){
+        changed = Collections.newSetFromMap(new IdentityHashMap<Octant, Boolean>());
+        level = Math.max(0, Math.min(level, MAX_LEVEL));
+        lights.add(new PointLight(new Vector3f(position), level));
+        Octant leaf = tree.getLeaf(position.x, position.y, position.z);
+        if(leaf != null && isAir(leaf) && level > get(leaf, BLOCK)){
+            set(leaf, BLOCK, level);
+            addQueue.add(leaf);
+            propagate(BLOCK);
+        }
+        List<Octant> result = new ArrayList<Octant>(changed);
+        changed = null;
+        return result;
+    }
+    
+    /**
+     * Removes the point lights inside the leaf containing a position
+     * @param position
+     * @return the leaves whose light changed
+     */
+    public List<Octant> removeLights(Vector3f position){
+        changed = Collections.newSetFromMap(new IdentityHashMap<Octant, Boolean>());
+        Octant leaf = tree.getLeaf(position.x, position.y, position.z);
+        if(leaf != null){
+            for(int i=lights.size()-1; i>=0; i--){
+                if(tree.getLeaf(lights.get(i).position.x, lights.get(i).position.y, lights.get(i).position.z) == leaf){
+                    lights.remove(i);
+                }
+            }
+            remove(leaf, BLOCK);
+            unlight(BLOCK);
+            propagate(BLOCK);
+        }
+        List<Octant> result = new ArrayList<Octant>(changed);
+        changed = null;
+        return result;
+    }
+    
+    /**
+     * @param o a leaf
+     * @return the sky light of the leaf, from 0 to MAX_LEVEL
+     */
+    public static int getSkyLight(Octant o){
+        return get(o, SKY);
+    }
+    
+    /**
+     * @param o a leaf
+     * @return the light of the point lights in the leaf, from 0 to MAX_LEVEL
+     */
+    public static int getBlockLight(Octant o){
+        return get(o, BLOCK);
+    }
+    
+    private static int get(Octant o, int channel){
+        return ((o.data.light & 0xFF) >> channel) & MAX_LEVEL;
+    }
+    
+    private void set(Octant o, int channel, int level){
+        int light = o.data.light & 0xFF;
+        light = (light & ~(MAX_LEVEL << channel)) | (level << channel);
+        o.data.light = (byte) light;
+        if(changed != null){
+            changed.add(o);
+        }
+    }
+    
+    private static boolean isAir(Octant o){
+        return !o.hasChildren() && o.getMaterialType() == Materials.MAT_AIR;
+    }
+    
+    /**
+     * @return the level an air leaf gets by itself, without its neighbors
+     */
+    private int source(Octant o, int channel){
+        Vector3f c = o.getOrigin();
+        float h = o.getEdgeSize() / 2f;
+        if(channel == SKY){
+            Octant root = tree.getRoot();
+            float top = root.getOrigin().y + root.getEdgeSize() / 2f;
+            return c.y + h >= top - h * 0.001f ? MAX_LEVEL : 0;
+        }
+        int level = 0;
+        for(PointLight l : lights){
+            Vector3f p = l.position;
+            if(Math.abs(p.x - c.x) <= h && Math.abs(p.y - c.y) <= h && Math.abs(p.z - c.z) <= h){
+                level = Math.max(level, l.level);
+            }
+        }
+        return level;
+    }
+    
+    /**
+     * Sets the leaves of a changed subtree to their own source level
+     */
+    private void darken(Octant o, int channel){
+        if(o.hasChildren()){
+            for(Octant c : o.getChildren()){
+                darken(c, channel);
+            }
+            return;
+        }
+        int level = isAir(o) ? source(o, channel) : 0;
+        set(o, channel, level);
+        if(level > 0){
+            addQueue.add(o);
+        }
+    }
+    
+    /**
+     * Queues a lit leaf for removal
+     */
+    private void remove(Octant o, int channel){
+        int level = get(o, channel);
+        if(level > 0){
+            set(o, channel, 0);
+            removeQueue.add(o);
+            removeLevels.add(level);
+        }
+    }
+    
+    /**
+     * Darkens the leaves lit by the queued ones. The brighter leaves found at
+     * the border are queued to fill the dark area again.
+     */
+    private void unlight(int channel){
+        while(!removeQueue.isEmpty()){
+            Octant o = removeQueue.poll();
+            int old = removeLevels.poll();
+            
+            int own = isAir(o) ? source(o, channel) : 0;
+            if(own > 0){
+                set(o, channel, own);
+                addQueue.add(o);
+            }
+            
+            for(int side=0; side<6; side++){
+                neighbors(o, side);
+                for(Octant n : neighbors){
+                    int level = get(n, channel);
+                    if(level == 0){
+                        continue;
+                    }
+                    boolean skyColumn = channel == SKY && side == Octree.SIDE_BOTTOM && old == MAX_LEVEL;
+                    if(level < old || (skyColumn && level == MAX_LEVEL)){
+                        set(n, channel, 0);
+                        removeQueue.add(n);
+                        removeLevels.add(level);
+                    } else {
+                        addQueue.add(n);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Spreads the light of the queued leaves
+     */
+    private void propagate(int channel){
+        while(!addQueue.isEmpty()){
+            Octant o = addQueue.poll();
+            int level = get(o, channel);
+            if(level <= 1 || !isAir(o)){
+                continue;
+            }
+            for(int side=0; side<6; side++){
+                int next = channel == SKY && side == Octree.SIDE_BOTTOM && level == MAX_LEVEL ? MAX_LEVEL : level - 1;
+                neighbors(o, side);
+                for(Octant n : neighbors){
+                    if(isAir(n) && get(n, channel) < next){
+                        set(n, channel, next);
+                        addQueue.add(n);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Fills the neighbors list with the leaves touching a side of an octant
+     * from outside. They can be bigger, as big or smaller than the octant.
+     */
+    private void neighbors(Octant o, int side){
+        neighbors.clear();
+        int d[] = SIDES[side];
+        Vector3f c = o.getOrigin();
+        float e = o.getEdgeSize();
+        Octant n = tree.getOctant(c.x + d[0] * e, c.y + d[1] * e, c.z + d[2] * e, o.getDepth());
+        if(n != null){
+            faceLeaves(n, d, neighbors);
+        }
+    }
+    
+    /**
+     * Collects the leaves of a subtree on the side opposite to the direction d
+     */
+    private static void faceLeaves(Octant o, int d[], List<Octant> leaves){
+        if(!o.hasChildren()){
+            leaves.add(o);
+            return;
+        }
+        Vector3f c = o.getOrigin();
+        for(Octant child : o.getChildren()){
+            Vector3f cc = child.getOrigin();
+            float along = (cc.x - c.x) * d[0] + (cc.y - c.y) * d[1] + (cc.z - c.z) * d[2];
+            if(along < 0f){
+                faceLeaves(child, d, leaves);
+            }
+        }
+    }
+    
+    private static class PointLight {
+        final Vector3f position;
+        final int level;
+        
+        PointLight(Vector3f position, int level){
+            this.position = position;
+            this.level = level;
+        }
+    }
+}
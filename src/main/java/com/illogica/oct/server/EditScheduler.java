@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.server;
+
+import com.illogica.oct.octree.EditOperation;
+import com.illogica.oct.octree.LocationalCode;
+import com.illogica.oct.octree.Octree;
+import com.illogica.oct.octree.OctreeSnapshot;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects the edits sent by the clients and applies them once per tick.
+ * 
+ * Edits are ordered by arrival. Before being applied, the edits of a tick
+ * that would be completely overwritten by a later edit of the same tick are
+ * dropped: a create or a delete overwrites everything in its subtree, a
+ * material change overwrites the previous material changes of the same octant.
+ * 
+ * When the scheduler owns an octree it is the authority: edits are applied to
+ * it and it can provide snapshots to the joining clients. Without an octree
+ * the scheduler just orders the edits and the server works as a relay.
+ * @author Loris
+ */
+public class EditScheduler implements SnapshotProvider {
+    
+    private final Octree octree;
+    private final ConcurrentLinkedQueue<EditOperation> queue = new ConcurrentLinkedQueue<EditOperation>();
+    private long sequence = 0; //sequence number of the last scheduled edit
+    
+    //statistics
+    private long ticks = 0;
+    private long editsReceived = 0;
+    private long editsApplied = 0;
+    private long totalTickNanos = 0;
+    private long maxTickNanos = 0;
+    
+    /**
+     * @param octree the authoritative octree, or null to relay the edits
+     */
+    public EditScheduler(Octree octree){
+        this.octree = octree;
+    }
+    
+    public Octree getOctree(){
+        return octree;
+    }
+    
+    /**
+     * Queues some edits for the next tick, can be called from any thread
+     * @param ops 
+     */
+    public void submit(EditOperation[] ops){
+        int invalid = 0;
+        for(EditOperation op : ops){
+            if(isValid(op)){
+                queue.add(op);
+            } else {
+                invalid++;
+            }
+        }
+        //once per message, a client sending bad edits must not flood the log
+        if(invalid > 0){
+            Logger.getLogger(EditScheduler.class.getName()).log(Level.FINE, "Discarded {0} invalid edits of {1}", new Object[]{invalid, ops.length});
+        }
+    }
+    
+    private boolean isValid(EditOperation op){
+        if(op == null || op.getCode() <= 0 || LocationalCode.depth(op.getCode()) > LocationalCode.MAX_DEPTH){
+            return false;
+        }
+        if(op.isBoxOperation()){
+            return op.getBox() != null && op.getBox().length == 6
+                    && op.getDepth() >= 0 && op.getDepth() <= LocationalCode.MAX_DEPTH;
+        }
+        if(op.getType() == EditOperation.RESTORE){
+            return op.getSubtree() != null && op.getSubtree().length > 0;
+        }
+        return op.getType() >= EditOperation.CREATE && op.getType() <= EditOperation.SUBDIVIDE;
+    }
+    
+    /**
+     * Schedules the queued edits, applying them to the octree if there is one
+     * @return the edits to be broadcast, in order. The first one has sequence
+     * number getSequence() - size + 1
+     */
+    public synchronized List<EditOperation> tick(){
+        long start = System.nanoTime();
+        
+        List<EditOperation> received = new ArrayList<EditOperation>();
+        EditOperation op;
+        while((op = queue.poll()) != null){
+            received.add(op);
+        }
+        List<EditOperation> scheduled = resolveConflicts(received);
+        
+        if(octree != null){
+            //edits that can't be applied by the authority are no-ops for
+            //the clients too, don't broadcast them
+            List<EditOperation> applied = new ArrayList<EditOperation>(scheduled.size());
+            for(EditOperation e : scheduled){
+                if(e.apply(octree) != null){
+                    applied.add(e);
+                }
+            }
+            scheduled = applied;
+        }
+        sequence += scheduled.size();
+        
+        long elapsed = System.nanoTime() - start;
+        ticks++;
+        editsReceived += received.size();
+        editsApplied += scheduled.size();
+        totalTickNanos += elapsed;
+        maxTickNanos = Math.max(maxTickNanos, elapsed);
+        return scheduled;
+    }
+    
+    /**
+     * Drops the edits overwritten by later edits of the same tick
+     * @param received the edits in arrival order
+     * @return the surviving edits, in arrival order
+     */
+    static List<EditOperation> resolveConflicts(List<EditOperation> received){
+        List<EditOperation> scheduled = new ArrayList<EditOperation>(received.size());
+        Set<Long> overwritten = new HashSet<Long>(); //subtrees recreated or deleted later
+        Set<Long> painted = new HashSet<Long>(); //octants whose material is changed later
+        
+        for(int i=received.size()-1; i>=0; i--){
+            EditOperation op = received.get(i);
+            long code = op.getCode();
+            if(isOverwritten(code, overwritten)){
+                continue;
+            }
+            switch(op.getType()){
+                case EditOperation.CREATE:
+                case EditOperation.DELETE:
+                case EditOperation.RESTORE:
+                    overwritten.add(code);
+                    forgetPainted(code, painted);
+                    break;
+                case EditOperation.SET_MATERIAL:
+                    if(!painted.add(code)){
+                        continue;
+                    }
+                    break;
+                case EditOperation.FILL_BOX:
+                case EditOperation.CLEAR_BOX:
+                case EditOperation.PAINT_BOX:
+                    //box operations can subdivide anything
+                    painted.clear();
+                    break;
+                default:
+                    forgetPainted(code, painted);
+                    break;
+            }
+            scheduled.add(op);
+        }
+        Collections.reverse(scheduled);
+        return scheduled;
+    }
+    
+    /**
+     * Structural edits copy the material of the ancestors into the new
+     * children, so the material changes before them are not overwritten
+     */
+    private static void forgetPainted(long code, Set<Long> painted){
+        if(painted.isEmpty()){
+            return;
+        }
+        for(long c = code; c != 0; c = LocationalCode.parent(c)){
+            painted.remove(c);
+        }
+    }
+    
+    private static boolean isOverwritten(long code, Set<Long> overwritten){
+        if(overwritten.isEmpty()){
+            return false;
+        }
+        for(long c = code; c != 0; c = LocationalCode.parent(c)){
+            if(overwritten.contains(c)){
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * @return the sequence number of the last scheduled edit
+     */
+    public synchronized long getSequence(){
+        return sequence;
+    }
+
+    /**
+     * Captures the authoritative octree. Ticks are blocked only for the
+     * time needed to encode the tree.
+     * @return the snapshot
+     */
+    @Override
+    public synchronized OctreeSnapshot takeSnapshot() {
+        if(octree == null){
+            throw new IllegalStateException("The scheduler does not own an octree");
+        }
+        return OctreeSnapshot.capture(octree, sequence);
+    }
+    
+    public synchronized String getStatistics(){
+        return "ticks:" + ticks
+                + ", edits received:" + editsReceived
+                + ", edits applied:" + editsApplied
+                + ", avg tick:" + (ticks > 0 ? totalTickNanos / ticks / 1000 : 0) + "us"
+                + ", max tick:" + (maxTickNanos / 1000) + "us";
+    }
+}
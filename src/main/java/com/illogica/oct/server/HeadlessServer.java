@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.server;
+
+import com.illogica.oct.octree.Octree;
+
+/**
+ * A server owning the authoritative octree, without any display: no
+ * SimpleApplication, no Nifty, no GPU needed. Clients joining get the octree
+ * from this server, and their edits are applied here first.
+ * 
+ * Usage: HeadlessServer [port] [size]
+ * @author Loris
+ */
+public class HeadlessServer {
+    
+    public static final byte DEFAULT_SIZE = 3; //same as the local editor
+    
+    private final Octree octree;
+    private final EditScheduler scheduler;
+    private final Server server;
+    
+    /**
+     * @param size the root edge size is 2^size
+     */
+    public HeadlessServer(byte size){
+        this.octree = Octree.createSimpleTree(null, size);
+        this.scheduler = new EditScheduler(octree);
+        this.server = new Server(scheduler);
+    }
+    
+    public int start(int port){
+        return server.start(port);
+    }
+    
+    public void stop(){
+        server.stop();
+    }
+
+    public Octree getOctree() {
+        return octree;
+    }
+
+    public EditScheduler getScheduler() {
+        return scheduler;
+    }
+    
+    public static void main(String[] args) throws InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : Server.PORT;
+        byte size = args.length > 1 ? Byte.parseByte(args[1]) : DEFAULT_SIZE;
+        
+        final HeadlessServer hs = new HeadlessServer(size);
+        if(hs.start(port) < 0){
+            System.out.println("HeadlessServer: can't start on port " + port);
+            return;
+        }
+        System.out.println("HeadlessServer: listening on port " + port + ", root size " + hs.getOctree().getRoot().getEdgeSize());
+        
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                hs.stop();
+            }
+        });
+        
+        while(true){
+            Thread.sleep(10000);
+            System.out.println("HeadlessServer: " + hs.getScheduler().getStatistics());
+        }
+    }
+}
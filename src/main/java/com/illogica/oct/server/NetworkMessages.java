@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.server;
+
+import com.illogica.oct.octree.EditOperation;
+import com.jme3.network.serializing.Serializer;
+
+/**
+ * Registers the classes exchanged between server and clients.
+ * Registration must happen before a server starts or a client connects, and
+ * only once per JVM, because the serializer gets locked when a server starts.
+ * @author Loris
+ */
+public class NetworkMessages {
+    
+    private static boolean initialized = false;
+    
+    public static synchronized void initialize(){
+        if(initialized)
+            return;
+        Serializer.registerClass(EditOperation.class);
+        Serializer.registerClass(EditRequestMessage.class);
+        Serializer.registerClass(EditBatchMessage.class);
+        Serializer.registerClass(JoinRequestMessage.class);
+        Serializer.registerClass(SnapshotHeaderMessage.class);
+        Serializer.registerClass(SnapshotChunkMessage.class);
+        initialized = true;
+    }
+}
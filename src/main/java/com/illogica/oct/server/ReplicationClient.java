@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.server;
+
+import com.illogica.oct.octree.EditOperation;
+import com.illogica.oct.octree.Octree;
+import com.illogica.oct.octree.OctreeSnapshot;
+import com.illogica.oct.octree.SubtreeCodec;
+import com.jme3.math.Vector3f;
+import com.jme3.network.Client;
+import com.jme3.network.ClientStateListener;
+import com.jme3.network.Message;
+import com.jme3.network.MessageListener;
+import com.jme3.network.Network;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+
+/**
+ * Client side of the edit replication. Edits are sent to the server and are
+ * applied to the local octree only when they come back from the server inside
+ * an EditBatchMessage, so that every client applies them in the same order.
+ * 
+ * A joining client first receives a snapshot of the octree in chunks. Chunks
+ * are decompressed on a worker thread and applied a few at a time, while
+ * edits received in the meanwhile are kept until the snapshot is complete.
+ * 
+ * Messages arrive on the network thread, while the octree must be modified by
+ * the render thread: everything is queued and applied by applyPendingEdits().
+ * 
+ * The server disconnects a client it can't bring up to date, the reason is
+ * logged and kept in getDisconnectReason().
+ * @author Loris
+ */
+public class ReplicationClient implements MessageListener<Client>, ClientStateListener {
+    
+    public static final long SNAPSHOT_BUDGET_NANOS = 4000000L; //time spent applying chunks per frame
+    
+    private final Client client;
+    private final ConcurrentLinkedQueue<EditBatchMessage> receivedBatches = new ConcurrentLinkedQueue<EditBatchMessage>();
+    private final PriorityQueue<EditBatchMessage> orderedBatches;
+    private final ConcurrentLinkedQueue<DecodedChunk> decodedChunks = new ConcurrentLinkedQueue<DecodedChunk>();
+    private final ExecutorService inflater;
+    private volatile SnapshotHeaderMessage snapshotHeader;
+    private boolean snapshotHeaderApplied = false;
+    private int chunksApplied = 0;
+    private boolean synced;
+    private volatile long lastAppliedSequence = 0;
+    private volatile String disconnectReason;
+    
+    private ReplicationClient(Client client, boolean synced){
+        this.client = client;
+        this.synced = synced;
+        this.inflater = Executors.newSingleThreadExecutor();
+        this.orderedBatches = new PriorityQueue<EditBatchMessage>(16, new Comparator<EditBatchMessage>() {
+            @Override
+            public int compare(EditBatchMessage a, EditBatchMessage b) {
+                return Long.compare(a.getFirstSequence(), b.getFirstSequence());
+            }
+        });
+    }
+    
+    /**
+     * Connects to a server and asks for the current octree
+     * @param host
+     * @param port
+     * @param viewPosition the position of the camera, the regions near it are
+     * received first
+     * @return the client
+     * @throws IOException 
+     */
+    public static ReplicationClient connect(String host, int port, Vector3f viewPosition) throws IOException {
+        ReplicationClient rc = connect(host, port, false);
+        rc.client.send(new JoinRequestMessage(new Vector3f(viewPosition)));
+        return rc;
+    }
+    
+    /**
+     * Connects to a server without asking for a snapshot. Used by whoever
+     * already owns the authoritative octree, like the application hosting the
+     * server.
+     * @param host
+     * @param port
+     * @return the client
+     * @throws IOException 
+     */
+    public static ReplicationClient connect(String host, int port) throws IOException {
+        return connect(host, port, true);
+    }
+    
+    private static ReplicationClient connect(String host, int port, boolean synced) throws IOException {
+        NetworkMessages.initialize();
+        Client client = Network.connectToServer(Server.NAME, Server.VERSION, host, port, port);
+        ReplicationClient rc = new ReplicationClient(client, synced);
+        client.addMessageListener(rc, EditBatchMessage.class, SnapshotHeaderMessage.class, SnapshotChunkMessage.class);
+        client.addClientStateListener(rc);
+        client.start();
+        return rc;
+    }
+    
+    public boolean isConnected(){
+        return client.isConnected();
+    }
+    
+    /**
+     * @return true when the local octree has been fully received
+     */
+    public boolean isSynced(){
+        return synced;
+    }
+    
+    /**
+     * @return why the server closed the connection, or null
+     */
+    public String getDisconnectReason(){
+        return disconnectReason;
+    }
+    
+    public void close(){
+        client.removeClientStateListener(this);
+        client.removeMessageListener(this);
+        inflater.shutdownNow();
+        if(client.isStarted()){
+            client.close();
+        }
+    }
+    
+    /**
+     * Sends some edits to the server. Restores of big subtrees are split in
+     * several operations to fit in the messages.
+     * @param ops 
+     * @return false if the edits could not be sent
+     */
+    public boolean submit(EditOperation... ops){
+        List<EditOperation> list = new ArrayList<EditOperation>(ops.length);
+        for(EditOperation op : ops){
+            op.split(Server.MAX_MESSAGE_SIZE - 1024, list);
+        }
+        try {
+            for(int i=0, end; i<list.size(); i=end){
+                end = Server.batchEnd(list, i);
+                List<EditOperation> batch = list.subList(i, end);
+                client.send(new EditRequestMessage(batch.toArray(new EditOperation[batch.size()])));
+            }
+        } catch (RuntimeException ex){
+            Logger.getLogger(ReplicationClient.class.getName()).log(Level.SEVERE, "Can't send the edits to the server", ex);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void clientConnected(Client c) {
+    }
+
+    @Override
+    public void clientDisconnected(Client c, DisconnectInfo info) {
+        if(info != null){
+            disconnectReason = info.reason;
+            Logger.getLogger(ReplicationClient.class.getName()).log(Level.WARNING, "Disconnected by the server: {0}", info.reason);
+        }
+    }
+
+    @Override
+    public void messageReceived(Client source, Message m) {
+        if(m instanceof EditBatchMessage){
+            receivedBatches.add((EditBatchMessage) m);
+        } else if(m instanceof SnapshotHeaderMessage){
+            snapshotHeader = (SnapshotHeaderMessage) m;
+        } else if(m instanceof SnapshotChunkMessage){
+            final SnapshotChunkMessage chunk = (SnapshotChunkMessage) m;
+            inflater.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        byte[] raw = SubtreeCodec.decompress(chunk.getData(), chunk.getRawLength());
+                        decodedChunks.add(new DecodedChunk(chunk.getCode(), raw));
+                    } catch (DataFormatException ex) {
+                        Logger.getLogger(ReplicationClient.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+            });
+        }
+    }
+    
+    /**
+     * Applies the snapshot chunks and the edits received from the server.
+     * Must be called from the thread owning the octree. The tree is write
+     * locked meanwhile, so readers always see it together with the matching
+     * getLastAppliedSequence(). The lock is not taken when there is nothing
+     * to apply, so the tree version doesn't change every frame.
+     * @param tree
+     * @return the number of chunks and edits applied
+     */
+    public int applyPendingEdits(Octree tree){
+        if(!hasPendingEdits()){
+            return 0;
+        }
+        tree.lockWrite();
+        try {
+            return applyPendingEditsLocked(tree);
+        } finally {
+            tree.unlockWrite();
+        }
+    }
+    
+    private int applyPendingEditsLocked(Octree tree){
+        int applied = 0;
+        if(!synced){
+            applied += applySnapshot(tree);
+        }
+        
+        EditBatchMessage batch;
+        while((batch = receivedBatches.poll()) != null){
+            orderedBatches.add(batch);
+        }
+        if(!synced){
+            return applied;
+        }
+        
+        while((batch = orderedBatches.peek()) != null){
+            if(batch.getLastSequence() <= lastAppliedSequence){
+                orderedBatches.poll(); //already applied
+                continue;
+            }
+            if(batch.getFirstSequence() > lastAppliedSequence + 1){
+                break; //wait for the missing edits
+            }
+            orderedBatches.poll();
+            EditOperation[] ops = batch.getOperations();
+            for(int i = (int)(lastAppliedSequence + 1 - batch.getFirstSequence()); i<ops.length; i++){
+                ops[i].apply(tree);
+                applied++;
+            }
+            lastAppliedSequence = batch.getLastSequence();
+        }
+        return applied;
+    }
+    
+    private boolean hasPendingEdits(){
+        if(!receivedBatches.isEmpty()){
+            return true;
+        }
+        if(!synced){
+            return snapshotHeader != null && (!snapshotHeaderApplied || !decodedChunks.isEmpty());
+        }
+        EditBatchMessage batch = orderedBatches.peek();
+        return batch != null && batch.getFirstSequence() <= lastAppliedSequence + 1;
+    }
+    
+    private int applySnapshot(Octree tree){
+        SnapshotHeaderMessage header = snapshotHeader;
+        if(header == null){
+            return 0;
+        }
+        if(!snapshotHeaderApplied){
+            //the listener syncs the new root at the end of the batch
+            tree.beginBatch();
+            try {
+                tree.generateRoot(header.getRootSize(), header.getRootOrigin());
+            } finally {
+                tree.endBatch();
+            }
+            lastAppliedSequence = header.getSequence();
+            snapshotHeaderApplied = true;
+        }
+        
+        int applied = 0;
+        long start = System.nanoTime();
+        DecodedChunk chunk;
+        while(System.nanoTime() - start < SNAPSHOT_BUDGET_NANOS && (chunk = decodedChunks.poll()) != null){
+            OctreeSnapshot.applyChunk(tree, chunk.code, chunk.data);
+            chunksApplied++;
+            applied++;
+        }
+        if(chunksApplied == header.getChunkCount()){
+            Logger.getLogger(ReplicationClient.class.getName()).log(Level.INFO, "Octree received, {0} chunks up to edit {1}", new Object[]{chunksApplied, header.getSequence()});
+            synced = true;
+        }
+        return applied;
+    }
+
+    /**
+     * @return the sequence number of the last edit applied to the local octree
+     */
+    public long getLastAppliedSequence() {
+        return lastAppliedSequence;
+    }
+    
+    private static class DecodedChunk {
+        final long code;
+        final byte[] data;
+        
+        DecodedChunk(long code, byte[] data){
+            this.code = code;
+            this.data = data;
+        }
+    }
+}
@@ -25,17 +25,44 @@
  */
 package com.illogica.oct.server;
 
+import com.illogica.oct.octree.EditOperation;
+import com.illogica.oct.octree.LocationalCode;
+import com.illogica.oct.octree.Octinfo;
+import com.illogica.oct.octree.OctreeSnapshot;
+import com.illogica.oct.octree.SubtreeCodec;
+import com.jme3.math.Vector3f;
 import com.jme3.network.HostedConnection;
+import com.jme3.network.Message;
+import com.jme3.network.MessageListener;
 import com.jme3.network.Network;
+import com.jme3.network.serializing.Serializer;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- *
+ * The server does not send the whole octree around. Clients send edit
+ * requests, the server collects them in its EditScheduler and once per tick
+ * assigns them a sequence number and broadcasts them in a single batch.
+ * Since every client applies the same edits in the same order, all the
+ * octrees stay in sync.
+ * 
+ * A joining client asks for the current octree: the server gets a snapshot
+ * from the SnapshotProvider and streams it as compressed chunks, the nearest
+ * to the client first, followed by the edits broadcast after the snapshot was
+ * taken. If the history no longer holds all of them, the client is
+ * disconnected with a reason rather than left waiting for the missing edits.
  * @author Loris
  */
-public class Server implements ServerInterface {
+public class Server implements ServerInterface, MessageListener<HostedConnection> {
     private static int id = 0;
     com.jme3.network.Server _server;
     
@@ -43,25 +70,257 @@ public class Server implements ServerInterface {
     public static final int VERSION = 1;
     public static final int PORT = 5110;
     public static final int UDP_PORT = 5110;
+    public static final int TICK_RATE = 20; //batches per second
+    public static final int MAX_BATCH_SIZE = 1024; //operations per message
+    public static final int MAX_MESSAGE_SIZE = 16 * 1024; //serialized edit bytes per message, jME messages can't exceed 32 KB
+    public static final int MAX_CHUNK_SIZE = 16 * 1024; //uncompressed snapshot bytes per message
+    public static final int HISTORY_SIZE = 256; //batches kept to bring joining clients up to date
+    public static final int SNAPSHOT_ATTEMPTS = 3; //snapshots taken, one second apart, before giving up on a client
+    
+    private final EditScheduler scheduler;
+    private final ArrayDeque<EditBatchMessage> history = new ArrayDeque<EditBatchMessage>();
+    private ScheduledExecutorService ticker;
+    private ExecutorService snapshotSender;
+    private SnapshotProvider snapshotProvider;
+    
+    /**
+     * Creates a relay server, the octree is owned by a client
+     */
+    public Server(){
+        this(new EditScheduler(null));
+    }
+    
+    /**
+     * Creates a server using the given scheduler. If the scheduler owns an
+     * octree the server is the authority and provides the snapshots.
+     * @param scheduler 
+     */
+    public Server(EditScheduler scheduler){
+        this.scheduler = scheduler;
+        if(scheduler.getOctree() != null){
+            this.snapshotProvider = scheduler;
+        }
+    }
+    
+    public void setSnapshotProvider(SnapshotProvider provider){
+        this.snapshotProvider = provider;
+    }
     
     @Override
     public int start(){
+        return start(PORT);
+    }
+    
+    /**
+     * Starts the server on the given port, useful to run more servers on the
+     * same machine
+     * @param port used for both tcp and udp
+     * @return a server Id
+     */
+    public int start(int port){
+        NetworkMessages.initialize();
+        //the registry gets locked when a server starts, unlock it in case
+        //another server was started before in this JVM
+        Serializer.setReadOnly(false);
         try {
-            _server = Network.createServer(NAME, VERSION, PORT, UDP_PORT);
+            _server = Network.createServer(NAME, VERSION, port, port);
+            _server.addMessageListener(this, EditRequestMessage.class, JoinRequestMessage.class);
             _server.start();
         } catch (IOException ex) {
             Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
             return -1;
         }
+        snapshotSender = Executors.newSingleThreadExecutor();
+        ticker = Executors.newSingleThreadScheduledExecutor();
+        ticker.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, 0, 1000 / TICK_RATE, TimeUnit.MILLISECONDS);
         return id++;
     }
     
     public void stop(){
+        if(ticker != null){
+            ticker.shutdown();
+            snapshotSender.shutdownNow();
+        }
         for(HostedConnection conn : _server.getConnections()){
             conn.close("Server closing");
         }   
         //_server.removeConnectionListener(this);
-        //_server.removeMessageListener(this);
+        _server.removeMessageListener(this);
         _server.close();
     }
+
+    @Override
+    public void messageReceived(HostedConnection source, Message m) {
+        if(m instanceof EditRequestMessage){
+            EditOperation[] ops = ((EditRequestMessage)m).getOperations();
+            if(ops != null){
+                scheduler.submit(ops);
+            }
+        } else if(m instanceof JoinRequestMessage){
+            final HostedConnection conn = source;
+            final Vector3f viewPosition = ((JoinRequestMessage)m).getViewPosition();
+            snapshotSender.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendSnapshot(conn, viewPosition);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Streams the octree to a client. Runs on the snapshot sender thread, so
+     * neither the network thread nor the thread owning the octree are blocked
+     * while chunks are compressed.
+     * @param conn
+     * @param viewPosition 
+     */
+    private void sendSnapshot(HostedConnection conn, Vector3f viewPosition){
+        try {
+            if(snapshotProvider == null){
+                Logger.getLogger(Server.class.getName()).log(Level.INFO, "No snapshot provider, can't sync client {0}", conn.getId());
+                return;
+            }
+            //a provider lagging behind the history may catch up meanwhile
+            OctreeSnapshot taken = snapshotProvider.takeSnapshot();
+            for(int i=1; i<SNAPSHOT_ATTEMPTS && !isHistoryAvailable(taken.getSequence()); i++){
+                Thread.sleep(1000);
+                taken = snapshotProvider.takeSnapshot();
+            }
+            final OctreeSnapshot snapshot = taken;
+            if(!isHistoryAvailable(snapshot.getSequence())){
+                disconnectOutdated(conn, snapshot.getSequence());
+                return;
+            }
+            List<OctreeSnapshot.Chunk> chunks = snapshot.split(MAX_CHUNK_SIZE);
+            
+            //nearest regions first
+            final Vector3f position = viewPosition != null ? viewPosition : Vector3f.ZERO;
+            Collections.sort(chunks, new Comparator<OctreeSnapshot.Chunk>() {
+                @Override
+                public int compare(OctreeSnapshot.Chunk a, OctreeSnapshot.Chunk b) {
+                    return Float.compare(distanceSquared(snapshot, a, position), distanceSquared(snapshot, b, position));
+                }
+            });
+            
+            conn.send(new SnapshotHeaderMessage(snapshot.getSequence(), snapshot.getRootSize(), snapshot.getRootOrigin(), chunks.size()));
+            for(OctreeSnapshot.Chunk c : chunks){
+                byte[] compressed = SubtreeCodec.compress(snapshot.getData(), c.offset, c.length);
+                conn.send(new SnapshotChunkMessage(c.code, c.length, compressed));
+            }
+            
+            //the edits broadcast after the snapshot was taken, they may have
+            //left the history while the chunks were sent
+            synchronized(history){
+                if(!isHistoryAvailable(snapshot.getSequence())){
+                    disconnectOutdated(conn, snapshot.getSequence());
+                    return;
+                }
+                for(EditBatchMessage batch : history){
+                    if(batch.getLastSequence() > snapshot.getSequence()){
+                        conn.send(batch);
+                    }
+                }
+            }
+            Logger.getLogger(Server.class.getName()).log(Level.FINE, "Sent {0} chunks to client {1}", new Object[]{chunks.size(), conn.getId()});
+        } catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException ex){
+            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    /**
+     * @param sequence the sequence number of a snapshot
+     * @return true if the history holds all the edits after it
+     */
+    private boolean isHistoryAvailable(long sequence){
+        synchronized(history){
+            for(EditBatchMessage batch : history){
+                if(batch.getLastSequence() > sequence){
+                    return batch.getFirstSequence() <= sequence + 1;
+                }
+            }
+            return true;
+        }
+    }
+    
+    private void disconnectOutdated(HostedConnection conn, long sequence){
+        Logger.getLogger(Server.class.getName()).log(Level.WARNING, "Edits after {0} are no longer available, disconnecting client {1}", new Object[]{sequence, conn.getId()});
+        conn.close("The octree snapshot is too old to be brought up to date, please reconnect");
+    }
+    
+    private static float distanceSquared(OctreeSnapshot snapshot, OctreeSnapshot.Chunk c, Vector3f position){
+        Octinfo oi = LocationalCode.toOctinfo(snapshot.getRootOrigin(), snapshot.getRootSize(), c.code);
+        float dx = oi.originX - position.x;
+        float dy = oi.originY - position.y;
+        float dz = oi.originZ - position.z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+    
+    /**
+     * Lets the scheduler apply the edits received since the last tick, then
+     * broadcasts them to all the clients.
+     */
+    private void tick(){
+        try {
+            List<EditOperation> ops = scheduler.tick();
+            long first = scheduler.getSequence() - ops.size() + 1;
+            for(int i=0, end; i<ops.size(); i=end){
+                end = batchEnd(ops, i);
+                List<EditOperation> batch = ops.subList(i, end);
+                broadcast(new EditBatchMessage(first + i, batch.toArray(new EditOperation[batch.size()])));
+            }
+        } catch (RuntimeException ex){
+            //an exception would silently cancel the scheduled task
+            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    /**
+     * Groups edits in messages of at most MAX_BATCH_SIZE operations and
+     * MAX_MESSAGE_SIZE bytes. An operation bigger than that gets a message of
+     * its own.
+     * @param ops
+     * @param from the first operation of the message
+     * @return the index after the last operation of the message
+     */
+    public static int batchEnd(List<EditOperation> ops, int from){
+        int end = from;
+        int size = 0;
+        while(end < ops.size() && end - from < MAX_BATCH_SIZE){
+            size += ops.get(end).getSerializedSize();
+            if(size > MAX_MESSAGE_SIZE && end > from){
+                break;
+            }
+            end++;
+        }
+        return end;
+    }
+    
+    private void broadcast(EditBatchMessage m){
+        synchronized(history){
+            history.addLast(m);
+            if(history.size() > HISTORY_SIZE){
+                history.removeFirst();
+            }
+            _server.broadcast(m);
+        }
+    }
+    
+    /**
+     * @return the sequence number of the last edit sent to the clients
+     */
+    public long getSequence(){
+        return scheduler.getSequence();
+    }
+    
+    public EditScheduler getScheduler(){
+        return scheduler;
+    }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.server;
+
+import com.illogica.oct.octree.EditOperation;
+import com.illogica.oct.octree.LocationalCode;
+import com.illogica.oct.octree.Octree;
+import com.illogica.oct.octree.SubtreeCodec;
+import com.illogica.oct.states.Materials;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Starts a HeadlessServer and a number of simulated clients on the same
+ * machine. Each client joins, edits random octants at a fixed rate and applies
+ * the edits coming back from the server to its own octree.
+ * At the end the client octrees are compared with the authoritative one.
+ * 
+ * Usage: ServerBenchmark [clients] [edits per second per client] [seconds]
+ * @author Loris
+ */
+public class ServerBenchmark {
+    
+    public static final int PORT = Server.PORT + 1;
+    public static final int MAX_EDIT_DEPTH = 8;
+    
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        
+        HeadlessServer hs = new HeadlessServer(HeadlessServer.DEFAULT_SIZE);
+        hs.start(PORT);
+        
+        List<SimulatedClient> simulated = new ArrayList<SimulatedClient>();
+        for(int i=0; i<clients; i++){
+            SimulatedClient c = new SimulatedClient(i, rate);
+            simulated.add(c);
+            c.start();
+        }
+        
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        for(SimulatedClient c : simulated){
+            c.stopEditing();
+        }
+        
+        //let the last edits reach everybody
+        Thread.sleep(1000);
+        for(SimulatedClient c : simulated){
+            c.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        
+        byte[] authority = SubtreeCodec.encode(hs.getOctree().getRoot());
+        int inSync = 0;
+        long sent = 0;
+        for(SimulatedClient c : simulated){
+            sent += c.sent;
+            if(c.error == null && Arrays.equals(authority, c.encoded)){
+                inSync++;
+            } else if(c.error != null){
+                System.out.println("ServerBenchmark: client " + c.index + " failed: " + c.error);
+            }
+        }
+        
+        System.out.println("ServerBenchmark: " + clients + " clients, " + sent + " edits sent in " + String.format("%.1f", elapsed) + "s");
+        System.out.println("ServerBenchmark: " + hs.getScheduler().getStatistics());
+        System.out.println("ServerBenchmark: " + inSync + "/" + clients + " clients in sync with the server, octree encoded in " + authority.length + " bytes");
+        hs.stop();
+        System.exit(0);
+    }
+    
+    private static class SimulatedClient extends Thread {
+        
+        final int index;
+        final int rate;
+        volatile boolean editing = true;
+        long sent = 0;
+        byte[] encoded;
+        Exception error;
+        
+        SimulatedClient(int index, int rate){
+            super("Simulated client " + index);
+            this.index = index;
+            this.rate = rate;
+        }
+        
+        void stopEditing(){
+            editing = false;
+        }
+
+        @Override
+        public void run() {
+            Random random = new Random(index);
+            Octree octree = Octree.createSimpleTree(null, (byte)0);
+            ReplicationClient client = null;
+            try {
+                client = ReplicationClient.connect("127.0.0.1", PORT, octree.getRoot().getOrigin());
+                
+                long period = 1000000000L / Server.TICK_RATE;
+                int perTick = Math.max(1, rate / Server.TICK_RATE);
+                long next = System.nanoTime();
+                while(editing){
+                    client.applyPendingEdits(octree);
+                    if(client.isSynced()){
+                        EditOperation[] ops = new EditOperation[perTick];
+                        for(int i=0; i<perTick; i++){
+                            ops[i] = randomEdit(random);
+                        }
+                        client.submit(ops);
+                        sent += perTick;
+                    }
+                    next += period;
+                    long sleep = (next - System.nanoTime()) / 1000000L;
+                    if(sleep > 0){
+                        Thread.sleep(sleep);
+                    }
+                }
+                
+                //wait for our own edits and the ones of the others
+                long deadline = System.currentTimeMillis() + 1000;
+                while(System.currentTimeMillis() < deadline){
+                    client.applyPendingEdits(octree);
+                    Thread.sleep(10);
+                }
+                encoded = SubtreeCodec.encode(octree.getRoot());
+            } catch (IOException | InterruptedException ex){
+                error = ex;
+            } finally {
+                if(client != null){
+                    client.close();
+                }
+            }
+        }
+        
+        private EditOperation randomEdit(Random random){
+            long code = LocationalCode.ROOT;
+            int depth = 1 + random.nextInt(MAX_EDIT_DEPTH);
+            for(int i=0; i<depth; i++){
+                code = LocationalCode.child(code, random.nextInt(8));
+            }
+            int material = Materials.MAT_SOLID_BLACK + random.nextInt(14);
+            switch(random.nextInt(4)){
+                case 0: return EditOperation.delete(code);
+                case 1: return EditOperation.setMaterial(code, material);
+                default: return EditOperation.create(code, material);
+            }
+        }
+    }
+}
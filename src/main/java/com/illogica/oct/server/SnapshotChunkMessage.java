@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.server;
+
+import com.jme3.network.AbstractMessage;
+import com.jme3.network.serializing.Serializable;
+
+/**
+ * A compressed subtree of a snapshot
+ * @author Loris
+ */
+@Serializable
+public class SnapshotChunkMessage extends AbstractMessage {
+    
+    private long code;
+    private int rawLength;
+    private byte[] data;
+    
+    /**
+     * Serialization only. Do not use.
+     */
+    public SnapshotChunkMessage(){
+        setReliable(true);
+    }
+    
+    public SnapshotChunkMessage(long code, int rawLength, byte[] data){
+        setReliable(true);
+        this.code = code;
+        this.rawLength = rawLength;
+        this.data = data;
+    }
+
+    /**
+     * @return the locational code of the subtree root
+     */
+    public long getCode() {
+        return code;
+    }
+
+    /**
+     * @return the length of the data once decompressed
+     */
+    public int getRawLength() {
+        return rawLength;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+}
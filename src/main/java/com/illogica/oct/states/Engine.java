@@ -25,29 +25,55 @@
  */
 package com.illogica.oct.states;
 
+import com.illogica.oct.engine.SimplexNoise;
+import com.illogica.oct.octree.EditJournal;
+import com.illogica.oct.octree.EditOperation;
+import com.illogica.oct.octree.LocationalCode;
+import com.illogica.oct.octree.MeshVoxelizer;
 import com.illogica.oct.octree.Octant;
 import com.illogica.oct.octree.Octinfo;
 import com.illogica.oct.octree.Octree;
+import com.illogica.oct.octree.OctreeAutosave;
+import com.illogica.oct.octree.OctreeQuery;
+import com.illogica.oct.octree.OctreeReader;
+import com.illogica.oct.octree.OctreeSnapshot;
+import com.illogica.oct.octree.TerrainGenerator;
+import com.illogica.oct.server.ReplicationClient;
+import com.illogica.oct.server.SnapshotProvider;
 import com.jme3.app.Application;
 import com.jme3.app.SimpleApplication;
 import com.jme3.app.state.AbstractAppState;
 import com.jme3.app.state.AppStateManager;
 import com.jme3.collision.CollisionResult;
+import com.jme3.math.Vector2f;
 import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
 import com.jme3.scene.Geometry;
+import com.jme3.scene.Spatial;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
  *
  * @author Loris
  */
-public class Engine extends AbstractAppState {
+public class Engine extends AbstractAppState implements SnapshotProvider {
     
     public static final float SELECT_PRECISION = 0.0001f;
 
     private SimpleApplication app;
     private AppStateManager sm;
     private Octree octree;
+    private volatile ReplicationClient replicationClient; //also read by the server threads
+    private OctreeAutosave autosave;
+    private final EditJournal journal = new EditJournal();
 
     @Override
     public void initialize(AppStateManager stateManager, Application app) {
@@ -63,26 +89,200 @@ public class Engine extends AbstractAppState {
     @Override
     public void update(float tpf) {
         sm.getState(Lighting.class).getSun().setDirection(app.getCamera().getDirection());
+        
+        if(replicationClient != null && replicationClient.getDisconnectReason() != null){
+            System.out.println("Disconnected from the server: " + replicationClient.getDisconnectReason());
+            replicationClient.close();
+            setReplicationClient(null);
+        }
+        if(replicationClient != null && replicationClient.applyPendingEdits(octree) > 0){
+            onRefreshSelection();
+        }
+        
+        if(autosave != null){
+            autosave.update(tpf);
+        }
+    }
+
+    @Override
+    public void cleanup() {
+        super.cleanup();
+        stopAutosave();
     }
 
     public Octree getOctree() { return octree; }
+    
+    /**
+     * Starts saving the octree to a directory. If the directory already
+     * contains a saved octree, it replaces the current one.
+     * Like imports, the recovered octree would not be sent to the server, so
+     * autosave can't be started while connected.
+     * @param directory
+     * @throws IOException if the saved octree can't be read
+     */
+    public void startAutosave(String directory) throws IOException {
+        if(isConnected()){
+            System.out.println("Can't start autosave while connected to a server");
+            return;
+        }
+        stopAutosave();
+        OctreeAutosave as = new OctreeAutosave(octree, new File(directory));
+        if(as.recover()){
+            journal.clear();
+            onRefreshSelection();
+        }
+        autosave = as;
+    }
+    
+    /**
+     * Saves the last changes and stops saving
+     */
+    public void stopAutosave(){
+        if(autosave != null){
+            autosave.close();
+            autosave = null;
+        }
+    }
+    
+    /**
+     * Captures the octree under its read lock, called by the server when a
+     * client joins. The render thread only waits if it edits the octree
+     * meanwhile.
+     * @return the snapshot
+     */
+    @Override
+    public OctreeSnapshot takeSnapshot(){
+        return octree.readLocked(new OctreeReader<OctreeSnapshot>() {
+            @Override
+            public OctreeSnapshot read(Octree tree) {
+                ReplicationClient client = replicationClient;
+                long sequence = client != null ? client.getLastAppliedSequence() : 0;
+                return OctreeSnapshot.capture(tree, sequence);
+            }
+        });
+    }
+
+    /**
+     * When a replication client is set, the edits are sent to the server
+     * instead of being applied directly to the local octree.
+     * Undo is not available while connected: the journal captures the local
+     * octree, and restoring it would also revert the edits of the other
+     * clients.
+     * @param client the client, or null to go back to local editing
+     */
+    public void setReplicationClient(ReplicationClient client){
+        this.replicationClient = client;
+        journal.clear(); //the server sends its own octree
+    }
+    
+    private boolean isConnected(){
+        return replicationClient != null && replicationClient.isConnected();
+    }
+    
+    /**
+     * Records some edits in the journal, then applies them, see sendEdits().
+     * Edits sent to a server are not recorded.
+     * @param ops 
+     */
+    private void submitEdits(EditOperation... ops){
+        if(!isConnected()){
+            journal.record(octree, ops);
+        }
+        sendEdits(ops);
+    }
+    
+    /**
+     * Applies some edits to the local octree or, when connected, sends them
+     * to the server that will broadcast them back to all the clients.
+     * @param ops 
+     */
+    private void sendEdits(EditOperation... ops){
+        if(isConnected()){
+            replicationClient.submit(ops);
+        } else {
+            //a bulk edit reaches the listener as a single change
+            octree.beginBatch();
+            try{
+                for(EditOperation op : ops){
+                    op.apply(octree);
+                }
+            } finally {
+                octree.endBatch();
+            }
+        }
+    }
+
+    public void undo(){
+        if(isConnected()){
+            System.out.println("Can't undo while connected to a server");
+            return;
+        }
+        EditOperation[] ops = journal.undo();
+        if(ops == null){
+            System.out.println("Nothing to undo");
+            return;
+        }
+        sendEdits(ops);
+        onRefreshSelection();
+    }
+    
+    public void redo(){
+        if(isConnected()){
+            System.out.println("Can't redo while connected to a server");
+            return;
+        }
+        EditOperation[] ops = journal.redo();
+        if(ops == null){
+            System.out.println("Nothing to redo");
+            return;
+        }
+        sendEdits(ops);
+        onRefreshSelection();
+    }
+    
+    /**
+     * Counts the leaves of each material, walking the tree in parallel
+     * @return the number of leaves by material id, sorted by id
+     */
+    public Map<Integer, Long> countLeavesByMaterial(){
+        return octree.readLocked(new OctreeReader<Map<Integer, Long>>() {
+            @Override
+            public Map<Integer, Long> read(Octree tree) {
+                return tree.leaves().parallel().collect(Collectors.groupingBy(new Function<Octant, Integer>() {
+                    @Override
+                    public Integer apply(Octant o) {
+                        return o.getMaterialType();
+                    }
+                }, new Supplier<Map<Integer, Long>>() {
+                    @Override
+                    public Map<Integer, Long> get() {
+                        return new TreeMap<Integer, Long>();
+                    }
+                }, Collectors.counting()));
+            }
+        });
+    }
+    
+    /**
+     * Saves the editing session, to be replayed by JournalReplay
+     * @param path
+     * @throws IOException 
+     */
+    public void saveJournal(String path) throws IOException {
+        journal.save(octree, new File(path));
+    }
 
     public void onSubdivideOctantRequest() {
         Geometry g = sm.getState(SelectionManager.class).getObjectUnderCursor();
-        Octant o = g.getUserData("Octant");
-        o.subdivide();
+        Octant o = g != null ? g.<Octant>getUserData("Octant") : null; //the instanced octants are picked without geometries
+        if(o != null){
+            submitEdits(EditOperation.subdivide(LocationalCode.of(o)));
+        }
     }
 
     public void onDeleteOctantRequest() {
         Octinfo selInfo = sm.getState(SelectionManager.class).getLastSelectionOctinfo();
-        Octant octant = octree.getOctant(selInfo);
-
-        //If the Octant is small and does not exist yet, we create its tree
-        if (octant == null) {
-            octant = octree.createOctant(selInfo);
-        }
-        
-        octree.deleteOctant(octant);
+        submitEdits(EditOperation.delete(LocationalCode.of(octree, selInfo)));
         onRefreshSelection();
     }
 
@@ -99,18 +299,24 @@ public class Engine extends AbstractAppState {
     /**
      * Apply the given material to the current selection.
      * If nothing is selected, just change the current material.
+     * Selected nodes that have children get their solid leaves painted.
      * @param meterialId the material Id
      */
     public void setMaterial(int meterialId){
         sm.getState(Materials.class).setCurrentMaterialId(meterialId);
-        List<Octinfo> ois = sm.getState(SelectionManager.class).selectionBoxesOctinfos();
-        for(Octinfo oi : ois){
-            Octant o = octree.getOctant(oi);
-            if(o!=null)
-                o.setMaterialType(meterialId);
-            else
-                System.out.println("Can't apply material, non existent octant for " + oi);
+        byte step = sm.getState(SelectionManager.class).getStep();
+        List<EditOperation> ops = new ArrayList<EditOperation>();
+        for(long code : sm.getState(SelectionManager.class).getSelection()){
+            Octant o = octree.getOctant(code);
+            if(o != null && o.hasChildren()){
+                Vector3f min = o.getOrigin().subtract(o.getEdgeSize() / 2f, o.getEdgeSize() / 2f, o.getEdgeSize() / 2f);
+                Vector3f max = min.add(o.getEdgeSize(), o.getEdgeSize(), o.getEdgeSize());
+                ops.add(EditOperation.box(EditOperation.PAINT_BOX, min, max, (byte)Math.max(step, o.getDepth()), meterialId));
+            } else {
+                ops.add(EditOperation.setMaterial(code, meterialId));
+            }
         }
+        submitEdits(ops.toArray(new EditOperation[ops.size()]));
     }
 
     public void onExtrudeOctantRequest() {
@@ -120,12 +326,172 @@ public class Engine extends AbstractAppState {
         Vector3f position = oi.origin().add(cs.getContactNormal().mult(oi.size));
         Octinfo o = new Octinfo(position, oi.size, oi.depth);
         
+        if(!octree.isPositionValid(position)){
+            System.out.println("Cannot extrude outside root bounds");
+            return;
+        }
+        
         //Create the octant and set its material
-        Octant newOctant = octree.createOctant(o);
-        if(newOctant!=null){
-            newOctant.setMaterialType(sm.getState(Materials.class).getCurrentMaterialId());
+        submitEdits(EditOperation.create(LocationalCode.of(octree, o), sm.getState(Materials.class).getCurrentMaterialId()));
+        
+        onRefreshSelection();
+    }
+
+    /**
+     * Fills a box with the current material, down to the current step
+     * @param min
+     * @param max 
+     */
+    public void fillBox(Vector3f min, Vector3f max){
+        byte step = sm.getState(SelectionManager.class).getStep();
+        int material = sm.getState(Materials.class).getCurrentMaterialId();
+        submitEdits(EditOperation.box(EditOperation.FILL_BOX, min, max, step, material));
+        onRefreshSelection();
+    }
+    
+    public void clearBox(Vector3f min, Vector3f max){
+        byte step = sm.getState(SelectionManager.class).getStep();
+        submitEdits(EditOperation.box(EditOperation.CLEAR_BOX, min, max, step, Materials.MAT_AIR));
+        onRefreshSelection();
+    }
+    
+    public void paintBox(Vector3f min, Vector3f max){
+        byte step = sm.getState(SelectionManager.class).getStep();
+        int material = sm.getState(Materials.class).getCurrentMaterialId();
+        submitEdits(EditOperation.box(EditOperation.PAINT_BOX, min, max, step, material));
+        onRefreshSelection();
+    }
+
+    /**
+     * Adds to the selection the solid octants inside a box, at the current step
+     * @param min
+     * @param max 
+     */
+    public void selectBox(Vector3f min, Vector3f max){
+        select(OctreeQuery.box(min, max));
+    }
+    
+    /**
+     * Adds to the selection the solid octants inside a sphere, at the current step
+     * @param center
+     * @param radius 
+     */
+    public void selectSphere(Vector3f center, float radius){
+        select(OctreeQuery.sphere(center, radius));
+    }
+    
+    /**
+     * Marquee selection: adds to the selection the solid octants seen through
+     * a rectangle of the screen, at the current step
+     * @param x1 screen coordinates of a corner, in pixels
+     * @param y1
+     * @param x2 screen coordinates of the opposite corner, in pixels
+     * @param y2 
+     */
+    public void selectScreen(float x1, float y1, float x2, float y2){
+        if(x1 == x2 || y1 == y2){
+            System.out.println("Empty selection rectangle");
+            return;
         }
+        Camera cam = app.getCamera();
+        float[] xs = {Math.min(x1, x2), Math.max(x1, x2), Math.max(x1, x2), Math.min(x1, x2)};
+        float[] ys = {Math.min(y1, y2), Math.min(y1, y2), Math.max(y1, y2), Math.max(y1, y2)};
+        Vector3f[] near = new Vector3f[4];
+        Vector3f[] far = new Vector3f[4];
+        Vector3f center = new Vector3f();
+        for(int i = 0; i < 4; i++){
+            near[i] = cam.getWorldCoordinates(new Vector2f(xs[i], ys[i]), 0f);
+            far[i] = cam.getWorldCoordinates(new Vector2f(xs[i], ys[i]), 1f);
+            center.addLocal(near[i]).addLocal(far[i]);
+        }
+        center.divideLocal(8f);
         
+        //the four sides of the rectangle, plus the near and far planes
+        Vector3f[][] planes = new Vector3f[6][];
+        for(int i = 0; i < 4; i++){
+            planes[i] = new Vector3f[]{near[i], near[(i + 1) % 4], far[i]};
+        }
+        planes[4] = new Vector3f[]{near[0], near[1], near[2]};
+        planes[5] = new Vector3f[]{far[0], far[1], far[2]};
+        
+        Vector3f[] normals = new Vector3f[6];
+        float[] d = new float[6];
+        for(int i = 0; i < 6; i++){
+            Vector3f[] p = planes[i];
+            Vector3f n = p[1].subtract(p[0]).crossLocal(p[2].subtract(p[0])).normalizeLocal();
+            //point the normal towards the inside of the volume
+            if(n.dot(center.subtract(p[0])) < 0){
+                n.negateLocal();
+            }
+            normals[i] = n;
+            d[i] = -n.dot(p[0]);
+        }
+        select(OctreeQuery.convex(normals, d));
+    }
+    
+    private void select(final OctreeQuery.Volume volume){
+        final SelectionManager selectionManager = sm.getState(SelectionManager.class);
+        final byte step = selectionManager.getStep();
+        long[] codes = octree.readLocked(new OctreeReader<long[]>() {
+            @Override
+            public long[] read(Octree tree) {
+                return OctreeQuery.select(tree, volume, step);
+            }
+        });
+        for(long code : codes){
+            selectionManager.selectionBoxesAdd(code);
+        }
+        System.out.println("Selected " + codes.length + " octants");
+    }
+
+    /**
+     * Voxelizes a model into the octree, down to the current step. Geometries
+     * get the current material.
+     * The import is not replicated, so it is refused while connected to a
+     * server: the local octree would no longer match the server one.
+     * @param path the asset path of the model
+     */
+    public void importModel(String path){
+        if(isConnected()){
+            System.out.println("Can't import models while connected to a server");
+            return;
+        }
+        Spatial model = app.getAssetManager().loadModel(path);
+        model.updateGeometricState();
+        MeshVoxelizer voxelizer = new MeshVoxelizer(sm.getState(SelectionManager.class).getStep());
+        voxelizer.setDefaultMaterial(sm.getState(Materials.class).getCurrentMaterialId());
+        voxelizer.addSpatial(model);
+        journal.beginChange(octree, LocationalCode.ROOT);
+        voxelizer.voxelize(octree);
+        journal.endChange(octree);
+        onRefreshSelection();
+    }
+
+    /**
+     * Replaces the octree with a noise terrain, down to the current step and
+     * with the current material.
+     * Like imports, the terrain only changes the local octree and is refused
+     * while connected to a server.
+     * @param seed 
+     */
+    public void generateTerrain(long seed){
+        if(isConnected()){
+            System.out.println("Can't generate terrains while connected to a server");
+            return;
+        }
+        final SimplexNoise noise = new SimplexNoise(seed);
+        final float size = octree.getRoot().getEdgeSize();
+        final float y = octree.getRoot().getOrigin().y;
+        TerrainGenerator generator = TerrainGenerator.fromHeightmap(new TerrainGenerator.Heightmap() {
+            @Override
+            public float height(float x, float z) {
+                return y + noise.fractal(x * 2f / size, z * 2f / size, 5) * size / 4f;
+            }
+        }, sm.getState(SelectionManager.class).getStep());
+        generator.setMaterial(sm.getState(Materials.class).getCurrentMaterialId());
+        journal.beginChange(octree, LocationalCode.ROOT);
+        generator.generate(octree);
+        journal.endChange(octree);
         onRefreshSelection();
     }
 
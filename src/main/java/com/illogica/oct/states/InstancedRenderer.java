@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.states;
+
+import com.illogica.oct.octree.LocationalCode;
+import com.illogica.oct.octree.Octant;
+import com.illogica.oct.octree.Octree;
+import com.illogica.oct.octree.OctreeListener;
+import com.illogica.oct.octree.OctreeTraversal;
+import com.jme3.collision.CollisionResult;
+import com.jme3.collision.CollisionResults;
+import com.jme3.material.Material;
+import com.jme3.math.Ray;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.instancing.InstancedGeometry;
+import com.jme3.scene.shape.Box;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Draws every solid leaf as an instance of a single unit cube, one
+ * InstancedGeometry per material. An edit adds or removes a single instance
+ * instead of rebuilding the meshes, which is faster for sparse scenes with
+ * many isolated octants. Dense scenes are better served by the Renderer.
+ * 
+ * The position and the edge size of an octant are the translation and the
+ * scale of its instance. The geometries of the instances are not part of the
+ * scene graph, so the octants are picked by casting a ray through the tree.
+ * @author Loris
+ */
+public class InstancedRenderer implements OctreeListener {
+    
+    private static final int INITIAL_INSTANCES = 1024;
+    
+    private final Materials materials;
+    private final Node node = new Node("instanced octants");
+    private final Mesh cube = new Box(0.5f, 0.5f, 0.5f);
+    private final Map<Integer, InstancedGeometry> batches = new HashMap<Integer, InstancedGeometry>();
+    //by locational code, so the instances of a subtree are a few ranges
+    private final NavigableMap<Long, Instance> instances = new TreeMap<Long, Instance>();
+    private final Set<InstancedGeometry> changed = new HashSet<InstancedGeometry>();
+    private final OctreeTraversal traversal = new OctreeTraversal();
+    private Octree octree;
+    private long syncedVersion; //tree version of the last sync
+    
+    public InstancedRenderer(Materials materials){
+        this.materials = materials;
+    }
+    
+    /**
+     * @return the node holding the instanced geometries, to be attached to the
+     * scene
+     */
+    public Node getNode(){
+        return node;
+    }
+    
+    /**
+     * Finds the first solid leaf hit by a ray, walking the tree and entering
+     * the children in the order the ray meets them
+     * @param ray
+     * @param results receives the contact point and normal of the hit, if any
+     */
+    public void pick(Ray ray, CollisionResults results){
+        if(octree == null){
+            return;
+        }
+        Vector3f dir = ray.getDirection();
+        float inv[] = {1f / dir.x, 1f / dir.y, 1f / dir.z};
+        float origin[] = {ray.getOrigin().x, ray.getOrigin().y, ray.getOrigin().z};
+        Octant root = octree.getRoot();
+        if(enter(root, origin, inv) == Float.POSITIVE_INFINITY){
+            return;
+        }
+        Octant leaf = pick(root, origin, inv);
+        if(leaf == null){
+            return;
+        }
+        
+        //the face the ray enters the leaf from
+        float t = enter(leaf, origin, inv);
+        Vector3f c = leaf.getOrigin();
+        float h = leaf.getEdgeSize() / 2f;
+        float center[] = {c.x, c.y, c.z};
+        int axis = 0;
+        float best = Float.NEGATIVE_INFINITY;
+        for(int k=0; k<3; k++){
+            float near = Math.min((center[k] - h - origin[k]) * inv[k], (center[k] + h - origin[k]) * inv[k]);
+            if(near > best){
+                best = near;
+                axis = k;
+            }
+        }
+        Vector3f normal = new Vector3f();
+        normal.set(axis, inv[axis] > 0f ? -1f : 1f);
+        CollisionResult result = new CollisionResult(ray.getOrigin().add(dir.mult(t)), t);
+        result.setContactNormal(normal);
+        results.addCollision(result);
+    }
+    
+    private static Octant pick(Octant o, float origin[], float inv[]){
+        if(!o.hasChildren()){
+            return o.getMaterialType() != Materials.MAT_AIR ? o : null;
+        }
+        //the children hit by the ray, nearest first
+        Octant children[] = o.getChildren();
+        Octant hit[] = new Octant[8];
+        float t[] = new float[8];
+        int n = 0;
+        for(Octant child : children){
+            float enter = enter(child, origin, inv);
+            if(enter == Float.POSITIVE_INFINITY){
+                continue;
+            }
+            int j = n++;
+            for(; j > 0 && t[j - 1] > enter; j--){
+                t[j] = t[j - 1];
+                hit[j] = hit[j - 1];
+            }
+            t[j] = enter;
+            hit[j] = child;
+        }
+        for(int i=0; i<n; i++){
+            Octant leaf = pick(hit[i], origin, inv);
+            if(leaf != null){
+                return leaf;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Slab test
+     * @return the distance where the ray enters the octant, 0 if it starts
+     * inside, infinity if it misses it
+     */
+    private static float enter(Octant o, float origin[], float inv[]){
+        Vector3f c = o.getOrigin();
+        float h = o.getEdgeSize() / 2f;
+        float center[] = {c.x, c.y, c.z};
+        float tNear = 0f;
+        float tFar = Float.POSITIVE_INFINITY;
+        for(int k=0; k<3; k++){
+            float t1 = (center[k] - h - origin[k]) * inv[k];
+            float t2 = (center[k] + h - origin[k]) * inv[k];
+            tNear = Math.max(tNear, Math.min(t1, t2));
+            tFar = Math.min(tFar, Math.max(t1, t2));
+        }
+        return tNear <= tFar ? tNear : Float.POSITIVE_INFINITY;
+    }
+    
+    /**
+     * Uploads the instances of the materials that changed since the last
+     * call. Called once per frame.
+     */
+    public void update(){
+        if(changed.isEmpty()){
+            return;
+        }
+        for(InstancedGeometry ig : changed){
+            ig.updateInstances();
+        }
+        changed.clear();
+    }
+    
+    @Override
+    public void setOctree(Octree tree) {
+        this.octree = tree;
+        rebuild();
+    }
+    
+    @Override
+    public void onOctantGenerated(Octant o) {
+        sync(o);
+    }
+    
+    @Override
+    public void onOctantDeleted(Octant o) {
+        long code = LocationalCode.of(o);
+        Instance i = instances.get(code);
+        if(i != null && i.octant == o){
+            remove(code);
+        }
+    }
+    
+    @Override
+    public void onOctantMaterialChanged(Octant o) {
+        sync(o);
+    }
+    
+    /**
+     * Syncs the subtrees changed by a batch, see Octree.getChangedSince()
+     * @param subtree 
+     */
+    @Override
+    public void onOctreeChanged(Octant subtree) {
+        List<Octant> changedOctants = octree.getChangedSince(syncedVersion);
+        syncedVersion = octree.getVersion();
+        Set<Octant> synced = Collections.newSetFromMap(new IdentityHashMap<Octant, Boolean>());
+        for(Octant o : changedOctants){
+            synced.add(o);
+            if(hasSyncedAncestor(o, synced)){
+                continue;
+            }
+            syncSubtree(o);
+        }
+    }
+    
+    private static boolean hasSyncedAncestor(Octant o, Set<Octant> synced){
+        for(Octant p = o.getParent(); p != null; p = p.getParent()){
+            if(synced.contains(p)){
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Removes the instances of the old subtree that are gone or changed, then
+     * adds the missing ones
+     */
+    private void syncSubtree(Octant o){
+        long code = LocationalCode.of(o);
+        for(int k=0; k <= LocationalCode.MAX_DEPTH - o.getDepth(); k++){
+            long first = code << (3 * k);
+            long last = first | ((1L << (3 * k)) - 1);
+            Iterator<Map.Entry<Long, Instance>> it = instances.subMap(first, true, last, true).entrySet().iterator();
+            while(it.hasNext()){
+                Map.Entry<Long, Instance> e = it.next();
+                Instance i = e.getValue();
+                if(octree.getOctant(e.getKey()) != i.octant || i.octant.hasChildren() || i.octant.getMaterialType() != i.material){
+                    detach(i);
+                    it.remove();
+                }
+            }
+        }
+        traversal.reset(o, OctreeTraversal.LEAVES, OctreeTraversal.SOLID);
+        while(traversal.hasNext()){
+            sync(traversal.next());
+        }
+    }
+    
+    private void rebuild(){
+        node.detachAllChildren();
+        batches.clear();
+        instances.clear();
+        changed.clear();
+        if(octree != null){
+            syncedVersion = octree.getVersion();
+            traversal.reset(octree.getRoot(), OctreeTraversal.LEAVES, OctreeTraversal.SOLID);
+            while(traversal.hasNext()){
+                Octant o = traversal.next();
+                add(o, LocationalCode.of(o), o.getMaterialType());
+            }
+        }
+    }
+    
+    /**
+     * Moves the instance of an octant to the batch of its current material
+     */
+    private void sync(Octant o){
+        long code = LocationalCode.of(o);
+        int material = o.hasChildren() ? Materials.MAT_AIR : o.getMaterialType();
+        Instance i = instances.get(code);
+        if(i != null){
+            if(i.octant == o && i.material == material){
+                return;
+            }
+            remove(code);
+        }
+        if(material != Materials.MAT_AIR){
+            add(o, code, material);
+        }
+    }
+    
+    private void add(Octant o, long code, int material){
+        InstancedGeometry ig = getBatch(material);
+        if(ig == null){
+            return;
+        }
+        if(ig.getNumInstances() >= ig.getMaxNumInstances()){
+            ig.setMaxNumInstances(ig.getMaxNumInstances() * 2);
+        }
+        Geometry g = new Geometry("Octant " + o.getId(), cube);
+        g.setMaterial(ig.getMaterial());
+        g.setLocalTranslation(o.getOrigin());
+        g.setLocalScale(o.getEdgeSize());
+        g.updateGeometricState(); //the instance reads its world transform
+        ig.addInstance(g);
+        instances.put(code, new Instance(o, g, material));
+        changed.add(ig);
+    }
+    
+    private void remove(long code){
+        Instance i = instances.remove(code);
+        if(i != null){
+            detach(i);
+        }
+    }
+    
+    private void detach(Instance i){
+        InstancedGeometry ig = batches.get(i.material);
+        ig.deleteInstance(i.geometry);
+        changed.add(ig);
+    }
+    
+    /**
+     * @return the instanced geometry drawing a material, null if the material
+     * can't be instanced
+     */
+    private InstancedGeometry getBatch(int material){
+        if(batches.containsKey(material)){
+            return batches.get(material);
+        }
+        InstancedGeometry ig = null;
+        Material m = materials.getMaterial(material);
+        if(m != null && m.getMaterialDef().getMaterialParam("UseInstancing") != null){
+            m = m.clone();
+            m.setBoolean("UseInstancing", true);
+            ig = new InstancedGeometry("Instanced " + material);
+            ig.setMesh(cube);
+            ig.setMaterial(m);
+            ig.setMaxNumInstances(INITIAL_INSTANCES);
+            ig.setCullHint(Spatial.CullHint.Never); //the bound is the one of a single cube
+            node.attachChild(ig);
+        } else {
+            System.out.println("InstancedRenderer: material " + material + " can't be instanced");
+        }
+        batches.put(material, ig);
+        return ig;
+    }
+    
+    private static class Instance {
+        final Octant octant;
+        final Geometry geometry;
+        final int material;
+        
+        Instance(Octant octant, Geometry geometry, int material){
+            this.octant = octant;
+            this.geometry = geometry;
+            this.material = material;
+        }
+    }
+}
@@ -65,7 +65,17 @@ public class Lighting extends AbstractAppState {
         ambient = new AmbientLight();
         ambient.setColor(ColorRGBA.White);
         this.app.getRootNode().addLight(ambient); 
-        
-        
+    }
+    
+    /**
+     * The sun can be turned off when the lighting is baked into the meshes,
+     * the ambient light alone shows the materials as they are.
+     * @param enabled 
+     */
+    public void setDynamicLights(boolean enabled){
+        this.app.getRootNode().removeLight(sun);
+        if(enabled){
+            this.app.getRootNode().addLight(sun);
+        }
     }
 }
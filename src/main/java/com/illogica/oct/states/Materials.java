@@ -29,10 +29,13 @@ import com.jme3.app.Application;
 import com.jme3.app.SimpleApplication;
 import com.jme3.app.state.AbstractAppState;
 import com.jme3.app.state.AppStateManager;
+import com.jme3.material.MatParam;
 import com.jme3.material.Material;
 import com.jme3.material.RenderState;
 import com.jme3.math.ColorRGBA;
 import com.jme3.texture.Texture;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  *
@@ -104,6 +107,9 @@ public class Materials extends AbstractAppState {
     private SimpleApplication app;
 
     private int currentMaterialId;
+    
+    //copies of the materials reading the vertex colors, by material id
+    private final Map<Integer, Material> vertexColorMaterials = new HashMap<Integer, Material>();
 
     @Override
     public void initialize(AppStateManager stateManager, Application app) {
@@ -224,6 +230,23 @@ public class Materials extends AbstractAppState {
         stateManager.getState(Hud.class).resetTemplateMaterial();
     }
 
+    /**
+     * @param id
+     * @return the flat color of a material, for renderers that can't use the
+     * jME Material, like the raymarched view
+     */
+    public ColorRGBA getColor(int id){
+        Material m = getMaterial(id);
+        if(m == null){
+            return ColorRGBA.BlackNoAlpha;
+        }
+        MatParam p = m.getParam("Color");
+        if(p == null){
+            p = m.getParam("Diffuse");
+        }
+        return p != null ? (ColorRGBA) p.getValue() : ColorRGBA.Gray;
+    }
+
     public Material getMaterial(int id) {
 
         switch (id) {
@@ -251,4 +274,29 @@ public class Materials extends AbstractAppState {
             default: return matDebug;
         }
     }
+    
+    /**
+     * @param id
+     * @return a copy of a material multiplied by the vertex colors of the
+     * mesh, like the baked lighting of the octree meshes. The material itself
+     * if its definition has no vertex colors.
+     */
+    public Material getVertexColorMaterial(int id) {
+        Material m = vertexColorMaterials.get(id);
+        if (m == null) {
+            m = getMaterial(id);
+            if (m == null) {
+                return null;
+            }
+            if (m.getMaterialDef().getMaterialParam("VertexColor") != null) {
+                m = m.clone();
+                m.setBoolean("VertexColor", true); //Unshaded
+            } else if (m.getMaterialDef().getMaterialParam("UseVertexColor") != null) {
+                m = m.clone();
+                m.setBoolean("UseVertexColor", true); //Lighting
+            }
+            vertexColorMaterials.put(id, m);
+        }
+        return m;
+    }
 }
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2016, Illogica - Loris Pederiva
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.illogica.oct.states;
+
+import com.illogica.oct.octree.LocationalCode;
+import com.illogica.oct.octree.Octant;
+import com.illogica.oct.octree.Octree;
+import com.illogica.oct.octree.OctreeReader;
+import com.illogica.oct.octree.OctreeTraversal;
+import com.jme3.app.Application;
+import com.jme3.app.state.AbstractAppState;
+import com.jme3.app.state.AppStateManager;
+import com.jme3.bullet.BulletAppState;
+import com.jme3.bullet.PhysicsSpace;
+import com.jme3.bullet.collision.shapes.BoxCollisionShape;
+import com.jme3.bullet.collision.shapes.CompoundCollisionShape;
+import com.jme3.bullet.objects.PhysicsBody;
+import com.jme3.bullet.objects.PhysicsRigidBody;
+import com.jme3.math.Vector3f;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Static Minie collision shapes for the octree. The tree is split in chunks,
+ * the octants at CHUNK_DEPTH, and every chunk is a rigid body with a compound
+ * shape made of one box per solid leaf.
+ * 
+ * Only the chunks whose subtree stamp changed are rebuilt. The boxes are
+ * collected under the read lock and the shapes are built on a background
+ * thread, so an edit never stalls the physics; the bodies are swapped on the
+ * render thread when they are ready.
+ * @author Loris
+ */
+public class OctreePhysics extends AbstractAppState {
+    
+    public static final int CHUNK_DEPTH = 3;
+    
+    private AppStateManager stateManager;
+    private BulletAppState bulletAppState;
+    private boolean ownsBulletAppState;
+    private boolean debug;
+    private final Map<Long, Chunk> chunks = new HashMap<Long, Chunk>();
+    private final ConcurrentLinkedQueue<Result> results = new ConcurrentLinkedQueue<Result>();
+    private final OctreeTraversal traversal = new OctreeTraversal(); //used by the builder thread only
+    private ExecutorService builder;
+    
+    @Override
+    public void initialize(AppStateManager stateManager, Application app) {
+        super.initialize(stateManager, app);
+        this.stateManager = stateManager;
+        bulletAppState = stateManager.getState(BulletAppState.class);
+        if(bulletAppState == null){
+            bulletAppState = new BulletAppState();
+            stateManager.attach(bulletAppState);
+            ownsBulletAppState = true;
+        }
+        bulletAppState.setDebugEnabled(debug);
+        builder = Executors.newSingleThreadExecutor();
+    }
+    
+    public PhysicsSpace getPhysicsSpace(){
+        return bulletAppState.getPhysicsSpace();
+    }
+    
+    /**
+     * Shows the collision shapes
+     * @param debug 
+     */
+    public void setDebugEnabled(boolean debug){
+        this.debug = debug;
+        if(bulletAppState != null){
+            bulletAppState.setDebugEnabled(debug);
+        }
+    }
+    
+    @Override
+    public void update(float tpf) {
+        PhysicsSpace space = bulletAppState.getPhysicsSpace();
+        if(space == null){
+            return; //the BulletAppState starts in its own update
+        }
+        
+        //swap the bodies that are ready
+        Result r;
+        while((r = results.poll()) != null){
+            Chunk c = chunks.get(r.code);
+            if(c == null || !c.building || c.requested != r.stamp){
+                continue; //removed meanwhile
+            }
+            c.building = false;
+            c.builtStamp = r.stamp;
+            if(r.failed){
+                continue; //keep the old body, retried when the chunk changes again
+            }
+            if(c.body != null){
+                space.removeCollisionObject(c.body);
+                c.body = null;
+            }
+            if(r.shape != null){
+                c.body = new PhysicsRigidBody(r.shape, PhysicsBody.massForStatic);
+                space.addCollisionObject(c.body);
+            }
+        }
+        
+        Octree octree = stateManager.getState(Engine.class).getOctree();
+        if(octree == null){
+            return;
+        }
+        Set<Long> alive = new HashSet<Long>();
+        updateChunks(octree, octree.getRoot(), LocationalCode.ROOT, alive);
+        
+        Iterator<Map.Entry<Long, Chunk>> it = chunks.entrySet().iterator();
+        while(it.hasNext()){
+            Chunk c = it.next().getValue();
+            if(!alive.contains(c.code)){
+                if(c.body != null){
+                    space.removeCollisionObject(c.body);
+                }
+                it.remove();
+            }
+        }
+    }
+    
+    private void updateChunks(Octree octree, Octant o, long code, Set<Long> alive){
+        if(o.getDepth() < CHUNK_DEPTH && o.hasChildren()){
+            Octant children[] = o.getChildren();
+            for(int i=0; i<8; i++){
+                updateChunks(octree, children[i], LocationalCode.child(code, i), alive);
+            }
+            return;
+        }
+        alive.add(code);
+        Chunk c = chunks.get(code);
+        if(c == null){
+            c = new Chunk(code);
+            chunks.put(code, c);
+        }
+        if(c.building){
+            return; //checked again when the running build is done
+        }
+        if(c.octant != o || o.getSubtreeStamp() > c.builtStamp){
+            c.octant = o;
+            c.building = true;
+            c.requested = octree.getVersion();
+            builder.execute(new BuildTask(octree, code, c.requested));
+        }
+    }
+    
+    @Override
+    public void cleanup() {
+        super.cleanup();
+        builder.shutdownNow();
+        PhysicsSpace space = bulletAppState.getPhysicsSpace();
+        for(Chunk c : chunks.values()){
+            if(c.body != null && space != null){
+                space.removeCollisionObject(c.body);
+            }
+        }
+        chunks.clear();
+        results.clear();
+        if(ownsBulletAppState){
+            stateManager.detach(bulletAppState);
+        }
+    }
+    
+    private static class Chunk {
+        final long code;
+        Octant octant;
+        long builtStamp = -1;
+        boolean building;
+        long requested; //the tree version when the build started
+        PhysicsRigidBody body;
+        
+        Chunk(long code){
+            this.code = code;
+        }
+    }
+    
+    private static class Result {
+        final long code;
+        final long stamp;
+        final CompoundCollisionShape shape; //null for empty chunks
+        final boolean failed; //the build threw, there's no shape
+        
+        Result(long code, long stamp, CompoundCollisionShape shape, boolean failed){
+            this.code = code;
+            this.stamp = stamp;
+            this.shape = shape;
+            this.failed = failed;
+        }
+    }
+    
+    private class BuildTask implements Runnable {
+        
+        private final Octree octree;
+        private final long code;
+        private final long stamp;
+        
+        BuildTask(Octree octree, long code, long stamp){
+            this.octree = octree;
+            this.code = code;
+            this.stamp = stamp;
+        }
+        
+        /**
+         * Always posts a Result, even if the build throws, or the chunk
+         * would stay building forever
+         */
+        @Override
+        public void run() {
+            CompoundCollisionShape shape = null;
+            boolean failed = true;
+            try {
+                shape = build();
+                failed = false;
+            } catch (RuntimeException ex){
+                Logger.getLogger(OctreePhysics.class.getName()).log(Level.SEVERE, "Can't build the collision shape of chunk " + Long.toOctalString(code), ex);
+            } finally {
+                results.add(new Result(code, stamp, shape, failed));
+            }
+        }
+        
+        private CompoundCollisionShape build() {
+            //origin x, y, z and edge size of the solid leaves
+            final List<float[]> boxes = octree.readLocked(new OctreeReader<List<float[]>>() {
+                @Override
+                public List<float[]> read(Octree tree) {
+                    List<float[]> l = new ArrayList<float[]>();
+                    Octant o = tree.getOctant(code);
+                    if(o != null){
+                        traversal.reset(o, OctreeTraversal.LEAVES, OctreeTraversal.SOLID);
+                        while(traversal.hasNext()){
+                            Octant leaf = traversal.next();
+                            Vector3f origin = leaf.getOrigin();
+                            l.add(new float[]{origin.x, origin.y, origin.z, leaf.getEdgeSize()});
+                        }
+                    }
+                    return l;
+                }
+            });
+            
+            CompoundCollisionShape shape = null;
+            if(!boxes.isEmpty()){
+                shape = new CompoundCollisionShape(boxes.size());
+                Map<Float, BoxCollisionShape> shared = new HashMap<Float, BoxCollisionShape>();
+                for(float b[] : boxes){
+                    BoxCollisionShape box = shared.get(b[3]);
+                    if(box == null){
+                        box = new BoxCollisionShape(b[3] / 2f);
+                        shared.put(b[3], box);
+                    }
+                    shape.addChildShape(box, b[0], b[1], b[2]);
+                }
+            }
+            return shape;
+        }
+    }
+}
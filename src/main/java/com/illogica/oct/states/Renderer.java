@@ -26,32 +26,49 @@
 package com.illogica.oct.states;
 
 import com.illogica.oct.engine.GeometryGenerators;
+import com.illogica.oct.engine.OcclusionBuffer;
+import com.illogica.oct.engine.SvoGeometry;
+import com.illogica.oct.octree.AmbientOcclusion;
+import com.illogica.oct.octree.LocationalCode;
 import com.illogica.oct.octree.Octant;
 import com.illogica.oct.octree.Octinfo;
 import com.illogica.oct.octree.Octree;
 import com.illogica.oct.octree.OctreeListener;
+import com.illogica.oct.octree.OctreeTraversal;
+import com.illogica.oct.octree.SparseVoxelOctree;
+import com.illogica.oct.octree.VoxelLighting;
 import com.jme3.app.Application;
 import com.jme3.app.SimpleApplication;
 import com.jme3.app.state.AbstractAppState;
 import com.jme3.app.state.AppStateManager;
+import com.jme3.bounding.BoundingBox;
 import com.jme3.collision.CollisionResult;
 import com.jme3.collision.CollisionResults;
 import com.jme3.math.ColorRGBA;
+import com.jme3.math.FastMath;
 import com.jme3.math.Ray;
 import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Mesh;
 import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
 import com.jme3.scene.VertexBuffer;
 import com.jme3.scene.debug.Arrow;
 import com.jme3.util.BufferUtils;
 import com.jme3.util.TangentBinormalGenerator;
 import java.nio.FloatBuffer;
-import java.nio.ShortBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Takes an Octree and a SimpleApplication and attaches the visible Octree cubes
@@ -69,11 +86,36 @@ public class Renderer extends AbstractAppState implements OctreeListener{
     Arrow arrow; //TODO: MOVE ARROW TO THE SELECTION CONTROL
     Geometry arrowGeometry;
     
-    Map<Integer, List<Octant>> nodes; //visible octants subdivided by material
+    //The octree is meshed in regions, the octants at REGION_DEPTH. A region
+    //is rebuilt when its subtree stamp changes or when the camera moves to
+    //another level of detail.
+    public static final int REGION_DEPTH = 2;
+    private final Map<Long, Region> regions = new HashMap<Long, Region>();
+    private float lodThreshold = 0.004f;
+    private Geometry svoGeometry; //the raymarched view, null when off
+    private long svoVersion;
+    private long seenVersion; //tree version of the last invalidateAmbientOcclusion()
+    private final OctreeTraversal aoTraversal = new OctreeTraversal();
+    private final AoReach aoReach = new AoReach();
+    private VoxelLighting voxelLighting; //null when only the jME lights are used
+    private InstancedRenderer instancedRenderer; //null when the regions are meshed
+    
+    //Culling of the region meshes against the frustum and the big octants
+    //close to the camera
+    private static final float OCCLUDER_ANGLE = 0.05f; //radians
+    private static final int MAX_OCCLUDERS = 256;
+    private boolean culling = true;
+    private final OcclusionBuffer occlusionBuffer = new OcclusionBuffer(128, 72);
+    private final BoundingBox cullBox = new BoundingBox();
+    private final List<Octant> occluders = new ArrayList<Octant>();
+    private final Vector3f cullMin = new Vector3f(), cullMax = new Vector3f();
     
     @Override
     public void setOctree(Octree tree){
         this.octree = tree;
+        if(instancedRenderer != null){
+            instancedRenderer.setOctree(tree);
+        }
     }
 
     @Override
@@ -86,7 +128,6 @@ public class Renderer extends AbstractAppState implements OctreeListener{
         selectionObjectScenegraphRoot = new Node("selection object root node");
         this.app.getRootNode().attachChild(octantsScenegraphRoot);
         this.app.getRootNode().attachChild(selectionObjectScenegraphRoot);
-        this.nodes = new HashMap<Integer, List<Octant>>();
         
         arrow = new Arrow(Vector3f.UNIT_X);
         arrowGeometry = GeometryGenerators.putShape(arrow, ColorRGBA.Green);
@@ -95,51 +136,236 @@ public class Renderer extends AbstractAppState implements OctreeListener{
     
     @Override
     public void update(float tpf){
+        if(instancedRenderer != null){
+            instancedRenderer.update();
+        } else {
+            updateRegions();
+            if(culling && !isRaymarching()){
+                cullRegions();
+            }
+        }
+        updateSvo();
     }
 
+    //The callbacks only mark the regions, they are rebuilt once per frame
+    
     @Override
     public void onOctantGenerated(Octant o) {
-        int mat = o.getMaterialType();
-        if(mat == Materials.MAT_AIR){
-            //do nothing, we don't show air
+        if(instancedRenderer != null){
+            instancedRenderer.onOctantGenerated(o);
+        }
+        markRegion(o);
+    }
+    
+    @Override
+    public void onOctantDeleted(Octant o) {
+        if(instancedRenderer != null){
+            instancedRenderer.onOctantDeleted(o);
+        }
+        markRegion(o);
+    }
+    
+    @Override
+    public void onOctantMaterialChanged(Octant o) {
+        if(instancedRenderer != null){
+            instancedRenderer.onOctantMaterialChanged(o);
+        }
+        markRegion(o);
+    }
+    
+    @Override
+    public void onOctreeChanged(Octant subtree) {
+        //the regions of a batch are found through the subtree stamps
+        if(instancedRenderer != null){
+            instancedRenderer.onOctreeChanged(subtree);
+        }
+    }
+    
+    private void markRegion(Octant o){
+        Region r = regionOf(o);
+        if(r != null){
+            r.dirty = true;
+        }
+    }
+    
+    private Region regionOf(Octant o){
+        while(o.getDepth() > REGION_DEPTH){
+            o = o.getParent();
+        }
+        return regions.get(LocationalCode.of(o));
+    }
+    
+    /**
+     * Octants whose edge seen from the camera is smaller than this angle (in
+     * radians) are merged into their ancestors, so the number of vertices on
+     * screen depends on the view, not on the depth of the tree.
+     * @param lodThreshold the angle, 0 to always draw every leaf
+     */
+    public void setLodThreshold(float lodThreshold){
+        this.lodThreshold = lodThreshold;
+    }
+    
+    /**
+     * Rebuilds the meshes of the regions that changed or need another level
+     * of detail. Called every frame and before picking.
+     */
+    public void updateRegions(){
+        if(octree == null){
+            return;
+        }
+        if(octree.getVersion() > seenVersion){
+            List<Octant> changed = octree.getChangedSince(seenVersion);
+            invalidateAmbientOcclusion(changed);
+            if(voxelLighting != null){
+                invalidateAmbientOcclusion(voxelLighting.update(changed));
+            }
+            seenVersion = octree.getVersion();
+        }
+        Vector3f camera = app.getCamera().getLocation();
+        Set<Long> alive = new HashSet<Long>();
+        updateRegions(octree.getRoot(), LocationalCode.ROOT, camera, alive);
+        
+        //regions merged into a bigger one, or split into smaller ones
+        Iterator<Map.Entry<Long, Region>> it = regions.entrySet().iterator();
+        while(it.hasNext()){
+            Map.Entry<Long, Region> e = it.next();
+            if(!alive.contains(e.getKey())){
+                e.getValue().node.removeFromParent();
+                it.remove();
+            }
+        }
+    }
+    
+    /**
+     * The ambient occlusion of a face depends on the octants around it, so
+     * the octants near the changed ones are baked again, and their regions
+     * rebuilt. The other octants keep their colors.
+     * @param changed the changed octants, parents before their children
+     */
+    private void invalidateAmbientOcclusion(List<Octant> changed){
+        Set<Octant> marked = Collections.newSetFromMap(new IdentityHashMap<Octant, Boolean>());
+        for(Octant o : changed){
+            marked.add(o);
+            if(o.getParent() != null && marked.contains(o.getParent())){
+                continue; //covered by the parent
+            }
+            aoReach.center.set(o.getOrigin());
+            aoReach.half = o.getEdgeSize() / 2f;
+            aoTraversal.walk(octree.getRoot(), OctreeTraversal.PRE_ORDER, aoReach, aoReach);
+        }
+    }
+    
+    private void updateRegions(Octant o, long code, Vector3f camera, Set<Long> alive){
+        if(o.getDepth() < REGION_DEPTH && o.hasChildren()){
+            Octant children[] = o.getChildren();
+            for(int i=0; i<8; i++){
+                updateRegions(children[i], LocationalCode.child(code, i), camera, alive);
+            }
+            return;
+        }
+        
+        alive.add(code);
+        int lod = lodDepth(o, camera);
+        Region r = regions.get(code);
+        if(r == null){
+            r = new Region(new Node("Region " + Long.toOctalString(code)));
+            regions.put(code, r);
+            octantsScenegraphRoot.attachChild(r.node);
+        }
+        if(r.octant != o || r.dirty || o.getSubtreeStamp() > r.builtStamp || r.lodDepth != lod){
+            r.octant = o;
+            r.builtStamp = octree.getVersion();
+            r.lodDepth = lod;
+            r.dirty = false;
+            buildRegion(r);
+        }
+    }
+    
+    /**
+     * @return the depth of the smallest octants to be drawn in a region
+     */
+    private int lodDepth(Octant region, Vector3f camera){
+        if(lodThreshold <= 0f){
+            return LocationalCode.MAX_DEPTH;
+        }
+        float distance = distance(region, camera);
+        
+        //octants at depth k have edge rootSize / 2^k
+        float smallest = lodThreshold * distance;
+        if(smallest <= 0f){
+            return LocationalCode.MAX_DEPTH;
+        }
+        int depth = (int) FastMath.floor(FastMath.log(octree.getRoot().getEdgeSize() / smallest, 2f));
+        return Math.max(region.getDepth(), Math.min(depth, LocationalCode.MAX_DEPTH));
+    }
+    
+    /**
+     * Meshes a region at its level of detail. The meshes use int indices, so
+     * a region keeps its full detail however many octants it has.
+     */
+    private void buildRegion(Region r){
+        Map<Integer, List<Octant>> visible = new HashMap<Integer, List<Octant>>();
+        collectVisibleOctants(r.octant, r.lodDepth, visible);
+        compileMeshes(r.node, visible);
+        r.builtDepth = r.lodDepth;
+    }
+    
+    /**
+     * Collects the solid leaves, grouped by material. Subtrees at maxDepth
+     * are collected as a single octant with their dominant material.
+     */
+    private void collectVisibleOctants(Octant o, int maxDepth, Map<Integer, List<Octant>> visible){
+        int material;
+        if(!o.hasChildren()){
+            material = o.getMaterialType();
+        } else if(o.getDepth() >= maxDepth){
+            material = o.getDominantMaterial();
         } else {
-            
-            //If the material has no associated list, create the list
-            if(nodes.get(mat) == null){
-                nodes.put(mat, new ArrayList<Octant>());
-                System.out.println("Renderer: Created list for material " + mat);
-            }
-            //then add the node to the map;
-            nodes.get(mat).add(o);
-            System.out.println("Renderer: Added octant " + o.getId() + " to list " + mat);
-            
-            compileMeshes();
+            for(Octant c : o.getChildren()){
+                collectVisibleOctants(c, maxDepth, visible);
+            }
+            return;
+        }
+        if(material == Materials.MAT_AIR){
+            return;
         }
+        List<Octant> l = visible.get(material);
+        if(l == null){
+            l = new ArrayList<Octant>();
+            visible.put(material, l);
+        }
+        l.add(o);
     }
     
-    private void compileMeshes(){
-        octantsScenegraphRoot.detachAllChildren();
+    private void compileMeshes(Node parent, Map<Integer, List<Octant>> visible){
+        parent.detachAllChildren();
 
-        for(Integer i: nodes.keySet()){
-            List<Octant> l = nodes.get(i);
-            if(l.isEmpty()) break;
+        for(Integer i: visible.keySet()){
+            List<Octant> l = visible.get(i);
+            if(l.isEmpty()) continue;
             
             FloatBuffer pos = BufferUtils.createFloatBuffer(12*6*l.size());
             FloatBuffer tex = BufferUtils.createFloatBuffer(8*6*l.size());
             FloatBuffer norm = BufferUtils.createFloatBuffer(12*6*l.size());
-            ShortBuffer ind = BufferUtils.createShortBuffer(6*6*l.size());
+            IntBuffer ind = BufferUtils.createIntBuffer(6*6*l.size());
+            FloatBuffer col = BufferUtils.createFloatBuffer(16*6*l.size());
             
             int c = 0;
             for(Octant o: l){
-                o.data.compileArrays();
+                if(o.data.posArray == null){
+                    o.data.compileArrays();
+                }
+                if(!o.data.aoBaked){
+                    AmbientOcclusion.bake(octree, o, voxelLighting != null);
+                    o.data.aoBaked = true;
+                }
                 pos.put(o.data.posArray);
                 tex.put(o.data.texCoordsArray);
                 norm.put(o.data.normArray);
+                col.put(o.data.colorArray);
                 
                 for(int j=0; j<o.data.indArray.length; j++){
-                    short val = o.data.indArray[j];
-                    val += 4*6*c;
-                    ind.put(val);
+                    ind.put(o.data.indArray[j] + 4*6*c);
                 }
                 c++;
             }
@@ -149,49 +375,321 @@ public class Renderer extends AbstractAppState implements OctreeListener{
             mesh.setBuffer(VertexBuffer.Type.TexCoord, 2, tex);
             mesh.setBuffer(VertexBuffer.Type.Normal, 3, norm);
             mesh.setBuffer(VertexBuffer.Type.Index, 3, ind);
+            mesh.setBuffer(VertexBuffer.Type.Color, 4, col);
             TangentBinormalGenerator.generate(mesh);
             mesh.updateBound();
             
             Geometry g = new Geometry("Mesh" + i, mesh);
-            g.setMaterial(stateManager.getState(Materials.class).getMaterial(i));
+            g.setMaterial(stateManager.getState(Materials.class).getVertexColorMaterial(i));
             
-            octantsScenegraphRoot.attachChild(g);
+            parent.attachChild(g);
         }
     }
     
-    @Override
-    public void onOctantDeleted(Octant o) {
-        
-        boolean found = removeOctant(o);
-        if(found){
-            System.out.println("Removed octant " + o.getId() + " from nodes");
+    /**
+     * With voxel lighting, the light flood filled through the air octants is
+     * baked into the meshes and the jME sun is turned off.
+     * @param enabled 
+     */
+    public void setVoxelLighting(boolean enabled){
+        if(enabled == isVoxelLighting() || octree == null){
+            return;
         }
-        compileMeshes();
+        updateRegions(); //the changes so far are seen by the old lighting
+        if(enabled){
+            voxelLighting = new VoxelLighting(octree);
+            voxelLighting.relight();
+        } else {
+            voxelLighting = null;
+        }
+        stateManager.getState(Lighting.class).setDynamicLights(!enabled);
+        //every vertex color changes
+        aoReach.center.set(octree.getRoot().getOrigin());
+        aoReach.half = Float.POSITIVE_INFINITY;
+        aoTraversal.walk(octree.getRoot(), OctreeTraversal.PRE_ORDER, aoReach, aoReach);
     }
     
-    @Override
-    public void onOctantMaterialChanged(Octant o) {
-        
-        //find the node among the Octants
-        boolean found = removeOctant(o);
+    public boolean isVoxelLighting(){
+        return voxelLighting != null;
+    }
+    
+    /**
+     * Adds a point light to the voxel lighting
+     * @param position
+     * @param level from 1 to VoxelLighting.MAX_LEVEL
+     */
+    public void addPointLight(Vector3f position, int level){
+        if(voxelLighting != null){
+            invalidateAmbientOcclusion(voxelLighting.addLight(position, level));
+        }
+    }
+    
+    /**
+     * Removes the point lights in the leaf containing a position
+     * @param position
+     */
+    public void removePointLights(Vector3f position){
+        if(voxelLighting != null){
+            invalidateAmbientOcclusion(voxelLighting.removeLights(position));
+        }
+    }
+    
+    /**
+     * When culling is on, the regions outside the frustum or hidden behind the
+     * big solid octants in front of the camera are not sent to the renderer.
+     * @param culling 
+     */
+    public void setCulling(boolean culling){
+        this.culling = culling;
+        if(!culling){
+            for(Region r : regions.values()){
+                r.node.setCullHint(Spatial.CullHint.Inherit);
+                for(Spatial g : r.node.getChildren()){
+                    g.setCullHint(Spatial.CullHint.Inherit);
+                }
+            }
+        }
+    }
+    
+    public boolean isCulling(){
+        return culling;
+    }
+    
+    /**
+     * Walks the octree down to the regions, skipping the subtrees outside the
+     * frustum, and hides the batches behind the occluders
+     */
+    private void cullRegions(){
+        if(octree == null){
+            return;
+        }
+        Camera cam = app.getCamera();
         
-        if(found){
-            System.out.println("Removed octant " + o.getId() + " from nodes");
+        occluders.clear();
+        collectOccluders(octree.getRoot(), LocationalCode.ROOT, cam, Integer.MAX_VALUE);
+        Collections.sort(occluders, new Comparator<Octant>(){
+            @Override
+            public int compare(Octant a, Octant b) {
+                return Float.compare(distance(a, cam.getLocation()), distance(b, cam.getLocation()));
+            }
+        });
+        occlusionBuffer.clear(cam);
+        for(int i=0; i<occluders.size() && i<MAX_OCCLUDERS; i++){
+            Octant o = occluders.get(i);
+            float h = o.getEdgeSize() / 2f;
+            occlusionBuffer.addOccluder(cullMin.set(o.getOrigin()).subtractLocal(h, h, h), cullMax.set(o.getOrigin()).addLocal(h, h, h));
         }
         
-        onOctantGenerated(o);
+        cullRegions(octree.getRoot(), LocationalCode.ROOT, cam, false);
     }
     
-    private boolean removeOctant(Octant o){
-        for(List<Octant> l: nodes.values()){
-            for(Octant c: l){
-                if(c.getId() == o.getId()){
-                    l.remove(c);
-                    return true;
+    /**
+     * Collects the solid leaves that look big from the camera. Only leaves
+     * drawn as they are count, not the ones merged by the level of detail.
+     */
+    private void collectOccluders(Octant o, long code, Camera cam, int lodDepth){
+        if(o.getDepth() > lodDepth){
+            return;
+        }
+        float d = distance(o, cam.getLocation());
+        if(d > 0f && o.getEdgeSize() / d < OCCLUDER_ANGLE){
+            return; //the children are smaller and farther away
+        }
+        if(frustumTest(o, cam) == Camera.FrustumIntersect.Outside){
+            return;
+        }
+        if(!o.hasChildren()){
+            if(o.getMaterialType() != Materials.MAT_AIR && d > 0f){
+                occluders.add(o);
+            }
+            return;
+        }
+        if(o.getDepth() == REGION_DEPTH){
+            Region r = regions.get(code);
+            //the depth the meshes were built at, not the one wanted now
+            lodDepth = r == null || r.octant != o ? REGION_DEPTH : r.builtDepth;
+        }
+        Octant children[] = o.getChildren();
+        for(int i=0; i<8; i++){
+            collectOccluders(children[i], LocationalCode.child(code, i), cam, lodDepth);
+        }
+    }
+    
+    private void cullRegions(Octant o, long code, Camera cam, boolean inside){
+        Camera.FrustumIntersect fi = inside ? Camera.FrustumIntersect.Inside : frustumTest(o, cam);
+        
+        if(o.getDepth() < REGION_DEPTH && o.hasChildren()){
+            Octant children[] = o.getChildren();
+            for(int i=0; i<8; i++){
+                long c = LocationalCode.child(code, i);
+                if(fi == Camera.FrustumIntersect.Outside){
+                    hideRegions(children[i], c);
+                } else {
+                    cullRegions(children[i], c, cam, fi == Camera.FrustumIntersect.Inside);
                 }
             }
+            return;
+        }
+        
+        Region r = regions.get(code);
+        if(r == null){
+            return;
+        }
+        if(fi == Camera.FrustumIntersect.Outside){
+            r.node.setCullHint(Spatial.CullHint.Always);
+            return;
+        }
+        r.node.setCullHint(Spatial.CullHint.Inherit);
+        for(Spatial g : r.node.getChildren()){
+            BoundingBox bb = (BoundingBox) ((Geometry) g).getModelBound();
+            boolean hidden = occlusionBuffer.isOccluded(bb.getMin(cullMin), bb.getMax(cullMax));
+            g.setCullHint(hidden ? Spatial.CullHint.Always : Spatial.CullHint.Inherit);
+        }
+    }
+    
+    private void hideRegions(Octant o, long code){
+        if(o.getDepth() < REGION_DEPTH && o.hasChildren()){
+            Octant children[] = o.getChildren();
+            for(int i=0; i<8; i++){
+                hideRegions(children[i], LocationalCode.child(code, i));
+            }
+            return;
+        }
+        Region r = regions.get(code);
+        if(r != null){
+            r.node.setCullHint(Spatial.CullHint.Always);
+        }
+    }
+    
+    private Camera.FrustumIntersect frustumTest(Octant o, Camera cam){
+        float h = o.getEdgeSize() / 2f;
+        cullBox.setCenter(o.getOrigin());
+        cullBox.setXExtent(h);
+        cullBox.setYExtent(h);
+        cullBox.setZExtent(h);
+        cullBox.setCheckPlane(0);
+        cam.setPlaneState(0);
+        return cam.contains(cullBox);
+    }
+    
+    /**
+     * @return the distance from the point to the octant, 0 if it's inside
+     */
+    private static float distance(Octant o, Vector3f p){
+        Vector3f c = o.getOrigin();
+        float h = o.getEdgeSize() / 2f;
+        float dx = Math.max(0f, FastMath.abs(p.x - c.x) - h);
+        float dy = Math.max(0f, FastMath.abs(p.y - c.y) - h);
+        float dz = Math.max(0f, FastMath.abs(p.z - c.z) - h);
+        return FastMath.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+    
+    /**
+     * In the raymarched view the octree is drawn by a shader walking a
+     * SparseVoxelOctree. The meshes are still built but not drawn, they are
+     * used for picking.
+     * @param raymarching 
+     */
+    public void setRaymarching(boolean raymarching){
+        if(raymarching == isRaymarching() || octree == null){
+            return;
+        }
+        if(raymarching){
+            svoVersion = octree.getVersion();
+            svoGeometry = SvoGeometry.create(app.getAssetManager(), SparseVoxelOctree.export(octree), stateManager.getState(Materials.class));
+            app.getRootNode().attachChild(svoGeometry);
+            octantsScenegraphRoot.setCullHint(Spatial.CullHint.Always);
+        } else {
+            svoGeometry.removeFromParent();
+            svoGeometry = null;
+            octantsScenegraphRoot.setCullHint(Spatial.CullHint.Inherit);
+        }
+    }
+    
+    public boolean isRaymarching(){
+        return svoGeometry != null;
+    }
+    
+    private void updateSvo(){
+        if(svoGeometry != null && octree.getRoot().getSubtreeStamp() > svoVersion){
+            svoVersion = octree.getVersion();
+            SvoGeometry.update(svoGeometry, SparseVoxelOctree.export(octree));
+        }
+    }
+    
+    /**
+     * With instancing, the solid leaves are drawn as instances of a cube by an
+     * InstancedRenderer instead of being merged into the region meshes. Edits
+     * are cheaper but every leaf costs a cube, so it fits sparse scenes.
+     * @param instancing 
+     */
+    public void setInstancing(boolean instancing){
+        if(instancing == isInstancing() || octree == null){
+            return;
+        }
+        for(Region r : regions.values()){
+            r.node.removeFromParent();
+        }
+        regions.clear();
+        if(instancing){
+            instancedRenderer = new InstancedRenderer(stateManager.getState(Materials.class));
+            instancedRenderer.setOctree(octree);
+            octantsScenegraphRoot.attachChild(instancedRenderer.getNode());
+        } else {
+            instancedRenderer.getNode().removeFromParent();
+            instancedRenderer = null;
+        }
+    }
+    
+    public boolean isInstancing(){
+        return instancedRenderer != null;
+    }
+    
+    /**
+     * Finds the octants whose ambient occlusion can see a box: the cells
+     * sampled by AmbientOcclusion are within the octant grown by its own
+     * edge. Those of a subtree are inside the reach of its root, so the walk
+     * skips the subtrees out of reach.
+     */
+    private class AoReach implements OctreeTraversal.Filter, OctreeTraversal.Visitor {
+        final Vector3f center = new Vector3f();
+        float half;
+
+        @Override
+        public int test(Octant o) {
+            Vector3f c = o.getOrigin();
+            float reach = half + o.getEdgeSize() * 1.5f;
+            if(FastMath.abs(c.x - center.x) > reach || FastMath.abs(c.y - center.y) > reach || FastMath.abs(c.z - center.z) > reach){
+                return OctreeTraversal.SKIP;
+            }
+            return OctreeTraversal.VISIT;
+        }
+
+        @Override
+        public void visit(Octant o) {
+            o.data.aoBaked = false;
+            //only the octants in the meshes need their region rebuilt
+            Region r = regionOf(o);
+            if(r != null && (o.getDepth() == r.builtDepth || (!o.hasChildren() && o.getDepth() < r.builtDepth))){
+                r.dirty = true;
+            }
+        }
+    }
+    
+    /**
+     * The meshes of a region of the octree
+     */
+    private static class Region {
+        final Node node;
+        Octant octant;
+        long builtStamp = -1;
+        int lodDepth;
+        int builtDepth; //the depth of the smallest octants in the meshes
+        boolean dirty;
+        
+        Region(Node node){
+            this.node = node;
         }
-        return false;
     }
 
     /**
@@ -213,12 +711,16 @@ public class Renderer extends AbstractAppState implements OctreeListener{
     
     public void refreshSelection(){
         if(octree!= null){
-            
-            //See what object we have under the cursor
+            //See what object we have under the cursor, on the current meshes
             CollisionResults results = new CollisionResults();
             Ray ray = new Ray(app.getCamera().getLocation(), app.getCamera().getDirection());
             
-            octantsScenegraphRoot.collideWith(ray, results);
+            if(instancedRenderer != null){
+                instancedRenderer.pick(ray, results);
+            } else {
+                updateRegions();
+                octantsScenegraphRoot.collideWith(ray, results);
+            }
             if(results.size()>0){
                 Octinfo oi = getSelectionOctinfo(results.getClosestCollision());
                 stateManager.getState(SelectionManager.class).updateSelection(results.getClosestCollision(), oi);
@@ -27,7 +27,9 @@ package com.illogica.oct.states;
 
 import com.illogica.oct.engine.GeometryGenerators;
 import com.illogica.oct.engine.SelectionControl;
+import com.illogica.oct.octree.LocationalCode;
 import com.illogica.oct.octree.Octinfo;
+import com.illogica.oct.octree.Octree;
 import com.jme3.app.Application;
 import com.jme3.app.SimpleApplication;
 import com.jme3.app.state.AbstractAppState;
@@ -35,9 +37,9 @@ import com.jme3.app.state.AppStateManager;
 import com.jme3.collision.CollisionResult;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Node;
-import com.jme3.scene.Spatial;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Selection Geometry is the geometry used to decorate an existing object in
@@ -58,6 +60,8 @@ public class SelectionManager extends AbstractAppState {
 
     private Node selectionNode;
     private Node selectionBoxes; //the selection boxes to attach to the scenegraph
+    private final Set<Long> selection = new HashSet<Long>(); //locational codes of the selected nodes
+    private boolean selectionChanged;
     private SelectionControl selectionControl;
 
     private CollisionResult lastCollisionResult;
@@ -118,25 +122,47 @@ public class SelectionManager extends AbstractAppState {
         return lastSelectionOctinfo;
     }
     
-    public void selectionBoxesClear(){
+    /**
+     * The selection boxes are drawn as a single mesh, rebuilt once per frame
+     * when the selection changed
+     * @param tpf 
+     */
+    @Override
+    public void update(float tpf) {
+        if(!selectionChanged){
+            return;
+        }
+        selectionChanged = false;
         selectionBoxes.detachAllChildren();
+        if(!selection.isEmpty()){
+            Octree octree = sm.getState(Engine.class).getOctree();
+            selectionBoxes.attachChild(GeometryGenerators.getCubesByCodes(octree, selection, sm.getState(Materials.class).getSelectionBoxMaterial()));
+        }
+    }
+    
+    public void selectionBoxesClear(){
+        selection.clear();
+        selectionChanged = true;
     }
     
     public void selectionBoxesAdd(Octinfo oi){
-        if(selectionBoxes.getChild(oi.toString()) == null)
-            selectionBoxes.attachChild(GeometryGenerators.getCubeByOctinfo(oi, sm.getState(Materials.class).getSelectionBoxMaterial()));
+        selectionBoxesAdd(LocationalCode.of(sm.getState(Engine.class).getOctree(), oi));
     }
     
     /**
-     * Returns a list of Octinfos from all the currently selection boxes
-     * @return 
+     * @param code the locational code of the node to select
      */
-    public List<Octinfo> selectionBoxesOctinfos(){
-        List<Octinfo> ois = new ArrayList<Octinfo>();
-        for(Spatial s: selectionBoxes.getChildren()){
-            ois.add((Octinfo) s.getUserData("Octinfo"));
+    public void selectionBoxesAdd(long code){
+        if(selection.add(code)){
+            selectionChanged = true;
         }
-        return ois;
+    }
+    
+    /**
+     * @return the locational codes of the selected nodes
+     */
+    public Set<Long> getSelection(){
+        return Collections.unmodifiableSet(selection);
     }
     
     public byte getStep() {
@@ -0,0 +1,135 @@
+#import "Common/ShaderLib/GLSLCompat.glsllib"
+
+// Same traversal as SparseVoxelOctree.raycast()
+
+#define MAX_DEPTH 23
+#define FAR_BIT 65536u
+
+uniform usampler2D m_Nodes;
+uniform sampler2D m_Palette;
+uniform int m_MaterialsOffset;
+uniform int m_Width;
+uniform vec3 m_RootOrigin;
+uniform float m_RootSize;
+
+uniform vec3 g_CameraPosition;
+uniform mat4 g_ViewProjectionMatrix;
+
+varying vec3 worldPos;
+
+const vec3 CHILD_OFFSETS[8] = vec3[8](
+    vec3(1.0, 1.0, 1.0), vec3(1.0, 1.0, -1.0), vec3(-1.0, 1.0, -1.0), vec3(-1.0, 1.0, 1.0),
+    vec3(1.0, -1.0, 1.0), vec3(1.0, -1.0, -1.0), vec3(-1.0, -1.0, -1.0), vec3(-1.0, -1.0, 1.0));
+
+uint fetch(int i) {
+    return texelFetch(m_Nodes, ivec2(i % m_Width, i / m_Width), 0).r;
+}
+
+int bitCount8(uint v) {
+    v = v - ((v >> 1u) & 0x55u);
+    v = (v & 0x33u) + ((v >> 2u) & 0x33u);
+    return int((v + (v >> 4u)) & 0x0Fu);
+}
+
+int childDescriptor(int d, uint word, int i) {
+    int pointer = int(word >> 17u);
+    if ((word & FAR_BIT) != 0u) {
+        pointer = int(fetch((d + pointer) * 2));
+    }
+    uint internal = (word >> 8u) & ~word & 0xFFu;
+    return d + pointer + bitCount8(internal & ((1u << uint(i)) - 1u));
+}
+
+int leafMaterial(int d, uint word, int i) {
+    int first = int(fetch(d * 2 + 1));
+    return int(fetch(m_MaterialsOffset + first + bitCount8(word & 0xFFu & ((1u << uint(i)) - 1u))));
+}
+
+// distance where the ray enters the cube, -1 if it misses it
+float enter(vec3 o, vec3 inv, vec3 center, float h) {
+    vec3 t1 = (center - h - o) * inv;
+    vec3 t2 = (center + h - o) * inv;
+    vec3 tMin = min(t1, t2);
+    vec3 tMax = max(t1, t2);
+    float tNear = max(max(tMin.x, tMin.y), max(tMin.z, 0.0));
+    float tFar = min(min(tMax.x, tMax.y), tMax.z);
+    return tNear <= tFar ? tNear : -1.0;
+}
+
+void main() {
+    vec3 o = g_CameraPosition;
+    vec3 dir = normalize(worldPos - o);
+    vec3 inv = 1.0 / dir;
+
+    int stackNode[MAX_DEPTH + 1];
+    uint stackVisited[MAX_DEPTH + 1];
+    vec3 stackCenter[MAX_DEPTH + 1];
+
+    int top = 0;
+    stackNode[0] = 0;
+    stackVisited[0] = 0u;
+    stackCenter[0] = m_RootOrigin;
+    float nodeHalf = m_RootSize * 0.5;
+
+    int material = -1;
+    float hitT = 0.0;
+    vec3 hitCenter = vec3(0.0);
+    float hitHalf = 0.0;
+
+    while (top >= 0) {
+        int d = stackNode[top];
+        uint word = fetch(d * 2);
+        float childHalf = nodeHalf * 0.5;
+
+        int best = -1;
+        float bestT = 1e30;
+        for (int i = 0; i < 8; i++) {
+            uint bit = 1u << uint(i);
+            if ((word & (bit << 8u)) == 0u || (stackVisited[top] & bit) != 0u) {
+                continue;
+            }
+            float t = enter(o, inv, stackCenter[top] + CHILD_OFFSETS[i] * childHalf, childHalf);
+            if (t >= 0.0 && t < bestT) {
+                bestT = t;
+                best = i;
+            }
+        }
+        if (best < 0) {
+            top--;
+            nodeHalf *= 2.0;
+            continue;
+        }
+        stackVisited[top] |= 1u << uint(best);
+
+        vec3 center = stackCenter[top] + CHILD_OFFSETS[best] * childHalf;
+        if ((word & (1u << uint(best))) != 0u) {
+            material = leafMaterial(d, word, best);
+            hitT = bestT;
+            hitCenter = center;
+            hitHalf = childHalf;
+            break;
+        }
+        top++;
+        stackNode[top] = childDescriptor(d, word, best);
+        stackVisited[top] = 0u;
+        stackCenter[top] = center;
+        nodeHalf = childHalf;
+    }
+
+    if (material < 0) {
+        discard;
+    }
+
+    vec3 p = o + dir * hitT;
+    vec3 local = (p - hitCenter) / hitHalf;
+    vec3 a = abs(local);
+    vec3 normal = a.x > a.y && a.x > a.z ? vec3(sign(local.x), 0.0, 0.0)
+            : (a.y > a.z ? vec3(0.0, sign(local.y), 0.0) : vec3(0.0, 0.0, sign(local.z)));
+    float light = 0.6 + 0.4 * max(dot(normal, normalize(vec3(0.3, 1.0, 0.5))), 0.0);
+
+    vec4 color = texelFetch(m_Palette, ivec2(material % 256, 0), 0);
+    gl_FragColor = vec4(color.rgb * light, 1.0);
+
+    vec4 clip = g_ViewProjectionMatrix * vec4(p, 1.0);
+    gl_FragDepth = clip.z / clip.w * 0.5 + 0.5;
+}